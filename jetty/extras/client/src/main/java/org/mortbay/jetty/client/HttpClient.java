@@ -48,6 +48,7 @@ import org.mortbay.resource.Resource;
 import org.mortbay.thread.QueuedThreadPool;
 import org.mortbay.thread.ThreadPool;
 import org.mortbay.thread.Timeout;
+import org.mortbay.thread.WheelTimeout;
 import org.mortbay.util.Attributes;
 import org.mortbay.util.AttributesMap;
 
@@ -95,6 +96,7 @@ public class HttpClient extends AbstractBuffers implements Attributes
     private int _soTimeout = 10000;
     private Timeout _timeoutQ = new Timeout();
     private Timeout _idleTimeoutQ = new Timeout();
+    private boolean _useTimeoutWheel;
     private Address _proxy;
     private Authorization _proxyAuthentication;
     private Set<String> _noProxy;
@@ -391,6 +393,11 @@ public class HttpClient extends AbstractBuffers implements Attributes
     {
         super.doStart();
 
+        if (_useTimeoutWheel)
+        {
+            _timeoutQ=new WheelTimeout();
+            _idleTimeoutQ=new WheelTimeout();
+        }
         _timeoutQ.setDuration(_timeout);
         _timeoutQ.setNow();
         _idleTimeoutQ.setDuration(_idleTimeout);
@@ -611,6 +618,25 @@ public class HttpClient extends AbstractBuffers implements Attributes
         _idleTimeout=ms;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if exchange and idle timeouts are kept in a {@link WheelTimeout}.
+     */
+    public boolean getUseTimeoutWheel()
+    {
+        return _useTimeoutWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param useTimeoutWheel if true, exchange and idle timeouts are kept in a {@link WheelTimeout},
+     * which is O(1) to schedule and cancel. Must be set before the client is started.
+     */
+    public void setUseTimeoutWheel(boolean useTimeoutWheel)
+    {
+        _useTimeoutWheel=useTimeoutWheel;
+    }
+
     /* ------------------------------------------------------------ */
     public int getSoTimeout() 
     {
@@ -50,6 +50,7 @@ class SelectConnector extends AbstractLifeCycle implements HttpClient.Connector,
 
     protected void doStart() throws Exception
     {
+        _selectorManager.setUseTimeoutWheel(_httpClient.getUseTimeoutWheel());
         _selectorManager.start();
         _httpClient._threadPool.dispatch(this);
     }
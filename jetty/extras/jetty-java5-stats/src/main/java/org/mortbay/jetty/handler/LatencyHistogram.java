@@ -0,0 +1,131 @@
+// ========================================================================
+// Copyright 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed memory, log-linear histogram of latencies.
+ * <p>
+ * Values are counted in buckets that are linear within each power of 2,
+ * with 16 buckets per power of 2, so that any percentile is reported with
+ * a relative error of at most 1/16 and the whole range of long values is
+ * covered by 960 buckets.  Recording a value is a single atomic increment
+ * and reading percentiles does not block recording.
+ */
+public class LatencyHistogram
+{
+    private final static int SUB_BITS = 4;
+    private final static int SUB = 1 << SUB_BITS;
+    private final static int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _max = new AtomicLong();
+
+    /**
+     * @param value the value to record, which is treated as 0 if negative.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        _counts.incrementAndGet(bucket(value));
+
+        long max = _max.get();
+        while (value > max)
+        {
+            if (_max.compareAndSet(max, value)) break;
+            max = _max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += _counts.get(i);
+        return count;
+    }
+
+    /**
+     * @return the maximum recorded value
+     */
+    public long getMax()
+    {
+        return _max.get();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest value that is equivalent to the value at the given
+     * percentile, or 0 if no values have been recorded.
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = _counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highest(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Reset all counts to 0.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            _counts.set(i, 0);
+        _max.set(0);
+    }
+
+    static int bucket(long value)
+    {
+        if (value < SUB)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB + (int)((value >>> shift) & (SUB - 1));
+    }
+
+    static long highest(int bucket)
+    {
+        if (bucket < SUB)
+            return bucket;
+        int shift = bucket / SUB - 1;
+        long lowest = (long)(SUB + bucket % SUB) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
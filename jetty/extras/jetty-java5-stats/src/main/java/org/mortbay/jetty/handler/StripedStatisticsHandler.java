@@ -0,0 +1,432 @@
+// ========================================================================
+// Copyright 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.Response;
+import org.mortbay.jetty.Server;
+
+/**
+ * A statistics handler for high request rates.
+ * <p>
+ * Request and response counts are kept in striped counters, so that
+ * concurrent requests mostly update different cache lines, and are only
+ * summed when read.  Request latencies are recorded in fixed memory
+ * {@link LatencyHistogram}s for each context and each status class, from
+ * which percentiles are available without blocking the requests.
+ * <p>
+ * The context of a request is the longest context path of the
+ * {@link ContextHandler}s of the server that matches the request URI.
+ * The contexts are rescanned at most once a second, so contexts deployed
+ * after start are included.
+ *
+ * @version $Revision$ $Date$
+ */
+public class StripedStatisticsHandler extends AbstractStatisticsHandler
+{
+    private final static String ALL = "*";
+
+    private transient final Counter _requests = new Counter();
+    private transient final Counter _totalRequestTime = new Counter();
+    private transient final Counter[] _responses = {new Counter(), new Counter(), new Counter(), new Counter(), new Counter()};
+    private transient final AtomicLong _statsStartedAt = new AtomicLong();
+    private transient final AtomicLong _minRequestTime = new AtomicLong();
+    private transient final AtomicLong _maxRequestTime = new AtomicLong();
+    private transient final AtomicInteger _requestsActive = new AtomicInteger();
+    private transient final AtomicInteger _requestsActiveMax = new AtomicInteger();
+
+    private transient final ConcurrentMap<String, Latencies> _latencies = new ConcurrentHashMap<String, Latencies>();
+    private transient volatile String[] _contextPaths = new String[0];
+    private transient volatile long _contextsScannedAt;
+
+    public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+    {
+        _requests.increment();
+        int actives = _requestsActive.incrementAndGet();
+        // Update the max value, using a non-blocking algorithm
+        int oldMaxActives = _requestsActiveMax.get();
+        while (actives > oldMaxActives)
+        {
+            if (_requestsActiveMax.compareAndSet(oldMaxActives, actives)) break;
+            oldMaxActives = _requestsActiveMax.get();
+        }
+
+        long requestStartTime = System.nanoTime();
+        try
+        {
+            super.handle(target, request, response, dispatch);
+        }
+        finally
+        {
+            long requestTimeUs = (System.nanoTime() - requestStartTime) / 1000;
+            long requestTime = requestTimeUs / 1000;
+
+            // Set to 0 if the value is negative, using a non-blocking algorithm
+            actives = _requestsActive.decrementAndGet();
+            while (actives < 0)
+            {
+                if (_requestsActive.compareAndSet(actives, 0)) break;
+                actives = _requestsActive.get();
+            }
+
+            // Update the times, using a non-blocking algorithm
+            long oldMinTime = _minRequestTime.get();
+            while (requestTime < oldMinTime)
+            {
+                if (_minRequestTime.compareAndSet(oldMinTime, requestTime)) break;
+                oldMinTime = _minRequestTime.get();
+            }
+            long oldMaxTime = _maxRequestTime.get();
+            while (requestTime > oldMaxTime)
+            {
+                if (_maxRequestTime.compareAndSet(oldMaxTime, requestTime)) break;
+                oldMaxTime = _maxRequestTime.get();
+            }
+            _totalRequestTime.add(requestTime);
+
+            Response jettyResponse = (response instanceof Response) ? (Response) response : HttpConnection.getCurrentConnection().getResponse();
+            int statusClass = jettyResponse.getStatus() / 100;
+            if (statusClass >= 1 && statusClass <= 5)
+                _responses[statusClass - 1].increment();
+
+            getLatencies(ALL).record(statusClass, requestTimeUs);
+            String context = findContextPath(request.getRequestURI());
+            if (context != null)
+                getLatencies(context).record(statusClass, requestTimeUs);
+        }
+    }
+
+    private Latencies getLatencies(String context)
+    {
+        Latencies latencies = _latencies.get(context);
+        if (latencies == null)
+        {
+            latencies = new Latencies();
+            Latencies existing = _latencies.putIfAbsent(context, latencies);
+            if (existing != null)
+                latencies = existing;
+        }
+        return latencies;
+    }
+
+    /**
+     * @return the longest known context path that matches the URI
+     */
+    private String findContextPath(String uri)
+    {
+        long now = System.currentTimeMillis();
+        if (now - _contextsScannedAt > 1000)
+        {
+            _contextsScannedAt = now;
+            scanContexts();
+        }
+
+        if (uri == null)
+            return null;
+        String[] paths = _contextPaths;
+        for (int i = 0; i < paths.length; i++)
+        {
+            String path = paths[i];
+            if (path.length() == 0 ||
+                uri.startsWith(path) && (uri.length() == path.length() || uri.charAt(path.length()) == '/'))
+                return path.length() == 0 ? "/" : path;
+        }
+        return null;
+    }
+
+    private void scanContexts()
+    {
+        Server server = getServer();
+        if (server == null)
+            return;
+        Handler[] contexts = server.getChildHandlersByClass(ContextHandler.class);
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; contexts != null && i < contexts.length; i++)
+        {
+            String path = ((ContextHandler)contexts[i]).getContextPath();
+            if (path == null || "/".equals(path))
+                path = "";
+            if (!paths.contains(path))
+                paths.add(path);
+        }
+        String[] sorted = paths.toArray(new String[paths.size()]);
+        Arrays.sort(sorted, new Comparator<String>()
+        {
+            public int compare(String o1, String o2)
+            {
+                return o2.length() - o1.length();
+            }
+        });
+        _contextPaths = sorted;
+    }
+
+    public void statsReset()
+    {
+        _statsStartedAt.set(System.currentTimeMillis());
+        _requests.reset();
+        _minRequestTime.set(Long.MAX_VALUE);
+        _maxRequestTime.set(0L);
+        _totalRequestTime.reset();
+        _requestsActive.set(0);
+        _requestsActiveMax.set(0);
+        for (int i = 0; i < _responses.length; i++)
+            _responses[i].reset();
+        for (Latencies latencies : _latencies.values())
+            latencies.reset();
+    }
+
+    public int getRequests()
+    {
+        return (int)_requests.get();
+    }
+
+    public int getRequestsActive()
+    {
+        return _requestsActive.get();
+    }
+
+    public int getRequestsActiveMax()
+    {
+        return _requestsActiveMax.get();
+    }
+
+    public int getResponses1xx()
+    {
+        return (int)_responses[0].get();
+    }
+
+    public int getResponses2xx()
+    {
+        return (int)_responses[1].get();
+    }
+
+    public int getResponses3xx()
+    {
+        return (int)_responses[2].get();
+    }
+
+    public int getResponses4xx()
+    {
+        return (int)_responses[3].get();
+    }
+
+    public int getResponses5xx()
+    {
+        return (int)_responses[4].get();
+    }
+
+    public long getStatsOnMs()
+    {
+        return System.currentTimeMillis() - _statsStartedAt.get();
+    }
+
+    public long getRequestTimeMin()
+    {
+        return _minRequestTime.get();
+    }
+
+    public long getRequestTimeMax()
+    {
+        return _maxRequestTime.get();
+    }
+
+    public long getRequestTimeTotal()
+    {
+        return _totalRequestTime.get();
+    }
+
+    public long getRequestTimeAverage()
+    {
+        int requests = getRequests();
+        return requests == 0 ? 0 : getRequestTimeTotal() / requests;
+    }
+
+    /**
+     * @return the median time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public double getRequestTimeP50()
+    {
+        return getRequestTimePercentile(null, 0, 50.0);
+    }
+
+    /**
+     * @return the 90th percentile time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public double getRequestTimeP90()
+    {
+        return getRequestTimePercentile(null, 0, 90.0);
+    }
+
+    /**
+     * @return the 99th percentile time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public double getRequestTimeP99()
+    {
+        return getRequestTimePercentile(null, 0, 99.0);
+    }
+
+    /**
+     * @return the 99.9th percentile time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public double getRequestTimeP999()
+    {
+        return getRequestTimePercentile(null, 0, 99.9);
+    }
+
+    /**
+     * @param context the context path, or null for all contexts
+     * @param statusClass the status class (1 to 5), or 0 for all responses
+     * @param percentile the percentile, between 0 and 100
+     * @return the time (in milliseconds) of request handling at the percentile
+     * since {@link #statsReset()} was last called.
+     */
+    public double getRequestTimePercentile(String context, int statusClass, double percentile)
+    {
+        Latencies latencies = _latencies.get(context == null ? ALL : context);
+        if (latencies == null)
+            return 0;
+        LatencyHistogram histogram = latencies.get(statusClass);
+        return histogram == null ? 0 : histogram.getPercentile(percentile) / 1000.0;
+    }
+
+    /**
+     * @return the request handling percentiles (in milliseconds)
+     * for each context and status class.
+     */
+    public String dumpLatencies()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append("context status count p50 p90 p99 p999 max\n");
+        Map<String, Latencies> sorted = new TreeMap<String, Latencies>(_latencies);
+        for (Map.Entry<String, Latencies> entry : sorted.entrySet())
+        {
+            for (int statusClass = 0; statusClass <= 5; statusClass++)
+            {
+                LatencyHistogram histogram = entry.getValue().get(statusClass);
+                long count = histogram.getCount();
+                if (count == 0 && statusClass > 0)
+                    continue;
+                buf.append(entry.getKey()).append(' ');
+                buf.append(statusClass == 0 ? "all" : (statusClass + "xx")).append(' ');
+                buf.append(count);
+                buf.append(' ').append(histogram.getPercentile(50.0) / 1000.0);
+                buf.append(' ').append(histogram.getPercentile(90.0) / 1000.0);
+                buf.append(' ').append(histogram.getPercentile(99.0) / 1000.0);
+                buf.append(' ').append(histogram.getPercentile(99.9) / 1000.0);
+                buf.append(' ').append(histogram.getMax() / 1000.0);
+                buf.append('\n');
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Latency histograms of a context, for all responses and by status class.
+     */
+    private static class Latencies
+    {
+        private final LatencyHistogram[] _histograms = new LatencyHistogram[6];
+
+        Latencies()
+        {
+            for (int i = 0; i < _histograms.length; i++)
+                _histograms[i] = new LatencyHistogram();
+        }
+
+        void record(int statusClass, long requestTimeUs)
+        {
+            _histograms[0].record(requestTimeUs);
+            if (statusClass >= 1 && statusClass <= 5)
+                _histograms[statusClass].record(requestTimeUs);
+        }
+
+        LatencyHistogram get(int statusClass)
+        {
+            return statusClass >= 0 && statusClass < _histograms.length ? _histograms[statusClass] : null;
+        }
+
+        void reset()
+        {
+            for (int i = 0; i < _histograms.length; i++)
+                _histograms[i].reset();
+        }
+    }
+
+    /**
+     * A counter striped over cache lines by thread, which is summed when read.
+     */
+    static class Counter
+    {
+        // 8 longs to a 64 byte cache line
+        private final static int STRIDE = 8;
+        private final static int STRIPES;
+        static
+        {
+            int stripes = 1;
+            while (stripes < 2 * Runtime.getRuntime().availableProcessors())
+                stripes <<= 1;
+            STRIPES = stripes;
+        }
+
+        private final AtomicLongArray _cells = new AtomicLongArray(STRIPES * STRIDE);
+
+        void increment()
+        {
+            add(1);
+        }
+
+        void add(long delta)
+        {
+            long id = Thread.currentThread().getId();
+            int hash = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+            _cells.addAndGet(((hash >>> 16) & (STRIPES - 1)) * STRIDE, delta);
+        }
+
+        long get()
+        {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++)
+                sum += _cells.get(i * STRIDE);
+            return sum;
+        }
+
+        void reset()
+        {
+            for (int i = 0; i < STRIPES; i++)
+                _cells.set(i * STRIDE, 0);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+// ========================================================================
+// Copyright 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.handler;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase
+{
+    public void testBuckets()
+    {
+        for (long value = 0; value < 100000; value++)
+        {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value <= LatencyHistogram.highest(bucket));
+            if (bucket > 0)
+                assertTrue(value > LatencyHistogram.highest(bucket - 1));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highest(LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50.0));
+
+        for (int i = 1; i <= 10000; i++)
+            histogram.record(i);
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertError(5000, histogram.getPercentile(50.0));
+        assertError(9000, histogram.getPercentile(90.0));
+        assertError(9900, histogram.getPercentile(99.0));
+        assertError(9990, histogram.getPercentile(99.9));
+        assertEquals(10000, histogram.getPercentile(100.0));
+        assertEquals(1, histogram.getPercentile(0.0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    private void assertError(long expected, long actual)
+    {
+        assertTrue(actual + " for " + expected, actual >= expected);
+        assertTrue(actual + " for " + expected, actual - expected <= expected / 16);
+    }
+}
@@ -29,6 +29,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.TestCase;
 import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.LocalConnector;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.nio.SelectChannelConnector;
@@ -54,6 +55,61 @@ public class StatisticsHandlerTest extends TestCase
         runTestWithStatisticsHandler(statisticsHandler);
     }
 
+    public void testStripedStatisticsHandler() throws Exception
+    {
+        StripedStatisticsHandler statisticsHandler = new StripedStatisticsHandler();
+        runTestWithStatisticsHandler(statisticsHandler);
+        
+        assertTrue(statisticsHandler.getRequestTimeP50() <= statisticsHandler.getRequestTimeP99());
+        assertTrue(statisticsHandler.getRequestTimeP99() <= statisticsHandler.getRequestTimeMax() + 1);
+        assertEquals(statisticsHandler.getRequestTimeP99(), statisticsHandler.getRequestTimePercentile(null, 2, 99.0), 0.0);
+        assertEquals(0.0, statisticsHandler.getRequestTimePercentile(null, 5, 99.0), 0.0);
+        assertTrue(statisticsHandler.dumpLatencies().indexOf("* 2xx " + (workerCount * requestCount) + " ") > 0);
+    }
+
+    public void testStripedStatisticsHandlerContexts() throws Exception
+    {
+        Server server = new Server();
+        LocalConnector connector = new LocalConnector();
+        server.addConnector(connector);
+        StripedStatisticsHandler statisticsHandler = new StripedStatisticsHandler();
+        server.setHandler(statisticsHandler);
+        ContextHandlerCollection contexts = new ContextHandlerCollection();
+        statisticsHandler.setHandler(contexts);
+        ContextHandler root = contexts.addContext("/", ".");
+        root.setHandler(new TestHandler());
+        ContextHandler foo = contexts.addContext("/foo", ".");
+        TestHandler test = new TestHandler();
+        test.count = new AtomicInteger();
+        foo.setHandler(test);
+        ((TestHandler)root.getHandler()).count = test.count;
+        server.start();
+        try
+        {
+            connector.getResponses("GET /foo/bar HTTP/1.1\r\nHost: localhost\r\n\r\n" + 
+                                   "GET /foo HTTP/1.1\r\nHost: localhost\r\n\r\n" + 
+                                   "GET /foobar HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            // GET /foo is redirected to /foo/
+            assertEquals(2, test.count.get());
+            assertEquals(3, statisticsHandler.getRequests());
+            
+            String dump = statisticsHandler.dumpLatencies();
+            assertTrue(dump.indexOf("* all 3 ") > 0);
+            assertTrue(dump.indexOf("/foo all 2 ") > 0);
+            assertTrue(dump.indexOf("/foo 2xx 1 ") > 0);
+            assertTrue(dump.indexOf("/foo 3xx 1 ") > 0);
+            assertTrue(dump.indexOf("/ all 1 ") > 0);
+            
+            statisticsHandler.statsReset();
+            assertEquals(0, statisticsHandler.getRequests());
+            assertEquals(0.0, statisticsHandler.getRequestTimePercentile("/foo", 0, 50.0), 0.0);
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
     private void runTestWithStatisticsHandler(AbstractStatisticsHandler statisticsHandler) throws Exception
     {
         Server server = new Server();
@@ -0,0 +1,185 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.jetty.security.Constraint;
+import org.mortbay.jetty.security.ConstraintMapping;
+import org.mortbay.jetty.security.ConstraintTable;
+import org.mortbay.jetty.servlet.PathMap;
+import org.mortbay.util.LazyList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link ConstraintTable#getDecision(String, String)} against
+ * combining the mapped constraints for each request, as the SecurityHandler
+ * did before the table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConstraintTableBenchmark
+{
+    final static String[] SPECS={"/","/*","/a/*","/a/b/*","/a/b/c","/a/b","*.jsp","*.do","/b/*","/a/b/c/*"};
+    final static String[] METHODS={null,"GET","POST","PUT","DELETE","PROPFIND"};
+    final static String[] PATHS={"/","/x","/a","/a/","/a/x","/a/b","/a/b/","/a/b/c","/a/b/c/","/a/b/c/d.jsp","/b","/b/","/b/x.do","/x.jsp","/a/x.do"};
+    final static String[] REQUEST_METHODS={"GET","GET","GET","POST","HEAD","PUT","DELETE","PROPFIND"};
+    final static String[][] ROLES={null,{},{"user"},{"admin","user"},{Constraint.ANY_ROLE}};
+
+    PathMap _map;
+    ConstraintTable _table;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        Random random=new Random(1234);
+        ConstraintMapping[] mappings=new ConstraintMapping[24];
+        for (int i=0;i<mappings.length;i++)
+        {
+            Constraint constraint=new Constraint();
+            constraint.setAuthenticate(random.nextInt(4)>0);
+            String[] roles=ROLES[random.nextInt(ROLES.length)];
+            if (roles!=null)
+                constraint.setRoles(roles);
+            int data_constraint=random.nextInt(4);
+            if (data_constraint<=Constraint.DC_CONFIDENTIAL)
+                constraint.setDataConstraint(data_constraint);
+            mappings[i]=new ConstraintMapping();
+            mappings[i].setPathSpec(SPECS[random.nextInt(SPECS.length)]);
+            mappings[i].setMethod(METHODS[random.nextInt(METHODS.length)]);
+            mappings[i].setConstraint(constraint);
+        }
+
+        _table=new ConstraintTable(mappings);
+        _map=new PathMap();
+        for (int i=0;i<mappings.length;i++)
+            _map.put(mappings[i].getPathSpec(),LazyList.add(_map.get(mappings[i].getPathSpec()),mappings[i]));
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void compiled(Blackhole bh)
+    {
+        for (int i=0;i<PATHS.length;i++)
+            bh.consume(_table.getDecision(PATHS[i],REQUEST_METHODS[i%REQUEST_METHODS.length]));
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void combined(Blackhole bh)
+    {
+        for (int i=0;i<PATHS.length;i++)
+        {
+            Object constraints=constraints(PATHS[i],REQUEST_METHODS[i%REQUEST_METHODS.length]);
+            if (constraints!=null)
+                combine(constraints,bh);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* The constraints for a request, as the SecurityHandler found them */
+    Object constraints(String pathInContext, String method)
+    {
+        Object mapping_entries=_map.getLazyMatches(pathInContext);
+        String pattern=null;
+        Object constraints=null;
+
+        loop: for (int m=0;m<LazyList.size(mapping_entries);m++)
+        {
+            Map.Entry entry=(Map.Entry)LazyList.get(mapping_entries,m);
+            Object mappings=entry.getValue();
+            String path_spec=(String)entry.getKey();
+
+            for (int c=0;c<LazyList.size(mappings);c++)
+            {
+                ConstraintMapping mapping=(ConstraintMapping)LazyList.get(mappings,c);
+                if (mapping.getMethod()!=null && !mapping.getMethod().equalsIgnoreCase(method))
+                    continue;
+
+                if (pattern!=null && !pattern.equals(path_spec))
+                    break loop;
+
+                pattern=path_spec;
+                constraints=LazyList.add(constraints,mapping.getConstraint());
+            }
+        }
+        return constraints;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Combine the constraints, as the SecurityHandler combined them */
+    void combine(Object constraints, Blackhole bh)
+    {
+        int dataConstraint=Constraint.DC_NONE;
+        Object roles=null;
+        boolean unauthenticated=false;
+        boolean forbidden=false;
+
+        for (int c=0;c<LazyList.size(constraints);c++)
+        {
+            Constraint sc=(Constraint)LazyList.get(constraints,c);
+
+            if (dataConstraint>Constraint.DC_UNSET && sc.hasDataConstraint())
+            {
+                if (sc.getDataConstraint()>dataConstraint)
+                    dataConstraint=sc.getDataConstraint();
+            }
+            else
+                dataConstraint=Constraint.DC_UNSET;
+
+            if (!unauthenticated && !forbidden)
+            {
+                if (sc.getAuthenticate())
+                {
+                    if (sc.isAnyRole())
+                        roles=Constraint.ANY_ROLE;
+                    else
+                    {
+                        String[] scr=sc.getRoles();
+                        if (scr==null || scr.length==0)
+                        {
+                            forbidden=true;
+                            break;
+                        }
+                        else if (roles!=Constraint.ANY_ROLE)
+                        {
+                            for (int r=scr.length;r-->0;)
+                                roles=LazyList.add(roles,scr[r]);
+                        }
+                    }
+                }
+                else
+                    unauthenticated=true;
+            }
+        }
+
+        bh.consume(forbidden);
+        bh.consume(dataConstraint);
+        bh.consume(unauthenticated);
+        bh.consume(roles);
+    }
+}
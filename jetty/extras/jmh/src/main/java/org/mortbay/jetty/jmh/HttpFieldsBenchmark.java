@@ -0,0 +1,70 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.jetty.HttpFields;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link HttpFields} put and get of known and unknown
+ * header names.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HttpFieldsBenchmark
+{
+    final static String[] NAMES={"Host","User-Agent","Accept","Accept-Language","Accept-Encoding","Connection","Cookie","X-Custom-Header"};
+    final static String[] VALUES={"www.example.com","Mozilla/5.0","text/html","en-us","gzip, deflate","keep-alive","JSESSIONID=1xg7yq3ry4zcq","custom"};
+
+    HttpFields _fields;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _fields=new HttpFields();
+        for (int i=0;i<NAMES.length;i++)
+            _fields.put(NAMES[i],VALUES[i]);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public HttpFields put()
+    {
+        HttpFields fields=new HttpFields();
+        for (int i=0;i<NAMES.length;i++)
+            fields.put(NAMES[i],VALUES[i]);
+        return fields;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void get(Blackhole bh)
+    {
+        for (int i=0;i<NAMES.length;i++)
+            bh.consume(_fields.getStringField(NAMES[i]));
+    }
+}
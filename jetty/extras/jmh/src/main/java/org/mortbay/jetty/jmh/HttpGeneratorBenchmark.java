@@ -0,0 +1,84 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.io.ByteArrayEndPoint;
+import org.mortbay.io.SimpleBuffers;
+import org.mortbay.jetty.HttpFields;
+import org.mortbay.jetty.HttpGenerator;
+import org.mortbay.jetty.HttpHeaders;
+import org.mortbay.jetty.HttpVersions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link HttpGenerator} generating the headers of a
+ * typical response with a small body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HttpGeneratorBenchmark
+{
+    final static String CONTENT="<html><body><h1>Hello World</h1></body></html>\n";
+
+    HttpFields _fields;
+    HttpGenerator _generator;
+    ByteArrayEndPoint _endp;
+    Buffer _content;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        Buffer header=new ByteArrayBuffer(4096);
+        Buffer body=new ByteArrayBuffer(8192);
+        _endp=new ByteArrayEndPoint(new byte[0],16384);
+        _generator=new HttpGenerator(new SimpleBuffers(new Buffer[]{header,body}),_endp,header.capacity(),body.capacity());
+        _fields=new HttpFields();
+        _fields.put(HttpHeaders.CONTENT_TYPE_BUFFER,new ByteArrayBuffer("text/html; charset=utf-8"));
+        _fields.putDateField(HttpHeaders.LAST_MODIFIED_BUFFER,System.currentTimeMillis());
+        _fields.put(HttpHeaders.CACHE_CONTROL_BUFFER,new ByteArrayBuffer("no-cache"));
+        _fields.put("Set-Cookie","JSESSIONID=1xg7yq3ry4zcq;Path=/");
+        _fields.put("X-Custom-Header","some custom value");
+        _content=new ByteArrayBuffer(CONTENT);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int generateResponse() throws IOException
+    {
+        _endp.reset();
+        _generator.reset(true);
+        _generator.setVersion(HttpVersions.HTTP_1_1_ORDINAL);
+        _generator.setResponse(200,null);
+        _content.setGetIndex(0);
+        _generator.addContent(_content,HttpGenerator.LAST);
+        _generator.completeHeader(_fields,HttpGenerator.LAST);
+        _generator.complete();
+        return _endp.getOut().length();
+    }
+}
@@ -0,0 +1,126 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.jetty.HttpParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link HttpParser#parseNext()} for a typical browser
+ * request and for a batch of pipelined requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HttpParserBenchmark
+{
+    final static String REQUEST=
+        "GET /context/path/resource.html?query=value&other=thing HTTP/1.1\r\n"+
+        "Host: www.example.com\r\n"+
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:10.0) Gecko/20100101 Firefox/10.0\r\n"+
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"+
+        "Accept-Language: en-us,en;q=0.5\r\n"+
+        "Accept-Encoding: gzip, deflate\r\n"+
+        "Connection: keep-alive\r\n"+
+        "Referer: http://www.example.com/context/index.html\r\n"+
+        "Cookie: JSESSIONID=1xg7yq3ry4zcq; other=value\r\n"+
+        "\r\n";
+
+    final static int PIPELINED=10;
+
+    byte[] _request;
+    byte[] _pipelined;
+    byte[] _buffer;
+    Handler _handler=new Handler();
+
+    /* ------------------------------------------------------------ */
+    public HttpParserBenchmark()
+    {
+        _request=REQUEST.getBytes();
+        StringBuffer buf=new StringBuffer();
+        for (int i=0;i<PIPELINED;i++)
+            buf.append(REQUEST);
+        _pipelined=buf.toString().getBytes();
+        _buffer=new byte[_pipelined.length];
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void parseRequest(Blackhole bh) throws IOException
+    {
+        _handler._bh=bh;
+        HttpParser parser=new HttpParser(new ByteArrayBuffer(_request),_handler);
+        while (!parser.isComplete())
+            parser.parseNext();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED)
+    public void parsePipelined(Blackhole bh) throws IOException
+    {
+        _handler._bh=bh;
+        // reset compacts the buffer, so parse a copy
+        System.arraycopy(_pipelined,0,_buffer,0,_buffer.length);
+        HttpParser parser=new HttpParser(new ByteArrayBuffer(_buffer),_handler);
+        for (int i=0;i<PIPELINED;i++)
+        {
+            while (!parser.isComplete())
+                parser.parseNext();
+            parser.reset(false);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    static class Handler extends HttpParser.EventHandler
+    {
+        Blackhole _bh;
+
+        public void content(Buffer ref) throws IOException
+        {
+            _bh.consume(ref);
+        }
+
+        public void parsedHeader(Buffer name, Buffer value) throws IOException
+        {
+            _bh.consume(name);
+            _bh.consume(value);
+        }
+
+        public void startRequest(Buffer method, Buffer url, Buffer version) throws IOException
+        {
+            _bh.consume(method);
+            _bh.consume(url);
+            _bh.consume(version);
+        }
+
+        public void startResponse(Buffer version, int status, Buffer reason) throws IOException
+        {
+        }
+    }
+}
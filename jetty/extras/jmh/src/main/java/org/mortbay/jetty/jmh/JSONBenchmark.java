@@ -0,0 +1,64 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.util.ajax.JSON;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link JSON} parsing and generation of a cometd like message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JSONBenchmark
+{
+    final static String MESSAGE=
+        "[{\"channel\":\"/chat/demo\",\"clientId\":\"1k5lsxyaq0gqz\",\"id\":\"42\","+
+        "\"data\":{\"user\":\"gregw\",\"chat\":\"Hello \\\"World\\\" \\u00e9\",\"count\":12345,\"ratio\":0.75,\"ok\":true,\"none\":null,"+
+        "\"tags\":[\"one\",\"two\",\"three\"]},\"ext\":{\"ack\":17}}]";
+
+    Object _parsed;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _parsed=JSON.parse(MESSAGE);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public Object parse()
+    {
+        return JSON.parse(MESSAGE);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public String toJSON()
+    {
+        return JSON.toString(_parsed);
+    }
+}
@@ -0,0 +1,67 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.jetty.servlet.PathMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link PathMap#getMatch(String)} for exact, prefix,
+ * suffix and default matches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PathMapBenchmark
+{
+    final static String[] PATHS={"/","/index.html","/images/logo.png","/servlet/Dump/info","/api/v1/users/123","/static/css/site.css","/foo/bar.jsp","/unknown/path"};
+
+    PathMap _map;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _map=new PathMap();
+        _map.put("/","default");
+        _map.put("/index.html","exact");
+        _map.put("/images/*","images");
+        _map.put("/servlet/*","invoker");
+        _map.put("/api/*","api");
+        _map.put("/api/v1/*","api1");
+        _map.put("/static/*","static");
+        _map.put("*.jsp","jsp");
+        _map.put("*.jspx","jsp");
+        _map.put("*.css","css");
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void getMatch(Blackhole bh)
+    {
+        for (int i=0;i<PATHS.length;i++)
+            bh.consume(_map.getMatch(PATHS[i]));
+    }
+}
@@ -0,0 +1,72 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.util.StringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link StringMap} lookups, case sensitive and insensitive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StringMapBenchmark
+{
+    final static String[] KEYS={"Accept","Accept-Charset","Accept-Encoding","Accept-Language","Authorization","Cache-Control","Connection","Content-Length","Content-Type","Cookie","Host","If-Modified-Since","Referer","User-Agent"};
+    final static String[] LOOKUPS={"Host","user-agent","ACCEPT","Accept-Encoding","Cookie","X-Unknown","Content-Type","connection"};
+
+    StringMap _map;
+    StringMap _ignoreCase;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _map=new StringMap();
+        _ignoreCase=new StringMap(true);
+        for (int i=0;i<KEYS.length;i++)
+        {
+            _map.put(KEYS[i],KEYS[i]);
+            _ignoreCase.put(KEYS[i],KEYS[i]);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void get(Blackhole bh)
+    {
+        for (int i=0;i<LOOKUPS.length;i++)
+            bh.consume(_map.get(LOOKUPS[i]));
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void getIgnoreCase(Blackhole bh)
+    {
+        for (int i=0;i<LOOKUPS.length;i++)
+            bh.consume(_ignoreCase.get(LOOKUPS[i]));
+    }
+}
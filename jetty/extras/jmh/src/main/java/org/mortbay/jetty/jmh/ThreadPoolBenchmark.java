@@ -0,0 +1,82 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.thread.QueuedThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link QueuedThreadPool#dispatch(Runnable)} of short jobs.
+ * Run with several benchmark threads (eg -t 4) to measure contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ThreadPoolBenchmark
+{
+    final static int JOBS=100;
+
+    QueuedThreadPool _pool;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp() throws Exception
+    {
+        _pool=new QueuedThreadPool();
+        _pool.setMinThreads(8);
+        _pool.setMaxThreads(64);
+        _pool.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        _pool.stop();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public void dispatch() throws InterruptedException
+    {
+        final CountDownLatch latch=new CountDownLatch(JOBS);
+        Runnable job=new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+        for (int i=0;i<JOBS;i++)
+        {
+            if (!_pool.dispatch(job))
+                latch.countDown();
+        }
+        latch.await();
+    }
+}
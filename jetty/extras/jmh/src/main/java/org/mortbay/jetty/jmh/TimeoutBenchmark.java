@@ -0,0 +1,94 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.thread.Timeout;
+import org.mortbay.thread.WheelTimeout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link Timeout#schedule(Timeout.Task)} and reschedule
+ * with many tasks already scheduled, as for connection idle timeouts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TimeoutBenchmark
+{
+    @Param({"list","wheel"})
+    String type;
+
+    @Param({"10000"})
+    int tasks;
+
+    Timeout _timeout;
+    Timeout.Task[] _scheduled;
+    int _next;
+    long _now;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _timeout="wheel".equals(type)?new WheelTimeout():new Timeout();
+        _timeout.setDuration(30000);
+        _now=System.currentTimeMillis();
+        _timeout.setNow(_now);
+
+        _scheduled=new Timeout.Task[tasks];
+        for (int i=0;i<tasks;i++)
+        {
+            _scheduled[i]=new Timeout.Task();
+            _timeout.setNow(_now+i);
+            _timeout.schedule(_scheduled[i]);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reschedule the oldest task, as when a connection becomes active.
+     */
+    @Benchmark
+    public void schedule()
+    {
+        _timeout.setNow(++_now);
+        Timeout.Task task=_scheduled[_next];
+        if (++_next==_scheduled.length)
+            _next=0;
+        _timeout.schedule(task);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void scheduleAndCancel()
+    {
+        _timeout.setNow(++_now);
+        Timeout.Task task=_scheduled[_next];
+        if (++_next==_scheduled.length)
+            _next=0;
+        _timeout.schedule(task);
+        task.cancel();
+        _timeout.schedule(task);
+    }
+}
@@ -0,0 +1,66 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+
+package org.mortbay.jetty.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.util.MultiMap;
+import org.mortbay.util.StringUtil;
+import org.mortbay.util.UrlEncoded;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/* ------------------------------------------------------------ */
+/** Benchmark of {@link UrlEncoded} decoding of query strings and form content.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UrlEncodedBenchmark
+{
+    final static String QUERY="name=John+Smith&email=john.smith%40example.com&city=San%20Francisco&id=12345&flag&empty=&q=caf%C3%A9+au+lait";
+    final static byte[] FORM=QUERY.getBytes();
+    final static String ENCODED="/path/with%20spaces/and%2Fslashes/caf%C3%A9";
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public MultiMap decodeString()
+    {
+        MultiMap map=new MultiMap();
+        UrlEncoded.decodeTo(QUERY,map,StringUtil.__UTF8);
+        return map;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public MultiMap decodeUtf8Bytes()
+    {
+        MultiMap map=new MultiMap();
+        UrlEncoded.decodeUtf8To(FORM,0,FORM.length,map);
+        return map;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public String decodePath()
+    {
+        return UrlEncoded.decodeString(ENCODED,0,ENCODED.length(),StringUtil.__UTF8);
+    }
+}
@@ -796,6 +796,15 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
         return true;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return false as content must be encrypted by the SSLEngine
+     */
+    public boolean isTransferSupported()
+    {
+        return false;
+    }
+
     /* ------------------------------------------------------------ */
     public SSLEngine getSSLEngine()
     {
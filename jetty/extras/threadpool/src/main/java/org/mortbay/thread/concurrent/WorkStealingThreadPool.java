@@ -0,0 +1,830 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.thread.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.log.Log;
+import org.mortbay.thread.ThreadPool;
+
+/* ------------------------------------------------------------ */
+/** A work stealing pool of threads.
+ * <p>
+ * Jobs dispatched from outside of the pool are added to a lock free
+ * submission queue.  Jobs dispatched by a pool thread (for example when
+ * a continuation is resumed) are pushed onto that thread's own deque.
+ * A thread looking for work takes first from its own deque, then from
+ * the submission queue and then steals from the deques of the other
+ * threads.
+ * <p>
+ * Idle threads park and are woken individually, so that a dispatch takes
+ * no locks when there is an idle thread.  As with {@link org.mortbay.thread.QueuedThreadPool},
+ * a new thread is spawned if no thread is idle and more than spawnOrShrinkAt
+ * jobs are queued, and a thread is stopped if more than spawnOrShrinkAt threads
+ * are idle, at most once every maxIdleTimeMs.
+ *
+ * @see org.mortbay.thread.QueuedThreadPool
+ */
+public class WorkStealingThreadPool extends AbstractLifeCycle implements ThreadPool
+{
+    private final static int __DEQUE_SIZE=256;
+
+    private final static int ACTIVE=0;
+    private final static int IDLE=1;
+    private final static int SIGNALLED=2;
+    private final static int EXITED=3;
+
+    private String _name;
+    private volatile Worker[] _workers=new Worker[0];
+    private final ConcurrentLinkedQueue<Runnable> _submissions=new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicReference<IdleNode> _idleWorkers=new AtomicReference<IdleNode>();
+    private final AtomicInteger _queued=new AtomicInteger();
+    private final AtomicInteger _idle=new AtomicInteger();
+    private final AtomicLong _lastShrink=new AtomicLong();
+    private int _maxQueued;
+
+    private boolean _daemon;
+    private int _id;
+
+    private final Object _threadsLock = new Object();
+    private final Object _joinLock = new Object();
+
+    private int _maxIdleTimeMs=60000;
+    private int _maxThreads=250;
+    private int _minThreads=2;
+    private boolean _warned=false;
+    private int _lowThreads=0;
+    private int _priority= Thread.NORM_PRIORITY;
+    private int _spawnOrShrinkAt=0;
+    private int _maxStopTimeMs;
+
+
+    /* ------------------------------------------------------------------- */
+    public WorkStealingThreadPool()
+    {
+        _name="wstp-"+hashCode();
+    }
+
+    /* ------------------------------------------------------------------- */
+    public WorkStealingThreadPool(int maxThreads)
+    {
+        this();
+        setMaxThreads(maxThreads);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Run job.
+     * @return true
+     */
+    public boolean dispatch(Runnable job)
+    {
+        if (!isRunning() || job==null)
+            return false;
+
+        int queued=_queued.incrementAndGet();
+        if (queued>_maxQueued)
+            _maxQueued=queued;
+
+        Thread thread=Thread.currentThread();
+        if (!(thread instanceof Worker) || ((Worker)thread).getPool()!=this || !((Worker)thread)._deque.push(job))
+            _submissions.offer(job);
+
+        if (!signalIdle() && queued>_spawnOrShrinkAt)
+            newThread();
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Wake the most recently idle worker.
+     * Waking the most recent idle worker keeps its cache warm and
+     * lets the least recently idle workers time out and shrink the pool.
+     * @return true if an idle worker was woken.
+     */
+    private boolean signalIdle()
+    {
+        while (true)
+        {
+            IdleNode node=_idleWorkers.get();
+            if (node==null)
+                return false;
+            if (!_idleWorkers.compareAndSet(node,node._next))
+                continue;
+
+            Worker worker=node._worker;
+            worker._entries.decrementAndGet();
+            if (worker._state.compareAndSet(IDLE,SIGNALLED))
+            {
+                _idle.decrementAndGet();
+                LockSupport.unpark(worker);
+                return true;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the number of idle threads in the pool.
+     * @see #getThreads
+     * @return Number of threads
+     */
+    public int getIdleThreads()
+    {
+        return _idle.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return low resource threads threshhold
+     */
+    public int getLowThreads()
+    {
+        return _lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return maximum queue size
+     */
+    public int getMaxQueued()
+    {
+        return _maxQueued;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the maximum thread idle time.
+     * @see #setMaxIdleTimeMs
+     * @return Max idle time in ms.
+     */
+    public int getMaxIdleTimeMs()
+    {
+        return _maxIdleTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the maximum number of threads.
+     * @see #setMaxThreads
+     * @return maximum number of threads.
+     */
+    public int getMaxThreads()
+    {
+        return _maxThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the minimum number of threads.
+     * @see #setMinThreads
+     * @return minimum number of threads.
+     */
+    public int getMinThreads()
+    {
+        return _minThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The name of the pool.
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the number of threads in the pool.
+     * @see #getIdleThreads
+     * @return Number of threads
+     */
+    public int getThreads()
+    {
+        return _workers.length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the priority of the pool threads.
+     *  @return the priority of the pool threads.
+     */
+    public int getThreadsPriority()
+    {
+        return _priority;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of jobs waiting for a thread, in the submission
+     * queue and in the deques of the pool threads.
+     */
+    public int getQueueSize()
+    {
+        return _queued.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the spawnOrShrinkAt  The number of queued jobs (or idle threads) needed
+     * before the thread pool is grown (or shrunk)
+     */
+    public int getSpawnOrShrinkAt()
+    {
+        return _spawnOrShrinkAt;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param spawnOrShrinkAt The number of queued jobs (or idle threads) needed
+     * before the thread pool is grown (or shrunk)
+     */
+    public void setSpawnOrShrinkAt(int spawnOrShrinkAt)
+    {
+        _spawnOrShrinkAt=spawnOrShrinkAt;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return maximum total time that stop() will wait for threads to die.
+     */
+    public int getMaxStopTimeMs()
+    {
+        return _maxStopTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param stopTimeMs maximum total time that stop() will wait for threads to die.
+     */
+    public void setMaxStopTimeMs(int stopTimeMs)
+    {
+        _maxStopTimeMs = stopTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isDaemon()
+    {
+        return _daemon;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isLowOnThreads()
+    {
+        return _idle.get()==0 && _queued.get()>_lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void join() throws InterruptedException
+    {
+        synchronized (_joinLock)
+        {
+            while (isRunning())
+                _joinLock.wait();
+        }
+
+        while (isStopping())
+            Thread.sleep(100);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setDaemon(boolean daemon)
+    {
+        _daemon=daemon;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param lowThreads low resource threads threshhold
+     */
+    public void setLowThreads(int lowThreads)
+    {
+        _lowThreads = lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the maximum thread idle time.
+     * Threads that are idle for longer than this period may be
+     * stopped.
+     * @see #getMaxIdleTimeMs
+     * @param maxIdleTimeMs Max idle time in ms.
+     */
+    public void setMaxIdleTimeMs(int maxIdleTimeMs)
+    {
+        _maxIdleTimeMs=maxIdleTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the maximum number of threads.
+     * @see #getMaxThreads
+     * @param maxThreads maximum number of threads.
+     */
+    public void setMaxThreads(int maxThreads)
+    {
+        if (isStarted() && maxThreads<_minThreads)
+            throw new IllegalArgumentException("!minThreads<maxThreads");
+        _maxThreads=maxThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the minimum number of threads.
+     * @see #getMinThreads
+     * @param minThreads minimum number of threads
+     */
+    public void setMinThreads(int minThreads)
+    {
+        if (isStarted() && (minThreads<=0 || minThreads>_maxThreads))
+            throw new IllegalArgumentException("!0<=minThreads<maxThreads");
+        _minThreads=minThreads;
+        synchronized (_threadsLock)
+        {
+            while (isStarted() && _workers.length<_minThreads)
+            {
+                newThread();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name Name of the pool to use when naming Threads.
+     */
+    public void setName(String name)
+    {
+        _name= name;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the priority of the pool threads.
+     *  @param priority the new thread priority.
+     */
+    public void setThreadsPriority(int priority)
+    {
+        _priority=priority;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Start the pool.
+     * Construct the minimum number of threads.
+     */
+    protected void doStart() throws Exception
+    {
+        if (_maxThreads<_minThreads || _minThreads<=0)
+            throw new IllegalArgumentException("!0<minThreads<maxThreads");
+
+        _submissions.clear();
+        _idleWorkers.set(null);
+        _queued.set(0);
+        _idle.set(0);
+        _maxQueued=0;
+
+        for (int i=0;i<_minThreads;i++)
+        {
+            newThread();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Stop the pool.
+     * New jobs are no longer accepted, idle threads are woken and active
+     * threads are interrupted.  The method then waits up to
+     * getMaxStopTimeMs() for all threads to stop.
+     */
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+
+        long start=System.currentTimeMillis();
+        for (int i=0;i<100;i++)
+        {
+            Worker[] workers=_workers;
+            for (int w=0;w<workers.length;w++)
+            {
+                LockSupport.unpark(workers[w]);
+                workers[w].interrupt();
+            }
+
+            Thread.yield();
+            if (_workers.length==0 || (_maxStopTimeMs>0 && _maxStopTimeMs < (System.currentTimeMillis()-start)))
+               break;
+
+            try
+            {
+                Thread.sleep(i*100);
+            }
+            catch(InterruptedException e){}
+        }
+
+        if (_workers.length>0)
+            Log.warn(_workers.length+" threads could not be stopped");
+
+        int dropped=_queued.getAndSet(0);
+        if (dropped>0)
+            Log.debug("{} jobs not run",new Integer(dropped));
+        _submissions.clear();
+
+        synchronized (_joinLock)
+        {
+            _joinLock.notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void newThread()
+    {
+        synchronized (_threadsLock)
+        {
+            Worker[] workers=_workers;
+            if (workers.length<_maxThreads)
+            {
+                Worker worker=new Worker();
+                Worker[] grown=new Worker[workers.length+1];
+                System.arraycopy(workers,0,grown,0,workers.length);
+                grown[workers.length]=worker;
+                _workers=grown;
+                worker.setName(worker.hashCode()+"@"+_name+"-"+_id++);
+                worker.start();
+            }
+            else if (!_warned)
+            {
+                _warned=true;
+                Log.debug("Max threads for {}",this);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void removeThread(Worker worker)
+    {
+        synchronized (_threadsLock)
+        {
+            Worker[] workers=_workers;
+            for (int i=0;i<workers.length;i++)
+            {
+                if (workers[i]==worker)
+                {
+                    Worker[] shrunk=new Worker[workers.length-1];
+                    System.arraycopy(workers,0,shrunk,0,i);
+                    System.arraycopy(workers,i+1,shrunk,i,workers.length-i-1);
+                    _workers=shrunk;
+                    break;
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Should an idle thread exit.
+     * At most one thread is stopped every maxIdleTimeMs.
+     */
+    private boolean shrink()
+    {
+        final int threads=_workers.length;
+        if (threads>_minThreads &&
+            (threads>_maxThreads ||
+             _idle.get()>_spawnOrShrinkAt))
+        {
+            long now = System.currentTimeMillis();
+            long last = _lastShrink.get();
+            if ((now-last)>getMaxIdleTimeMs() && _lastShrink.compareAndSet(last,now))
+                return true;
+        }
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    public String dump()
+    {
+        StringBuffer buf = new StringBuffer();
+
+        Worker[] workers=_workers;
+        for (int i=0;i<workers.length;i++)
+        {
+            Worker worker = workers[i];
+            buf.append(worker.getName()).append(" ").append(worker.toString());
+            buf.append(" deque=").append(worker._deque.size());
+            buf.append(worker._state.get()==ACTIVE?" active":" idle").append('\n');
+        }
+        buf.append("submissions=").append(_submissions.size()).append('\n');
+
+        return buf.toString();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name The thread name to stop.
+     * @return true if the thread was found and stopped.
+     * @Deprecated Use {@link #interruptThread(String)} in preference
+     */
+    public boolean stopThread(String name)
+    {
+        Worker[] workers=_workers;
+        for (int i=0;i<workers.length;i++)
+        {
+            if (name.equals(workers[i].getName()))
+            {
+                workers[i].stop();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name The thread name to interrupt.
+     * @return true if the thread was found and interrupted.
+     */
+    public boolean interruptThread(String name)
+    {
+        Worker[] workers=_workers;
+        for (int i=0;i<workers.length;i++)
+        {
+            if (name.equals(workers[i].getName()))
+            {
+                workers[i].interrupt();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Pool thread.
+     */
+    public class Worker extends Thread
+    {
+        final JobDeque _deque=new JobDeque(__DEQUE_SIZE);
+        final AtomicInteger _state=new AtomicInteger(ACTIVE);
+        final AtomicInteger _entries=new AtomicInteger();
+        private int _seed=(int)System.nanoTime()|1;
+
+        /* ------------------------------------------------------------ */
+        Worker()
+        {
+            setDaemon(_daemon);
+            setPriority(_priority);
+        }
+
+        /* ------------------------------------------------------------ */
+        WorkStealingThreadPool getPool()
+        {
+            return WorkStealingThreadPool.this;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Take a job from our deque, the submission queue or another worker.
+         */
+        private Runnable take()
+        {
+            Runnable job=_deque.pop();
+            if (job==null)
+                job=_submissions.poll();
+            if (job==null)
+                job=steal();
+            if (job!=null)
+                _queued.decrementAndGet();
+            return job;
+        }
+
+        /* ------------------------------------------------------------ */
+        private Runnable steal()
+        {
+            Worker[] workers=_workers;
+            int n=workers.length;
+            if (n<=1)
+                return null;
+
+            _seed^=_seed<<13;
+            _seed^=_seed>>>17;
+            _seed^=_seed<<5;
+            int start=(_seed&0x7fffffff)%n;
+            for (int i=0;i<n;i++)
+            {
+                Worker victim=workers[(start+i)%n];
+                if (victim!=this)
+                {
+                    Runnable job=victim._deque.steal();
+                    if (job!=null)
+                        return job;
+                }
+            }
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Wait to be signalled.
+         * @return false if the thread has been idle for the max idle time
+         * and the pool should shrink.
+         */
+        private boolean idle()
+        {
+            _state.set(IDLE);
+            _idle.incrementAndGet();
+            if (_entries.get()==0)
+            {
+                _entries.incrementAndGet();
+                IdleNode node=new IdleNode(this);
+                do
+                {
+                    node._next=_idleWorkers.get();
+                }
+                while (!_idleWorkers.compareAndSet(node._next,node));
+            }
+
+            // Check for a job dispatched before we were visible as idle
+            if (_queued.get()==0 && isRunning())
+            {
+                long deadline=System.nanoTime()+_maxIdleTimeMs*1000000L;
+                while (_state.get()==IDLE && isRunning())
+                {
+                    long wait=deadline-System.nanoTime();
+                    if (wait<=0)
+                    {
+                        // Should we shrink?
+                        if (shrink() && _state.compareAndSet(IDLE,EXITED))
+                        {
+                            _idle.decrementAndGet();
+                            return false;
+                        }
+                        deadline=System.nanoTime()+_maxIdleTimeMs*1000000L;
+                        continue;
+                    }
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            if (_state.compareAndSet(IDLE,ACTIVE))
+                _idle.decrementAndGet();
+            else
+                _state.set(ACTIVE);
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Loop getting jobs and handling them until stopped or shrunk.
+         */
+        public void run()
+        {
+            try
+            {
+                while (isRunning())
+                {
+                    Runnable job=take();
+                    if (job!=null)
+                    {
+                        job.run();
+                        continue;
+                    }
+
+                    if (shrink() || !idle())
+                        return;
+                }
+            }
+            finally
+            {
+                if (_state.getAndSet(EXITED)==IDLE)
+                    _idle.decrementAndGet();
+                removeThread(this);
+
+                // hand on any jobs left in our deque
+                Runnable job;
+                while ((job=_deque.pop())!=null)
+                {
+                    if (isRunning())
+                    {
+                        _submissions.offer(job);
+                        signalIdle();
+                    }
+                    else
+                        _queued.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Entry in the stack of idle workers.
+     * A new entry is pushed for each time a worker becomes idle, so that
+     * entries are never reused and the stack does not suffer from ABA.
+     * A worker has at most one entry in the stack, which may be stale if the
+     * worker has since become active or exited.
+     */
+    private static class IdleNode
+    {
+        final Worker _worker;
+        IdleNode _next;
+
+        IdleNode(Worker worker)
+        {
+            _worker=worker;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Bounded work stealing deque.
+     * The owning worker pushes and pops at the bottom, while other
+     * workers steal from the top (Chase and Lev).
+     */
+    static class JobDeque
+    {
+        private final AtomicReferenceArray<Runnable> _jobs;
+        private final int _mask;
+        private final AtomicLong _top=new AtomicLong();
+        private volatile long _bottom;
+
+        /* ------------------------------------------------------------ */
+        JobDeque(int capacity)
+        {
+            int size=1;
+            while (size<capacity)
+                size<<=1;
+            _jobs=new AtomicReferenceArray<Runnable>(size);
+            _mask=size-1;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Push a job. Called only by the owner.
+         * @return false if the deque is full.
+         */
+        boolean push(Runnable job)
+        {
+            long b=_bottom;
+            if (b-_top.get()>_mask)
+                return false;
+            _jobs.set((int)(b&_mask),job);
+            _bottom=b+1;
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Pop the most recently pushed job. Called only by the owner.
+         */
+        Runnable pop()
+        {
+            long b=_bottom-1;
+            _bottom=b;
+            long t=_top.get();
+            if (t>b)
+            {
+                _bottom=b+1;
+                return null;
+            }
+
+            int index=(int)(b&_mask);
+            Runnable job=_jobs.get(index);
+            if (t==b)
+            {
+                // last job, so race any thieves for it
+                if (_top.compareAndSet(t,t+1))
+                    _jobs.set(index,null);
+                else
+                    job=null;
+                _bottom=b+1;
+            }
+            else
+                _jobs.set(index,null);
+            return job;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Steal the least recently pushed job.
+         * @return a job or null if the deque is empty or the race was lost.
+         */
+        Runnable steal()
+        {
+            long t=_top.get();
+            long b=_bottom;
+            if (t>=b)
+                return null;
+            int index=(int)(t&_mask);
+            Runnable job=_jobs.get(index);
+            if (!_top.compareAndSet(t,t+1))
+                return null;
+            // the slot may already hold a job pushed after the wrap
+            _jobs.compareAndSet(index,job,null);
+            return job;
+        }
+
+        /* ------------------------------------------------------------ */
+        int size()
+        {
+            long size=_bottom-_top.get();
+            return size<0?0:(int)size;
+        }
+    }
+}
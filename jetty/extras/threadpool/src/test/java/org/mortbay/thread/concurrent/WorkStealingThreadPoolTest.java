@@ -0,0 +1,179 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.thread.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class WorkStealingThreadPoolTest extends TestCase
+{
+    final AtomicInteger _jobs=new AtomicInteger();
+    volatile long _sleep=100;
+
+    Runnable _job = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                Thread.sleep(_sleep);
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
+            }
+            _jobs.incrementAndGet();
+        }
+    };
+
+    public void testDispatch() throws Exception
+    {
+        _sleep=100;
+        WorkStealingThreadPool tp= new WorkStealingThreadPool();
+        tp.setMinThreads(5);
+        tp.setMaxThreads(10);
+        tp.setMaxIdleTimeMs(1000);
+        tp.setSpawnOrShrinkAt(2);
+
+        tp.start();
+        Thread.sleep(500);
+
+        assertEquals(5,tp.getThreads());
+        assertEquals(5,tp.getIdleThreads());
+        tp.dispatch(_job);
+        tp.dispatch(_job);
+        assertEquals(5,tp.getThreads());
+        assertEquals(3,tp.getIdleThreads());
+        Thread.sleep(500);
+        assertEquals(5,tp.getThreads());
+        assertEquals(5,tp.getIdleThreads());
+        assertEquals(2,_jobs.get());
+
+        for (int i=0;i<100;i++)
+            tp.dispatch(_job);
+
+        assertTrue(tp.getQueueSize()>10);
+        assertTrue(tp.getIdleThreads()<=1);
+
+        Thread.sleep(2000);
+
+        assertEquals(102,_jobs.get());
+        assertEquals(0,tp.getQueueSize());
+        assertTrue(tp.getIdleThreads()>5);
+
+        int threads=tp.getThreads();
+        assertTrue(threads>5);
+        Thread.sleep(1500);
+        assertTrue(tp.getThreads()<threads);
+
+        tp.stop();
+        assertEquals(0,tp.getThreads());
+        assertFalse(tp.dispatch(_job));
+    }
+
+    public void testShrink() throws Exception
+    {
+        WorkStealingThreadPool tp= new WorkStealingThreadPool();
+        tp.setMinThreads(2);
+        tp.setMaxThreads(10);
+        tp.setMaxIdleTimeMs(400);
+        tp.setSpawnOrShrinkAt(2);
+
+        tp.start();
+        Thread.sleep(100);
+        assertEquals(2,tp.getThreads());
+        assertEquals(2,tp.getIdleThreads());
+        _sleep=200;
+        for (int i=0;i<22;i++)
+            tp.dispatch(_job);
+        Thread.sleep(100);
+        assertEquals(10,tp.getThreads());
+        assertEquals(0,tp.getIdleThreads());
+
+        _sleep=1;
+        for (int i=0;i<500;i++)
+        {
+            tp.dispatch(_job);
+            Thread.sleep(10);
+        }
+        assertEquals(2,tp.getThreads());
+        assertEquals(2,tp.getIdleThreads());
+        tp.stop();
+    }
+
+    public void testSteal() throws Exception
+    {
+        final WorkStealingThreadPool tp= new WorkStealingThreadPool();
+        tp.setMinThreads(4);
+        tp.setMaxThreads(4);
+        tp.start();
+        Thread.sleep(100);
+
+        final int jobs=10000;
+        final CountDownLatch latch=new CountDownLatch(jobs);
+        final CountDownLatch blocked=new CountDownLatch(1);
+        final Runnable job = new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+
+        // dispatch from a pool thread that then stays busy, so that
+        // the jobs on its deque can only be run by other threads.
+        tp.dispatch(new Runnable()
+        {
+            public void run()
+            {
+                for (int i=0;i<jobs;i++)
+                    tp.dispatch(job);
+                try
+                {
+                    blocked.await();
+                }
+                catch(InterruptedException e)
+                {
+                }
+            }
+        });
+
+        assertTrue(latch.await(10,TimeUnit.SECONDS));
+        blocked.countDown();
+        Thread.sleep(100);
+        assertEquals(0,tp.getQueueSize());
+        assertEquals(4,tp.getIdleThreads());
+        assertTrue(tp.getMaxQueued()>0);
+        tp.stop();
+    }
+
+    public void testDump() throws Exception
+    {
+        WorkStealingThreadPool tp= new WorkStealingThreadPool();
+        tp.setName("test");
+        tp.setMinThreads(2);
+        tp.start();
+        Thread.sleep(100);
+
+        String dump=tp.dump();
+        assertTrue(dump.indexOf("@test-0")>0);
+        assertTrue(dump.indexOf("@test-1")>0);
+        assertFalse(tp.interruptThread("unknown"));
+        tp.stop();
+    }
+}
@@ -20,6 +20,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
@@ -39,10 +40,13 @@ import org.mortbay.log.Log;
 public class ChannelEndPoint implements EndPoint
 {
     protected final ByteChannel _channel;
-    protected final ByteBuffer[] _gather2=new ByteBuffer[2];
+    protected final ByteBuffer[] _gather=new ByteBuffer[3];
+    private final Buffer[] _flush=new Buffer[3];
     protected final Socket _socket;
     protected final InetSocketAddress _local;
     protected final InetSocketAddress _remote;
+    private long _bytesWritten;
+    private long _bytesCopied;
 
     /**
      *
@@ -189,6 +193,8 @@ public class ChannelEndPoint implements EndPoint
         {
             throw new IOException("Not Implemented");
         }
+        if (len>0)
+            _bytesWritten+=len;
         return len;
     }
 
@@ -199,103 +205,199 @@ public class ChannelEndPoint implements EndPoint
     {
         int length=0;
 
-        Buffer buf0 = header==null?null:header.buffer();
-        Buffer buf1 = buffer==null?null:buffer.buffer();
-
-        if (_channel instanceof GatheringByteChannel &&
-            header!=null && header.length()!=0 && header instanceof NIOBuffer &&
-            buffer!=null && buffer.length()!=0 && buffer instanceof NIOBuffer)
+        synchronized(this)
         {
-            NIOBuffer nbuf0 = (NIOBuffer)buf0;
-            ByteBuffer bbuf0=nbuf0.getByteBuffer();
-            NIOBuffer nbuf1 = (NIOBuffer)buf1;
-            ByteBuffer bbuf1=nbuf1.getByteBuffer();
+            int n=0;
+            if (header!=null && header.length()>0)
+                _flush[n++]=header;
+            if (buffer!=null && buffer.length()>0)
+                _flush[n++]=buffer;
+            if (trailer!=null && trailer.length()>0)
+                _flush[n++]=trailer;
 
-            synchronized(this)
+            try
             {
-                // We must sync because buffers may be shared (eg nbuf1 is likely to be cached content).
-                synchronized(bbuf0)
+                if (n==1)
+                    length=flush(_flush[0]);
+                else if (n>1 && isGatherable(n))
                 {
-                    synchronized(bbuf1)
-                    {
-                        try
-                        {
-                            // Adjust position indexs of buf0 and buf1
-                            bbuf0.position(header.getIndex());
-                            bbuf0.limit(header.putIndex());
-                            bbuf1.position(buffer.getIndex());
-                            bbuf1.limit(buffer.putIndex());
-
-                            _gather2[0]=bbuf0;
-                            _gather2[1]=bbuf1;
-
-                            // do the gathering write.
-                            length=(int)((GatheringByteChannel)_channel).write(_gather2);
-
-                            int hl=header.length();
-                            if (length>hl)
-                            {
-                                header.clear();
-                                buffer.skip(length-hl);
-                            }
-                            else if (length>0)
-                            {
-                                header.skip(length);
-                            }
-
-                        }
-                        finally
-                        {
-                            // adjust buffer 0 and 1
-                            if (!header.isImmutable())
-                                header.setGetIndex(bbuf0.position());
-                            if (!buffer.isImmutable())
-                                buffer.setGetIndex(bbuf1.position());
-
-                            bbuf0.position(0);
-                            bbuf1.position(0);
-                            bbuf0.limit(bbuf0.capacity());
-                            bbuf1.limit(bbuf1.capacity());
-                        }
-                    }
+                    length=gather(0,n);
+                    if (length>0)
+                        _bytesWritten+=length;
+                }
+                else if (n>1)
+                    length=copyFlush(header,buffer,trailer);
+            }
+            finally
+            {
+                for (int i=n;i-->0;)
+                {
+                    _flush[i]=null;
+                    _gather[i]=null;
                 }
             }
         }
-        else
+
+        return length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* 
+     * @return True if the buffers to flush can be written with a single gathering write.
+     */
+    private boolean isGatherable(int n)
+    {
+        if (!(_channel instanceof GatheringByteChannel))
+            return false;
+        for (int i=0;i<n;i++)
+        {
+            Buffer buf=_flush[i].buffer();
+            if (!(buf instanceof NIOBuffer) && _flush[i].array()==null)
+                return false;
+            // The position of a ByteBuffer can only be set for one of the buffers
+            for (int j=0;j<i;j++)
+                if (_flush[j].buffer()==buf)
+                    return false;
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Do a gathering write of the buffers to flush.
+     * The ByteBuffers of NIO buffers are used directly and array buffers are
+     * wrapped, so that direct and indirect buffers can be mixed without copying.
+     * The ByteBuffer of each NIO buffer is locked while its position is set, as
+     * it may be shared (eg cached content), so this method recurses to hold
+     * the locks for the write.
+     * @return The number of bytes written
+     */
+    private int gather(int i, int n) throws IOException
+    {
+        if (i==n)
+            return (int)((GatheringByteChannel)_channel).write(_gather,0,n);
+
+        Buffer buffer=_flush[i];
+        Buffer buf=buffer.buffer();
+        if (buf instanceof NIOBuffer)
         {
-            if (header!=null)
+            ByteBuffer bbuf=((NIOBuffer)buf).getByteBuffer();
+            synchronized(bbuf)
             {
-                if (buffer!=null && buffer.length()>0 && header.space()>buffer.length())
+                int written=0;
+                try
                 {
-                    header.put(buffer);
-                    buffer.clear();
+                    bbuf.position(buffer.getIndex());
+                    bbuf.limit(buffer.putIndex());
+                    _gather[i]=bbuf;
+                    int length=gather(i+1,n);
+                    written=bbuf.position()-buffer.getIndex();
+                    return length;
                 }
-                if (trailer!=null && trailer.length()>0 && header.space()>trailer.length())
+                finally
                 {
-                    header.put(trailer);
-                    trailer.clear();
+                    if (written>0)
+                        buffer.skip(written);
+                    bbuf.position(0);
+                    bbuf.limit(bbuf.capacity());
                 }
             }
+        }
 
-            // flush header
-            if (header!=null && header.length()>0)
-                length=flush(header);
-
-            // flush buffer
-            if ((header==null || header.length()==0) &&
-                 buffer!=null && buffer.length()>0)
-                length+=flush(buffer);
-
-            // flush trailer
-            if ((header==null || header.length()==0) &&
-                (buffer==null || buffer.length()==0) &&
-                 trailer!=null && trailer.length()>0)
-                length+=flush(trailer);
+        ByteBuffer wrapped=ByteBuffer.wrap(buffer.array(),buffer.getIndex(),buffer.length());
+        _gather[i]=wrapped;
+        int length=gather(i+1,n);
+        int written=wrapped.position()-buffer.getIndex();
+        if (written>0)
+            buffer.skip(written);
+        return length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Flush the buffers in turn for channels that cannot gather, copying the
+     * buffer and trailer into the header if there is space.
+     */
+    private int copyFlush(Buffer header, Buffer buffer, Buffer trailer) throws IOException
+    {
+        int length=0;
+        if (header!=null)
+        {
+            if (buffer!=null && buffer.length()>0 && header.space()>buffer.length())
+            {
+                _bytesCopied+=header.put(buffer);
+                buffer.clear();
+            }
+            if (trailer!=null && trailer.length()>0 && header.space()>trailer.length())
+            {
+                _bytesCopied+=header.put(trailer);
+                trailer.clear();
+            }
         }
 
+        // flush header
+        if (header!=null && header.length()>0)
+            length=flush(header);
+
+        // flush buffer
+        if ((header==null || header.length()==0) &&
+             buffer!=null && buffer.length()>0)
+            length+=flush(buffer);
+
+        // flush trailer
+        if ((header==null || header.length()==0) &&
+            (buffer==null || buffer.length()==0) &&
+             trailer!=null && trailer.length()>0)
+            length+=flush(trailer);
+
         return length;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total number of bytes written to the channel by this endpoint.
+     */
+    public long getBytesWritten()
+    {
+        return _bytesWritten;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes written that were first copied into another
+     * buffer, because the channel does not support gathering writes or the buffers
+     * could not be gathered.  The remaining bytes written were written directly
+     * from the buffers they were generated in.
+     */
+    public long getBytesCopied()
+    {
+        return _bytesCopied;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if file content may be transferred directly to the channel
+     * with {@link #transfer(FileChannel, long, long)}.  Endpoints that must
+     * transform written content (eg SSL) return false.
+     */
+    public boolean isTransferSupported()
+    {
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Transfer a region of a file directly to the channel.
+     * The bytes are written with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * which may avoid copying them through user space.
+     * @param file The file to transfer from
+     * @param position The position within the file of the first byte to transfer
+     * @param count The maximum number of bytes to transfer
+     * @return The number of bytes transferred, which may be zero if the
+     * channel is non blocking and not writable.
+     */
+    public long transfer(FileChannel file, long position, long count) throws IOException
+    {
+        return file.transferTo(position,count,_channel);
+    }
+
     /**
      * @return Returns the channel.
      */
@@ -16,6 +16,7 @@ package org.mortbay.io.nio;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -223,6 +224,16 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
         return l;
     }
 
+    /* ------------------------------------------------------------ */
+    /*
+     */
+    public long transfer(FileChannel file, long position, long count) throws IOException
+    {
+        long l = super.transfer(file, position, count);
+        _writable = l > 0;
+        return l;
+    }
+
     /* ------------------------------------------------------------ */
     /*
      * Allows thread to block waiting for further events.
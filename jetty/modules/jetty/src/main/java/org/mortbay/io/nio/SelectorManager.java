@@ -31,12 +31,20 @@ import org.mortbay.io.Connection;
 import org.mortbay.io.EndPoint;
 import org.mortbay.log.Log;
 import org.mortbay.thread.Timeout;
+import org.mortbay.thread.WheelTimeout;
 
 
 /* ------------------------------------------------------------ */
 /**
  * The Selector Manager manages and number of SelectSets to allow
  * NIO scheduling to scale to large numbers of connections.
+ * <p>
+ * New connections are registered with the least loaded SelectSet, where the
+ * load is the number of registered keys plus the number of queued changes. 
+ * Each SelectSet keeps statistics of its keys, selects, wakeups, the time
+ * spent handling each select and the number of times the selector has
+ * been rebuilt to work around JVM spin bugs, so that imbalance between
+ * the sets is visible.
  * 
  * @author gregw
  *
@@ -51,6 +59,7 @@ public abstract class SelectorManager extends AbstractLifeCycle
     private static final int __BUSY_KEY=Integer.getInteger("org.mortbay.io.nio.BUSY_KEY",-1).intValue();
     
     private boolean _delaySelectKeyUpdate=true;
+    private boolean _useTimeoutWheel;
     private long _maxIdleTime;
     private long _lowResourcesConnections;
     private long _lowResourcesMaxIdleTime;
@@ -58,6 +67,16 @@ public abstract class SelectorManager extends AbstractLifeCycle
     private int _selectSets=1;
     private volatile int _set;
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A number of select sets suitable for the available processors:
+     * one for every 4 processors, but at least one.
+     */
+    public static int getDefaultSelectSets()
+    {
+        return Math.max(1,(Runtime.getRuntime().availableProcessors()+3)/4);
+    }
+    
     /* ------------------------------------------------------------ */
     /**
      * @param maxIdleTime The maximum period in milli seconds that a connection may be idle before it is closed.
@@ -106,6 +125,26 @@ public abstract class SelectorManager extends AbstractLifeCycle
         return _delaySelectKeyUpdate;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the idle and retry timeouts use a {@link WheelTimeout}.
+     */
+    public boolean getUseTimeoutWheel()
+    {
+        return _useTimeoutWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param useTimeoutWheel If true, the idle and retry timeouts of each select set
+     * use a {@link WheelTimeout}, so that scheduling and cancelling a timeout is O(1)
+     * rather than O(n) in the number of connections. Takes effect when next started.
+     */
+    public void setUseTimeoutWheel(boolean useTimeoutWheel)
+    {
+        _useTimeoutWheel=useTimeoutWheel;
+    }
+
     /* ------------------------------------------------------------ */
     /** Register a channel
      * @param channel
@@ -114,16 +153,37 @@ public abstract class SelectorManager extends AbstractLifeCycle
      */
     public void register(SocketChannel channel, Object att) throws IOException
     {
-        int s=_set++; 
-        s=s%_selectSets;
         SelectSet[] sets=_selectSet;
         if (sets!=null)
         {
-            SelectSet set=sets[s];
+            SelectSet set=leastLoaded(sets);
             set.addChange(channel,att);
             set.wakeup();
         }
     }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return The SelectSet with the least keys and queued changes. Equally loaded
+     * sets are chosen in turn.
+     */
+    private SelectSet leastLoaded(SelectSet[] sets)
+    {
+        int start=(_set++&0x7fffffff)%sets.length;
+        SelectSet least=sets[start];
+        int least_load=least.getLoad();
+        for (int i=1;i<sets.length && least_load>0;i++)
+        {
+            SelectSet set=sets[(start+i)%sets.length];
+            int load=set.getLoad();
+            if (load<least_load)
+            {
+                least=set;
+                least_load=load;
+            }
+        }
+        return least;
+    }
     
     /* ------------------------------------------------------------ */
     /** Register a serverchannel
@@ -134,7 +194,7 @@ public abstract class SelectorManager extends AbstractLifeCycle
     public void register(ServerSocketChannel acceptChannel) throws IOException
     {
         int s=_set++; 
-        s=s%_selectSets;
+        s=(s&0x7fffffff)%_selectSets;
         SelectSet set=_selectSet[s];
         set.addChange(acceptChannel);
         set.wakeup();
@@ -193,6 +253,30 @@ public abstract class SelectorManager extends AbstractLifeCycle
     }
 
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @param i The index of the SelectSet
+     * @return The SelectSet or null if the manager is not started.
+     */
+    public SelectSet getSelectSet(int i)
+    {
+        SelectSet[] sets=_selectSet;
+        if (sets==null || i<0 || i>=sets.length)
+            return null;
+        return sets[i];
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reset the statistics of all SelectSets.
+     */
+    public void resetStatistics()
+    {
+        SelectSet[] sets=_selectSet;
+        for (int i=0;sets!=null && i<sets.length;i++)
+            sets[i].resetStatistics();
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @param delaySelectKeyUpdate
@@ -281,7 +365,6 @@ public abstract class SelectorManager extends AbstractLifeCycle
         private transient int _change;
         private transient List[] _changes;
         private transient Timeout _idleTimeout;
-        private transient int _nextSet;
         private transient Timeout _retryTimeout;
         private transient Selector _selector;
         private transient int _setID;
@@ -299,14 +382,22 @@ public abstract class SelectorManager extends AbstractLifeCycle
         private int _jvmFix1;
         private int _jvmFix2;
         
+        // statistics, which are only approximate if read by other threads
+        private long _totalSelects;
+        private long _wakeups;
+        private long _rebuilds;
+        private long _loops;
+        private long _loopTime;
+        private long _loopTimeMax;
+        
         /* ------------------------------------------------------------ */
         SelectSet(int acceptorID) throws Exception
         {
             _setID=acceptorID;
 
-            _idleTimeout = new Timeout(this);
+            _idleTimeout = _useTimeoutWheel?new WheelTimeout(this):new Timeout(this);
             _idleTimeout.setDuration(getMaxIdleTime());
-            _retryTimeout = new Timeout(this);
+            _retryTimeout = _useTimeoutWheel?new WheelTimeout(this):new Timeout(this);
             _retryTimeout.setDuration(0L);
 
             // create a selector;
@@ -356,6 +447,8 @@ public abstract class SelectorManager extends AbstractLifeCycle
         public void doSelect() throws IOException
         {
             SelectionKey key=null;
+            long loop_start=System.currentTimeMillis();
+            long select_time=0;
             
             try
             {
@@ -500,6 +593,8 @@ public abstract class SelectorManager extends AbstractLifeCycle
                     _idleTimeout.setNow(now);
                     _retryTimeout.setNow(now);
                     _selects++;
+                    _totalSelects++;
+                    select_time=now-before;
 
                     // Look for JVM bugs over a monitor period.
                     // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6403933
@@ -562,6 +657,7 @@ public abstract class SelectorManager extends AbstractLifeCycle
                             {
                                 // BLOODY SUN BUG !!!  Try refreshing the entire selector.
                                 _jvmFix1++;
+                                _rebuilds++;
                                 
                                 final Selector new_selector = Selector.open();
                                 Iterator iterator = _selector.keys().iterator();
@@ -651,6 +747,7 @@ public abstract class SelectorManager extends AbstractLifeCycle
                 {
                     selector.selectNow();
                     _selects++;
+                    _totalSelects++;
                 }
 
                 // have we been destroyed while sleeping
@@ -689,15 +786,13 @@ public abstract class SelectorManager extends AbstractLifeCycle
 
                             channel.configureBlocking(false);
 
-                            // TODO make it reluctant to leave 0
-                            _nextSet=++_nextSet%_selectSet.length;
-
                             // Is this for this selectset
-                            if (_nextSet==_setID)
+                            SelectSet set=leastLoaded(_selectSet);
+                            if (set==this)
                             {
                                 // bind connections to this select set.
-                                SelectionKey cKey = channel.register(_selectSet[_nextSet].getSelector(), SelectionKey.OP_READ);
-                                SelectChannelEndPoint endpoint=newEndPoint(channel,_selectSet[_nextSet],cKey);
+                                SelectionKey cKey = channel.register(selector, SelectionKey.OP_READ);
+                                SelectChannelEndPoint endpoint=newEndPoint(channel,this,cKey);
                                 cKey.attach(endpoint);
                                 if (endpoint != null)
                                     endpoint.dispatch();
@@ -705,8 +800,8 @@ public abstract class SelectorManager extends AbstractLifeCycle
                             else
                             {
                                 // nope - give it to another.
-                                _selectSet[_nextSet].addChange(channel);
-                                _selectSet[_nextSet].wakeup();
+                                set.addChange(channel);
+                                set.wakeup();
                             }
                         }
                         else if (key.isConnectable())
@@ -775,6 +870,12 @@ public abstract class SelectorManager extends AbstractLifeCycle
                 _idleTimeout.tick(now);
                 _retryTimeout.tick(now);
                 
+                // time spent handling this select
+                long loop=System.currentTimeMillis()-loop_start-select_time;
+                _loops++;
+                _loopTime+=loop;
+                if (loop>_loopTimeMax)
+                    _loopTimeMax=loop;
             }
             catch (ClosedSelectorException e)
             {
@@ -828,7 +929,130 @@ public abstract class SelectorManager extends AbstractLifeCycle
         {
             Selector selector = _selector;
             if (selector!=null)
+            {
+                _wakeups++;
                 selector.wakeup();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The index of this SelectSet in its manager.
+         */
+        public int getSetID()
+        {
+            return _setID;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of keys registered with the selector.
+         */
+        public int getKeys()
+        {
+            Selector selector = _selector;
+            if (selector==null)
+                return 0;
+            try
+            {
+                return selector.keys().size();
+            }
+            catch(ClosedSelectorException e)
+            {
+                Log.ignore(e);
+                return 0;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of changes queued for the next select.
+         */
+        public int getChanges()
+        {
+            synchronized (_changes)
+            {
+                return _changes[_change].size();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of keys plus the number of queued changes.
+         */
+        public int getLoad()
+        {
+            return getKeys()+getChanges();
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of selects since the statistics were reset.
+         */
+        public long getSelects()
+        {
+            return _totalSelects;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of wakeups since the statistics were reset.
+         */
+        public long getWakeups()
+        {
+            return _wakeups;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of times the selector has been rebuilt
+         * to work around JVM spin bugs since the statistics were reset.
+         */
+        public long getRebuilds()
+        {
+            return _rebuilds;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The average time in ms spent handling the changes and selected keys of a select.
+         */
+        public long getLoopTimeAvg()
+        {
+            long loops=_loops;
+            return loops==0?0:_loopTime/loops;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The maximum time in ms spent handling the changes and selected keys of a select.
+         */
+        public long getLoopTimeMax()
+        {
+            return _loopTimeMax;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void resetStatistics()
+        {
+            _totalSelects=0;
+            _wakeups=0;
+            _rebuilds=0;
+            _loops=0;
+            _loopTime=0;
+            _loopTimeMax=0;
+        }
+
+        /* ------------------------------------------------------------ */
+        public String toString()
+        {
+            return "SelectSet@"+_setID+
+            "{keys="+getKeys()+
+            ",changes="+getChanges()+
+            ",selects="+_totalSelects+
+            ",wakeups="+_wakeups+
+            ",loop="+getLoopTimeAvg()+"/"+_loopTimeMax+"ms"+
+            ",rebuilds="+_rebuilds+"}";
         }
 
         /* ------------------------------------------------------------ */
@@ -14,15 +14,30 @@
 
 package org.mortbay.jetty;
 
-import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.mortbay.component.AbstractLifeCycle;
 import org.mortbay.io.Buffer;
 import org.mortbay.io.Buffers;
+import org.mortbay.log.Log;
 
 /* ------------------------------------------------------------ */
 /** Abstract Buffer pool.
- * simple unbounded pool of buffers.
+ * <p>
+ * Buffers are pooled in a single arena shared by all threads, with a pool
+ * for each of the header, request and response buffer sizes and for a few
+ * other sizes as they are requested. Memory used by the pools thus scales
+ * with the number of buffers used concurrently (ie active connections) rather
+ * than the number of threads.  The pooled buffers are those created by
+ * {@link #newBuffer(int)}, so the arena holds direct and indirect NIO buffers
+ * as the connector creates them.
+ * <p>
+ * The memory held by idle pooled buffers is limited by {@link #setMaxPooledBufferMemory(long)}.
+ * If debug is enabled when started, buffers that have not been returned when
+ * stopped are logged with the stack that got them.
+ * 
  * @author gregw
  *
  */
@@ -31,20 +46,11 @@ public abstract class AbstractBuffers extends AbstractLifeCycle implements Buffe
     private int _headerBufferSize=4*1024;
     private int _requestBufferSize=8*1024;
     private int _responseBufferSize=24*1024;
+    private long _maxPooledBufferMemory=32*1024*1024;
 
-    final static private int __HEADER=0;
-    final static private int __REQUEST=1;
-    final static private int __RESPONSE=2;
-    final static private int __OTHER=3;
-    final private int[] _pool={2,1,1,2};
-
-    private final ThreadLocal _buffers=new ThreadLocal()
-    {
-        protected Object initialValue()
-        {
-            return new ThreadBuffers(_pool[__HEADER],_pool[__REQUEST],_pool[__RESPONSE],_pool[__OTHER]);
-        }
-    };
+    final static private int __MAX_POOLS=8;
+    private volatile Pool[] _pools;
+    private Map _leaks;
    
     public AbstractBuffers()
     {
@@ -55,76 +61,113 @@ public abstract class AbstractBuffers extends AbstractLifeCycle implements Buffe
 
     public Buffer getBuffer(final int size )
     {
-        final int set = (size==_headerBufferSize)?__HEADER
-                :(size==_responseBufferSize)?__RESPONSE
-                        :(size==_requestBufferSize)?__REQUEST:__OTHER;
-
-        final ThreadBuffers thread_buffers = (ThreadBuffers)_buffers.get();
+        final Pool pool=getPool(size);
+        Buffer buffer=pool==null?null:pool.get();
+        if (buffer==null)
+        {
+            buffer=newBuffer(size);
+            if (pool!=null)
+                pool.allocated();
+        }
 
-        final Buffer[] buffers=thread_buffers._buffers[set];
-        for (int i=0;i<buffers.length;i++)
+        final Map leaks=_leaks;
+        if (leaks!=null)
         {
-            final Buffer b=buffers[i];
-            if (b!=null && b.capacity()==size)
+            synchronized(leaks)
             {
-                buffers[i]=null;
-                return b;
+                leaks.put(buffer,new Throwable("getBuffer "+size));
             }
         }
-
-        return newBuffer(size);
+        return buffer;
     }
 
     public void returnBuffer( Buffer buffer )
     {
-        buffer.clear();
-        if (buffer.isVolatile() || buffer.isImmutable())
-            return;
-
-        int size=buffer.capacity();
-        final int set = (size==_headerBufferSize)?__HEADER
-                :(size==_responseBufferSize)?__RESPONSE
-                        :(size==_requestBufferSize)?__REQUEST:__OTHER;
-        
-        final ThreadBuffers thread_buffers = (ThreadBuffers)_buffers.get();
-        final Buffer[] buffers=thread_buffers._buffers[set];
-        for (int i=0;i<buffers.length;i++)
+        final Map leaks=_leaks;
+        if (leaks!=null)
         {
-            if (buffers[i]==null)
+            synchronized(leaks)
             {
-                buffers[i]=buffer;
-                return;
+                if (leaks.remove(buffer)==null)
+                    Log.debug("returned buffer not from pool {}",buffer);
             }
         }
 
+        buffer.clear();
+        int size=buffer.capacity();
+        final Pool pool=getPool(size);
+        if (pool==null)
+            return;
+
+        if (buffer.isVolatile() || buffer.isImmutable() || getPooledBufferMemory()+size>_maxPooledBufferMemory)
+            pool.dropped();
+        else
+            pool.put(buffer);
+    }
+
+    /* ------------------------------------------------------------ */
+    /* 
+     * @return The pool for buffers of the size, which is created if there
+     * are less than __MAX_POOLS pools, or null.
+     */
+    private Pool getPool(int size)
+    {
+        Pool[] pools=_pools;
+        if (pools==null)
+            return null;
+        for (int i=0;i<pools.length;i++)
+            if (pools[i]._size==size)
+                return pools[i];
+
+        synchronized(this)
+        {
+            pools=_pools;
+            if (pools==null || pools.length>=__MAX_POOLS)
+                return null;
+            for (int i=0;i<pools.length;i++)
+                if (pools[i]._size==size)
+                    return pools[i];
+
+            Pool[] added=new Pool[pools.length+1];
+            System.arraycopy(pools,0,added,0,pools.length);
+            added[pools.length]=new Pool(size);
+            _pools=added;
+            return added[pools.length];
+        }
     }
 
     protected void doStart()
         throws Exception
     {
         super.doStart();
-        if (_headerBufferSize==_requestBufferSize && _headerBufferSize==_responseBufferSize)
-        {
-            _pool[__HEADER]+=_pool[__REQUEST]+_pool[__RESPONSE];
-            _pool[__REQUEST]=0;
-            _pool[__RESPONSE]=0;
-        }
-        else if (_headerBufferSize==_requestBufferSize)
-        {
-            _pool[__HEADER]+=_pool[__REQUEST];
-            _pool[__REQUEST]=0;
-        }
-        else if (_headerBufferSize==_responseBufferSize)
+        
+        synchronized(this)
         {
-            _pool[__HEADER]+=_pool[__RESPONSE];
-            _pool[__RESPONSE]=0;
+            Pool[] pools=new Pool[]{new Pool(_headerBufferSize)};
+            _pools=pools;
+            getPool(_requestBufferSize);
+            getPool(_responseBufferSize);
         }
-        else if (_requestBufferSize==_responseBufferSize)
+        _leaks=Log.isDebugEnabled()?new IdentityHashMap():null;
+    }
+
+    protected void doStop()
+        throws Exception
+    {
+        final Map leaks=_leaks;
+        if (leaks!=null)
         {
-            _pool[__RESPONSE]+=_pool[__REQUEST];
-            _pool[__REQUEST]=0;
+            synchronized(leaks)
+            {
+                if (leaks.size()>0)
+                    Log.debug("{} buffers not returned to {}",new Integer(leaks.size()),this);
+                for (Iterator i=leaks.values().iterator();i.hasNext();)
+                    Log.debug((Throwable)i.next());
+            }
         }
-
+        _leaks=null;
+        _pools=null;
+        super.doStop();
     }
 
     /**
@@ -181,19 +224,128 @@ public abstract class AbstractBuffers extends AbstractLifeCycle implements Buffe
         _responseBufferSize = responseBufferSize;
     }
     
+    /**
+     * @return The maximum memory in bytes of the idle buffers held by the pools.
+     */
+    public long getMaxPooledBufferMemory()
+    {
+        return _maxPooledBufferMemory;
+    }
+
+    /**
+     * @param maxPooledBufferMemory The maximum memory in bytes of the idle buffers held by the pools.
+     * Buffers returned when the pools hold this much memory are discarded.
+     */
+    public void setMaxPooledBufferMemory( long maxPooledBufferMemory )
+    {
+        _maxPooledBufferMemory = maxPooledBufferMemory;
+    }
+
+    /**
+     * @return The approximate memory in bytes of the idle buffers held by the pools.
+     */
+    public long getPooledBufferMemory()
+    {
+        long memory=0;
+        Pool[] pools=_pools;
+        if (pools!=null)
+            for (int i=0;i<pools.length;i++)
+                memory+=((long)pools[i]._size)*pools[i]._count;
+        return memory;
+    }
+
+    /**
+     * @return The approximate number of idle buffers held by the pools.
+     */
+    public int getPooledBuffers()
+    {
+        int buffers=0;
+        Pool[] pools=_pools;
+        if (pools!=null)
+            for (int i=0;i<pools.length;i++)
+                buffers+=pools[i]._count;
+        return buffers;
+    }
+
+    /**
+     * @return The approximate number of pooled size buffers that have been got and not returned.
+     */
+    public int getBuffersInUse()
+    {
+        int buffers=0;
+        Pool[] pools=_pools;
+        if (pools!=null)
+            for (int i=0;i<pools.length;i++)
+                buffers+=pools[i]._inUse;
+        return buffers;
+    }
+
+    /**
+     * @return The approximate number of pooled size buffers that have been allocated
+     * because none were available from the pools.
+     */
+    public long getBuffersAllocated()
+    {
+        long buffers=0;
+        Pool[] pools=_pools;
+        if (pools!=null)
+            for (int i=0;i<pools.length;i++)
+                buffers+=pools[i]._allocated;
+        return buffers;
+    }
+    
     protected abstract Buffer newBuffer( int size );
 
-    protected static class ThreadBuffers
+    /* ------------------------------------------------------------ */
+    /** A pool of buffers of one size.
+     * The pool is a stack, so that recently used buffers are reused first.
+     */
+    private static class Pool
     {
-        final Buffer[][] _buffers;
-        ThreadBuffers(int headers,int requests,int responses,int others)
+        final int _size;
+        Buffer[] _buffers=new Buffer[8];
+        volatile int _count;
+        volatile int _inUse;
+        volatile long _allocated;
+
+        Pool(int size)
+        {
+            _size=size;
+        }
+
+        synchronized Buffer get()
         {
-            _buffers = new Buffer[4][];
-            _buffers[__HEADER]=new Buffer[headers];
-            _buffers[__REQUEST]=new Buffer[requests];
-            _buffers[__RESPONSE]=new Buffer[responses];
-            _buffers[__OTHER]=new Buffer[others];
+            if (_count==0)
+                return null;
+            _inUse++;
+            Buffer buffer=_buffers[--_count];
+            _buffers[_count]=null;
+            return buffer;
+        }
+
+        synchronized void put(Buffer buffer)
+        {
+            if (_inUse>0)
+                _inUse--;
+            if (_count==_buffers.length)
+            {
+                Buffer[] buffers=new Buffer[_buffers.length*2];
+                System.arraycopy(_buffers,0,buffers,0,_count);
+                _buffers=buffers;
+            }
+            _buffers[_count++]=buffer;
+        }
 
+        synchronized void allocated()
+        {
+            _inUse++;
+            _allocated++;
+        }
+
+        synchronized void dropped()
+        {
+            if (_inUse>0)
+                _inUse--;
         }
     }
     
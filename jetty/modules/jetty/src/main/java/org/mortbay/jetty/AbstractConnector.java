@@ -66,6 +66,10 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
     private String _forwardedServerHeader = "X-Forwarded-Server";         // default to mod_proxy_http header
     private String _forwardedForHeader = "X-Forwarded-For";               // default to mod_proxy_http header
     private boolean _reuseAddress=true;
+    private int _valueCacheSize=512;
+    private int _valueCacheMaxLength=256;
+    private HttpValueCache _valueCache;
+    private int _maxPipelinedResponses=0;
     
     protected int _maxIdleTime=200000; 
     protected int _lowResourceMaxIdleTime=-1; 
@@ -264,6 +268,100 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
         _acceptors = acceptors;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of request URIs and header values cached by the connector.
+     */
+    public int getValueCacheSize()
+    {
+        return _valueCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The maximum number of request URIs and header values cached by the connector
+     * or 0 to disable the cache. Frequently received values are learnt by the cache, so that
+     * they are not sliced from the header buffer and converted to Strings for every request.
+     * @see HttpValueCache
+     */
+    public void setValueCacheSize(int size)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _valueCacheSize = size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum length of a cached request URI or header value.
+     */
+    public int getValueCacheMaxLength()
+    {
+        return _valueCacheMaxLength;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param length The maximum length of a cached request URI or header value.
+     */
+    public void setValueCacheMaxLength(int length)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _valueCacheMaxLength = length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The cache of request URIs and header values or null if the connector is not started
+     * or the cache is disabled.
+     */
+    public HttpValueCache getValueCache()
+    {
+        return _valueCache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of request URIs and header values currently cached.
+     */
+    public int getValueCacheEntries()
+    {
+        HttpValueCache cache=_valueCache;
+        return cache==null?0:cache.getSize();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The approximate number of request URIs and header values found in the cache.
+     */
+    public int getValueCacheHits()
+    {
+        HttpValueCache cache=_valueCache;
+        return cache==null?0:cache.getHits();
+    }
+    
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of responses to pipelined requests that are written together.
+     */
+    public int getMaxPipelinedResponses()
+    {
+        return _maxPipelinedResponses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param max The maximum number of responses to pipelined requests that are written 
+     * together, or 0 to write each response when it is complete. If greater than 1, then
+     * a complete response is held while the header of the next pipelined request is already
+     * buffered, and held responses are written with a later response in a single gathering write.
+     */
+    public void setMaxPipelinedResponses(int max)
+    {
+        _maxPipelinedResponses = max;
+    }
+    
     /* ------------------------------------------------------------ */
     /**
      * @param soLingerTime The soLingerTime to set or -1 to disable.
@@ -279,6 +377,9 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
         if (_server==null)
             throw new IllegalStateException("No server");
         
+        if (_valueCacheSize>0)
+            _valueCache=new HttpValueCache(_valueCacheSize,_valueCacheMaxLength);
+        
         // open listener port
         open();
         
@@ -320,6 +421,8 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
         
         super.doStop();
         
+        _valueCache=null;
+        
         Thread[] acceptors=null;
         synchronized(this)
         {
@@ -0,0 +1,180 @@
+// ========================================================================
+// Copyright 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.log.Log;
+import org.mortbay.resource.Resource;
+import org.mortbay.resource.ResourceFactory;
+import org.mortbay.thread.ThreadPool;
+import org.mortbay.util.ByteArrayOutputStream2;
+import org.mortbay.util.IO;
+
+
+/* ------------------------------------------------------------ */
+/** 
+ * Cache of gzip compressed static content.
+ * <p>
+ * The cached {@link ResourceCache.Content} holds the compressed bytes of a 
+ * resource, so that repeatedly served content is compressed once rather than
+ * for every request.  Entries are invalidated when the lastModified time of
+ * the resource changes and the maxCacheSize limits the total size of the 
+ * compressed bytes held, independently of any cache of uncompressed content.
+ * <p>
+ * If a {@link ThreadPool} is set, content is compressed in the background and
+ * {@link #lookup(String, ResourceFactory)} returns null until it is available.
+ * 
+ */
+public class GzipResourceCache extends ResourceCache
+{
+    private int _minCompressSize=256;
+    private ThreadPool _threadPool;
+    private final Set _compressing=new HashSet();
+
+    /* ------------------------------------------------------------ */
+    public GzipResourceCache(MimeTypes mimeTypes)
+    {
+        super(mimeTypes);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The minimum size of a resource to compress.
+     */
+    public int getMinCompressSize()
+    {
+        return _minCompressSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param minCompressSize The minimum size of a resource to compress. Smaller
+     * resources gain little and may even grow when compressed.
+     */
+    public void setMinCompressSize(int minCompressSize)
+    {
+        _minCompressSize=minCompressSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The pool used to compress content in the background, or null
+     * if content is compressed by the requesting thread.
+     */
+    public ThreadPool getThreadPool()
+    {
+        return _threadPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param threadPool The pool used to compress content in the background, or null
+     * if content is compressed by the requesting thread.
+     */
+    public void setThreadPool(ThreadPool threadPool)
+    {
+        _threadPool=threadPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the compressed content for a path.
+     * @return The compressed content, or null if the resource cannot be cached or
+     * is still being compressed in the background.
+     */
+    public Content lookup(final String pathInContext, ResourceFactory factory)
+        throws IOException
+    {
+        Content content=get(pathInContext);
+        if (content!=null)
+            return content;
+
+        final Resource resource=factory.getResource(pathInContext);
+        if (resource==null || resource.length()<_minCompressSize)
+            return null;
+
+        if (_threadPool==null)
+            return load(pathInContext,resource);
+
+        synchronized (_compressing)
+        {
+            if (!_compressing.add(pathInContext))
+                return null;
+        }
+
+        Runnable compress=new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    load(pathInContext,resource);
+                }
+                catch(Exception e)
+                {
+                    Log.warn(Log.EXCEPTION,e);
+                }
+                finally
+                {
+                    synchronized (_compressing)
+                    {
+                        _compressing.remove(pathInContext);
+                    }
+                }
+            }
+        };
+
+        if (!_threadPool.dispatch(compress))
+        {
+            synchronized (_compressing)
+            {
+                _compressing.remove(pathInContext);
+            }
+        }
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void fill(Content content)
+        throws IOException
+    {
+        Resource resource=content.getResource();
+        try
+        {
+            ByteArrayOutputStream2 bout=new ByteArrayOutputStream2((int)resource.length()/4+64);
+            GZIPOutputStream out=new GZIPOutputStream(bout);
+            InputStream in=resource.getInputStream();
+            try
+            {
+                IO.copy(in,out);
+            }
+            finally
+            {
+                in.close();
+            }
+            out.close();
+            content.setBuffer(new ByteArrayBuffer(bout.toByteArray()));
+        }
+        finally
+        {
+            resource.release();
+        }
+    }
+}
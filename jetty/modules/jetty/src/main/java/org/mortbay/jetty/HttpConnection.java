@@ -18,6 +18,8 @@ package org.mortbay.jetty;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -27,6 +29,7 @@ import org.mortbay.io.BufferCache.CachedBuffer;
 import org.mortbay.io.Connection;
 import org.mortbay.io.EndPoint;
 import org.mortbay.io.RuntimeIOException;
+import org.mortbay.io.nio.ChannelEndPoint;
 import org.mortbay.io.nio.SelectChannelEndPoint;
 import org.mortbay.log.Log;
 import org.mortbay.resource.Resource;
@@ -90,6 +93,7 @@ public class HttpConnection implements Connection
     private transient boolean _head = false;
     private transient boolean _host = false;
     private transient boolean _delayedHandling = false;
+    private transient HttpValueCache.Entry _cachedUri;
 
     /* ------------------------------------------------------------ */
     public static HttpConnection getCurrentConnection()
@@ -114,6 +118,8 @@ public class HttpConnection implements Connection
         _connector = connector;
         _endp = endpoint;
         _parser = new HttpParser(_connector,endpoint,new RequestHandler(),_connector.getHeaderBufferSize(),_connector.getRequestBufferSize());
+        if (_connector instanceof AbstractConnector)
+            ((HttpParser)_parser).setValueCache(((AbstractConnector)_connector).getValueCache());
         _requestFields = new HttpFields();
         _responseFields = new HttpFields();
         _request = new Request(this);
@@ -403,6 +409,10 @@ public class HttpConnection implements Connection
                     if (!_parser.isComplete())
                         io = _parser.parseAvailable();
 
+                    // Write held responses if we may wait for the next request
+                    if (!_parser.isComplete() && isOutputHeld())
+                        io += ((HttpGenerator)_generator).flushHeldOutput();
+
                     // Do we have more generating to do?
                     // Loop here because some writes may take multiple steps and
                     // we need to flush them all before potentially blocking in
@@ -482,12 +492,16 @@ public class HttpConnection implements Connection
                     no_progress = 0;
                 }
 
+                // Write held responses if there is not another request to handle
+                if (isOutputHeld() && !(more_in_buffer && _parser.isIdle()))
+                    ((HttpGenerator)_generator).flushHeldOutput();
+
                 Continuation continuation = _request.getContinuation();
                 if (continuation != null && continuation.isPending())
                 {
                     break;
                 }
-                else if (_generator.isCommitted() && !_generator.isComplete() && _endp instanceof SelectChannelEndPoint) // TODO
+                else if ((_generator.isCommitted() && !_generator.isComplete() || isOutputHeld()) && _endp instanceof SelectChannelEndPoint) // TODO
                                                                                                                          // remove
                                                                                                                          // SelectChannel
                                                                                                                          // dependency
@@ -510,6 +524,7 @@ public class HttpConnection implements Connection
         _response.recycle();
 
         _uri.clear();
+        _cachedUri = null;
     }
 
     /* ------------------------------------------------------------ */
@@ -523,9 +538,27 @@ public class HttpConnection implements Connection
             String info=null;
             try
             {
-                info = URIUtil.canonicalPath(_uri.getDecodedPath());
-                if (info == null)
-                    throw new HttpException(400);
+                // Write held responses before the request content is read,
+                // otherwise hold this response if the next request is buffered
+                if (!_parser.isComplete())
+                {
+                    if (isOutputHeld())
+                        ((HttpGenerator)_generator).flushHeldOutput();
+                }
+                else
+                    holdOutput();
+
+                // The canonical path of a cached URI is decoded only once
+                if (_cachedUri!=null && _cachedUri.getDecoded()!=null)
+                    info = (String)_cachedUri.getDecoded();
+                else
+                {
+                    info = URIUtil.canonicalPath(_uri.getDecodedPath());
+                    if (info == null)
+                        throw new HttpException(400);
+                    if (_cachedUri!=null)
+                        _cachedUri.setDecoded(info);
+                }
                 _request.setPathInfo(info);
 
                 if (_out != null)
@@ -604,11 +637,16 @@ public class HttpConnection implements Connection
                             _connector.persist(_endp);
 
                         if (error)
+                        {
+                            if (isOutputHeld())
+                                ((HttpGenerator)_generator).flushHeldOutput();
                             _endp.close();
+                        }
                         else
                         {
                             if (!_response.isCommitted() && !_request.isHandled())
                                 _response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                            holdOutput();
                             _response.complete();
                         }
                     }
@@ -621,6 +659,27 @@ public class HttpConnection implements Connection
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /* Hold the output of the current response if the header of the next pipelined
+     * request is already buffered, so that the responses can be written together. 
+     */
+    private void holdOutput()
+    {
+        if (_generator instanceof HttpGenerator && _parser instanceof HttpParser && _connector instanceof AbstractConnector)
+        {
+            int max=((AbstractConnector)_connector).getMaxPipelinedResponses();
+            HttpGenerator generator=(HttpGenerator)_generator;
+            if (max>1 && generator.getHeldResponses()<max-1 && ((HttpParser)_parser).isHeaderInBuffer())
+                generator.setHoldOutput(true);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private boolean isOutputHeld()
+    {
+        return _generator instanceof HttpGenerator && ((HttpGenerator)_generator).getHeldResponses()>0;
+    }
+
     /* ------------------------------------------------------------ */
     public void commitResponse(boolean last) throws IOException
     {
@@ -749,6 +808,7 @@ public class HttpConnection implements Connection
             _expect = UNKNOWN;
             _delayedHandling = false;
             _charset = null;
+            _cachedUri = uri instanceof HttpValueCache.Entry?(HttpValueCache.Entry)uri:null;
 
             if (_request.getTimeStamp() == 0)
                 _request.setTimeStamp(System.currentTimeMillis());
@@ -1134,6 +1194,108 @@ public class HttpConnection implements Connection
                 throw new IllegalArgumentException("unknown content type?");
 
         }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return true if {@link #transferContent(FileChannel, long, long)} may
+         * be used to send the content of this response.
+         */
+        public boolean isTransferSupported()
+        {
+            return !_closed && !_generator.isCommitted() && !_generator.isHead() &&
+                _generator.getContentWritten()==0 && 
+                _endp instanceof ChannelEndPoint && ((ChannelEndPoint)_endp).isTransferSupported();
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Send a region of a file as the complete content of the response.
+         * The response is committed with a content length of count and the 
+         * headers are flushed, then the file region is transferred directly
+         * to the endpoint channel, bypassing the response buffer.
+         * @param file The file to send content from
+         * @param position The position in the file of the first byte to send
+         * @param count The number of bytes to send
+         * @throws IllegalStateException if {@link #isTransferSupported()} is false.
+         */
+        public void transferContent(FileChannel file, long position, long count) throws IOException
+        {
+            if (!isTransferSupported())
+                throw new IllegalStateException("!transfer");
+
+            _responseFields.putLongField(HttpHeaders.CONTENT_LENGTH_BUFFER,count);
+            commitResponse(HttpGenerator.MORE);
+
+            // flush the header
+            _generator.flush();
+            while (_generator._header!=null && _generator._header.length()>0 && _endp.isOpen())
+            {
+                blockWritable();
+                _generator.flush();
+            }
+
+            ChannelEndPoint endp=(ChannelEndPoint)_endp;
+            long sent=0;
+            try
+            {
+                while (sent<count)
+                {
+                    long len;
+                    try
+                    {
+                        len=endp.transfer(file,position+sent,count-sent);
+                    }
+                    catch (IOException e)
+                    {
+                        // The transfer fails for both file and channel errors,
+                        // so only report it as an EOF if the file can be read.
+                        checkReadable(file,position+sent);
+                        throw (e instanceof EofException)?e:new EofException(e);
+                    }
+
+                    if (len>0)
+                        sent+=len;
+                    else if (!endp.isOpen())
+                        throw new EofException();
+                    else if (position+sent>=file.size())
+                        throw new IOException("file truncated");
+                    else
+                    {
+                        try
+                        {
+                            blockWritable();
+                        }
+                        catch (IOException e)
+                        {
+                            throw (e instanceof EofException)?e:new EofException(e);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                _generator._contentWritten+=sent;
+            }
+
+            commitResponse(HttpGenerator.LAST);
+        }
+
+        /* ------------------------------------------------------------ */
+        private void blockWritable() throws IOException
+        {
+            if (!_endp.isBlocking() && !_endp.blockWritable(_maxIdleTime))
+            {
+                _endp.close();
+                throw new EofException("timeout");
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /* Throw the error, if any, from reading the file at a position */
+        private void checkReadable(FileChannel file, long position) throws IOException
+        {
+            if (file.read(ByteBuffer.allocate(1),position)<0)
+                throw new IOException("file truncated");
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -60,6 +60,9 @@ public class HttpGenerator extends AbstractGenerator
     private boolean _needCRLF = false;
     private boolean _needEOC = false;
     private boolean _bufferChunked = false;
+    private boolean _holdOutput = false; // True if a completed response may be held and written with the next response
+    private Buffer _held; // Completed responses held to be written with the next response
+    private int _heldResponses;
 
     
     /* ------------------------------------------------------------------------------- */
@@ -83,9 +86,67 @@ public class HttpGenerator extends AbstractGenerator
         _needCRLF = false;
         _needEOC = false;
         _bufferChunked=false;
+        _holdOutput=false;
         _method=null;
         _uri=null;
         _noContent=false;
+        
+        if (returnBuffers && _held!=null && _held.length()==0)
+        {
+            _buffers.returnBuffer(_held);
+            _held=null;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Hold the output of the current response.
+     * If set, then when the response is complete (or all of its content length 
+     * has been written) and fits within the held output buffer, it is not written
+     * to the endpoint, but is held to be written with the next response in a 
+     * single gathering write. Output that is not held is written after any held output.
+     * This is used for pipelined requests and is cleared by {@link #reset(boolean)}.
+     * @param hold True if the output of the current response may be held.
+     */
+    public void setHoldOutput(boolean hold)
+    {
+        _holdOutput=hold;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of completed responses held that have not been written.
+     */
+    public int getHeldResponses()
+    {
+        return (_held==null||_held.length()==0)?0:_heldResponses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Write any held output.
+     * @return The number of bytes written, which may be less than the held output if
+     * the endpoint is non blocking.
+     * @throws IOException
+     */
+    public long flushHeldOutput() throws IOException
+    {
+        long total=0;
+        try
+        {
+            while (_held!=null && _held.length()>0)
+            {
+                int len=_endp.flush(_held);
+                if (len<=0)
+                    break;
+                total+=len;
+            }
+            return total;
+        }
+        catch (IOException e)
+        {
+            Log.ignore(e);
+            throw (e instanceof EofException) ? e:new EofException(e);
+        }
     }
 
 
@@ -699,6 +760,9 @@ public class HttpGenerator extends AbstractGenerator
                 return 0;
             }
             
+            if (_holdOutput && (_state==STATE_FLUSHING || _state==STATE_CONTENT && _contentWritten==_contentLength) && holdOutput())
+                return 0;
+            
             // Keep flushing while there is something to flush (except break below)
             int total= 0;
             long last_len = -1;
@@ -706,7 +770,33 @@ public class HttpGenerator extends AbstractGenerator
             {
                 int len = -1;
                 int to_flush = ((_header != null && _header.length() > 0)?4:0) | ((_buffer != null && _buffer.length() > 0)?2:0) | ((_bypass && _content != null && _content.length() > 0)?1:0);
-                switch (to_flush)
+                
+                // Write held output before and together with this response,
+                // unless this response has been held.
+                if (_held != null && _held.length() > 0 && (to_flush != 0 || _state != STATE_END))
+                {
+                    switch (to_flush)
+                    {
+                        case 6:
+                            len = _endp.flush(_held, _header, _buffer);
+                            break;
+                        case 5:
+                            len = _endp.flush(_held, _header, _content);
+                            break;
+                        case 4:
+                            len = _endp.flush(_held, _header, null);
+                            break;
+                        case 2:
+                            len = _endp.flush(_held, _buffer, null);
+                            break;
+                        case 1:
+                            len = _endp.flush(_held, _content, null);
+                            break;
+                        default:
+                            len = _endp.flush(_held);
+                    }
+                }
+                else switch (to_flush)
                 {
                     case 7:
                         throw new IllegalStateException(); // should never happen!
@@ -792,6 +882,50 @@ public class HttpGenerator extends AbstractGenerator
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /* Hold the completed response if it is fully prepared and fits in the held output buffer.
+     * @return True if the response was held.
+     */
+    private boolean holdOutput()
+    {
+        _holdOutput=false;
+        if (_close || _needCRLF || _needEOC || !_endp.isOpen() || (!_bypass && _content != null && _content.length() > 0))
+            return false;
+        
+        int held=getHeldResponses();
+        int length=(_header==null?0:_header.length())+(_buffer==null?0:_buffer.length())+((_bypass && _content!=null)?_content.length():0);
+        if (_held==null)
+            _held=_buffers.getBuffer(_contentBufferSize);
+        if (length>_held.space())
+        {
+            _held.compact();
+            if (length>_held.space())
+                return false;
+        }
+        
+        if (_header!=null)
+        {
+            _held.put(_header);
+            _header.clear();
+        }
+        if (_buffer!=null)
+        {
+            _held.put(_buffer);
+            _buffer.clear();
+        }
+        if (_bypass && _content!=null)
+        {
+            _held.put(_content);
+            _content.clear();
+        }
+        _content=null;
+        _bypass=false;
+        _bufferChunked=false;
+        _heldResponses=held+1;
+        _state=STATE_END;
+        return true;
+    }
+
     /* ------------------------------------------------------------ */
     private void prepareBuffers()
     {
@@ -73,6 +73,7 @@ public class HttpParser implements Parser
     private int _responseStatus; // If >0 then we are parsing a response
     private boolean _forceContentBuffer;
     private Input _input;
+    private HttpValueCache _valueCache;
     
     /* ------------------------------------------------------------------------------- */
     protected int _state=STATE_START;
@@ -175,6 +176,38 @@ public class HttpParser implements Parser
         return false;
     }
 
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @return True if the header buffer holds the complete header of another
+     * (pipelined) message, so that it can be parsed without filling the buffer.
+     */
+    public boolean isHeaderInBuffer()
+    {
+        if (_body!=null && _body.hasContent() || _header==null)
+            return false;
+        
+        // skip any blank lines before the message and then look for 
+        // the blank line that ends the header
+        int i=_header.getIndex();
+        int end=_header.putIndex();
+        while (i<end && (_header.peek(i)==HttpTokens.CARRIAGE_RETURN || _header.peek(i)==HttpTokens.LINE_FEED))
+            i++;
+        boolean eol=false;
+        for (;i<end;i++)
+        {
+            byte b=_header.peek(i);
+            if (b==HttpTokens.LINE_FEED)
+            {
+                if (eol)
+                    return true;
+                eol=true;
+            }
+            else if (b!=HttpTokens.CARRIAGE_RETURN)
+                eol=false;
+        }
+        return false;
+    }
+
     /* ------------------------------------------------------------------------------- */
     public boolean isState(int state)
     {
@@ -422,7 +455,8 @@ public class HttpParser implements Parser
                         } 
                         else
                         {
-                            _handler.startRequest(method, _tok1,HttpVersions.CACHE.lookup(_buffer.sliceFromMark()));
+                            Buffer uri=_valueCache==null?null:_valueCache.lookup(_tok1);
+                            _handler.startRequest(method, uri==null?_tok1:uri,HttpVersions.CACHE.lookup(_buffer.sliceFromMark()));
                         }
                         _eol=ch;
                         _state=STATE_HEADER;
@@ -496,6 +530,22 @@ public class HttpParser implements Parser
                                                     throw new HttpException(400,null);
                                             }
                                             break;
+                                            
+                                        case HttpHeaders.HOST_ORDINAL:
+                                        case HttpHeaders.ACCEPT_ORDINAL:
+                                        case HttpHeaders.ACCEPT_CHARSET_ORDINAL:
+                                        case HttpHeaders.ACCEPT_ENCODING_ORDINAL:
+                                        case HttpHeaders.ACCEPT_LANGUAGE_ORDINAL:
+                                        case HttpHeaders.CACHE_CONTROL_ORDINAL:
+                                        case HttpHeaders.REFERER_ORDINAL:
+                                        case HttpHeaders.USER_AGENT_ORDINAL:
+                                            if (_valueCache!=null && _multiLineValue==null)
+                                            {
+                                                Buffer cached=_valueCache.lookup(value);
+                                                if (cached!=null)
+                                                    value=cached;
+                                            }
+                                            break;
                                     }
                                 }
                                 
@@ -1034,6 +1084,22 @@ public class HttpParser implements Parser
         return _body;
     }
 
+    /* ------------------------------------------------------------ */
+    public HttpValueCache getValueCache()
+    {
+        return _valueCache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param cache An adaptive cache of request URIs and header values, shared 
+     * by the parsers of a connector, or null for no caching.
+     */
+    public void setValueCache(HttpValueCache cache)
+    {
+        _valueCache=cache;
+    }
+    
     /* ------------------------------------------------------------ */
     /**
      * @param force True if a new buffer will be forced to be used for content and the header buffer will not be used.
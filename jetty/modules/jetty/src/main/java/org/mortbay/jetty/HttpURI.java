@@ -21,6 +21,7 @@ import org.mortbay.util.StringUtil;
 import org.mortbay.util.TypeUtil;
 import org.mortbay.util.URIUtil;
 import org.mortbay.util.UrlEncoded;
+import org.mortbay.util.UrlEncodedIndex;
 import org.mortbay.util.Utf8StringBuffer;
 
 
@@ -564,6 +565,14 @@ public class HttpURI
             UrlEncoded.decodeTo(toUtf8String(_query+1,_fragment-_query-1),parameters,encoding);
     }
 
+    public void indexQuery(UrlEncodedIndex index)
+    {
+        if (_query==_fragment)
+            index.clear();
+        else
+            index.index(_raw,_query+1,_fragment-_query-1,null);
+    }
+
     public void clear()
     {
         _scheme=_authority=_host=_port=_path=_param=_query=_fragment=_end=0;
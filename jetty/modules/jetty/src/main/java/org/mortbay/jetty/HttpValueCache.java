@@ -0,0 +1,307 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.BufferCache;
+import org.mortbay.util.StringUtil;
+
+/* ------------------------------------------------------------ */
+/**
+ * Adaptive cache of request URIs and header values.
+ * <p>
+ * Unlike the static {@link BufferCache}s such as {@link HttpHeaderValues#CACHE},
+ * this cache learns the values that are frequently received by a connector.
+ * A value that has been seen more than once is added to the cache as an
+ * immutable {@link Entry}, so that later requests with the same value can use
+ * the entry and its String form instead of slicing and converting the header
+ * buffer.
+ * <p>
+ * Values are matched exactly (case sensitive). Lookups do not lock, as the
+ * table is replaced rather than modified when values are added or evicted.
+ * The cache is bounded both in the number and the length of the values held.
+ * When the cache is full, entries that have not been used since the last
+ * sweep are evicted to make room for new values.
+ */
+public class HttpValueCache
+{
+    private final int _capacity;
+    private final int _maxValueLength;
+    private final int[] _seen;
+    private volatile Entry[] _table;
+    private int _size;
+    private int _misses;
+    private int _hits;
+    private int _sweepMisses;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param capacity The maximum number of cached values
+     * @param maxValueLength The maximum length of a cached value
+     */
+    public HttpValueCache(int capacity, int maxValueLength)
+    {
+        _capacity=capacity;
+        _maxValueLength=maxValueLength;
+        int size=16;
+        while (size<capacity)
+            size*=2;
+        _table=new Entry[size];
+        _seen=new int[size*4];
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of cached values
+     */
+    public int getCapacity()
+    {
+        return _capacity;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum length of a cached value
+     */
+    public int getMaxValueLength()
+    {
+        return _maxValueLength;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of cached values
+     */
+    public synchronized int getSize()
+    {
+        return _size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The approximate number of lookups that found a cached value
+     */
+    public int getHits()
+    {
+        return _hits;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The approximate number of lookups that did not find a cached value
+     */
+    public int getMisses()
+    {
+        return _misses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Look up a value.
+     * If the value is not cached, it is counted and added to the cache
+     * once it has been seen before.
+     * @param value The value, which must be backed by an array.
+     * @return The cached entry for the value or null if it is not (yet) cached.
+     */
+    public Entry lookup(Buffer value)
+    {
+        byte[] array=value.array();
+        int length=value.length();
+        if (array==null || length==0 || length>_maxValueLength)
+            return null;
+
+        int index=value.getIndex();
+        int hash=hash(array,index,length);
+        Entry[] table=_table;
+        for (Entry e=table[hash&(table.length-1)];e!=null;e=e._next)
+        {
+            if (e._hash==hash && e.matches(array,index,length))
+            {
+                if (!e._used)
+                    e._used=true;
+                _hits++;
+                return e;
+            }
+        }
+
+        // Count the miss. The counts are approximate, as they are neither
+        // synchronized nor exact for values with the same slot.
+        _misses++;
+        int slot=(hash^(hash>>>16))&(_seen.length-1);
+        if (_seen[slot]++==0)
+        {
+            // decay the counts so only values seen recently are added
+            if (++_sweepMisses>_seen.length)
+            {
+                _sweepMisses=0;
+                for (int i=_seen.length;i-->0;)
+                    _seen[i]>>=1;
+            }
+            return null;
+        }
+
+        return add(array,index,length,hash);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Remove all cached values.
+     */
+    public synchronized void clear()
+    {
+        _table=new Entry[_table.length];
+        for (int i=_seen.length;i-->0;)
+            _seen[i]=0;
+        _size=0;
+        _hits=0;
+        _misses=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    private synchronized Entry add(byte[] array, int index, int length, int hash)
+    {
+        Entry[] table=_table;
+        int bucket=hash&(table.length-1);
+        for (Entry e=table[bucket];e!=null;e=e._next)
+            if (e._hash==hash && e.matches(array,index,length))
+                return e;
+
+        if (_size>=_capacity)
+        {
+            // Only sweep after enough misses for the entries to have been used
+            if (_sweepMisses<_capacity || !sweep())
+                return null;
+            table=_table;
+        }
+
+        // Keep the ordinal of well known values
+        String string=StringUtil.toString(array,index,length,StringUtil.__ISO_8859_1);
+        BufferCache.CachedBuffer known=HttpHeaderValues.CACHE.get(string);
+        Entry entry=new Entry(string,known==null?-1:known.getOrdinal(),hash,table[bucket]);
+
+        // Publish a copy of the table through the volatile field, so that
+        // the unlocked lookups only ever see fully constructed entries
+        table=(Entry[])table.clone();
+        table[bucket]=entry;
+        _table=table;
+        _size++;
+        return entry;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Evict the entries that have not been used since the last sweep.
+     * @return True if any entries were evicted.
+     */
+    private boolean sweep()
+    {
+        _sweepMisses=0;
+        Entry[] table=_table;
+        Entry[] swept=new Entry[table.length];
+        int size=0;
+        for (int i=table.length;i-->0;)
+        {
+            for (Entry e=table[i];e!=null;e=e._next)
+            {
+                if (e._used)
+                {
+                    swept[i]=new Entry(e,swept[i]);
+                    size++;
+                }
+            }
+        }
+
+        if (size==_size)
+        {
+            for (int i=table.length;i-->0;)
+                for (Entry e=table[i];e!=null;e=e._next)
+                    e._used=false;
+            return false;
+        }
+
+        _table=swept;
+        _size=size;
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int hash(byte[] array, int index, int length)
+    {
+        int hash=0;
+        for (int i=index+length;i-->index;)
+            hash=31*hash+array[i];
+        return hash;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A cached value.
+     * The entry is an immutable buffer whose String form is created when
+     * the entry is added to the cache.  A single decoded form of the value
+     * may be associated with the entry, for example the canonical path of
+     * a request URI.
+     */
+    public static class Entry extends BufferCache.CachedBuffer
+    {
+        private final int _hash;
+        private final Entry _next;
+        private volatile boolean _used;
+        private volatile Object _decoded;
+
+        /* ------------------------------------------------------------ */
+        Entry(String value, int ordinal, int hash, Entry next)
+        {
+            super(value,ordinal);
+            _hash=hash;
+            _next=next;
+        }
+
+        /* ------------------------------------------------------------ */
+        Entry(Entry entry, Entry next)
+        {
+            super(entry.toString(),entry.getOrdinal());
+            _hash=entry._hash;
+            _next=next;
+            _decoded=entry._decoded;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The decoded form of the value, or null if none has been set.
+         */
+        public Object getDecoded()
+        {
+            return _decoded;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param decoded A decoded form of the value, that must depend only on the value.
+         */
+        public void setDecoded(Object decoded)
+        {
+            _decoded=decoded;
+        }
+
+        /* ------------------------------------------------------------ */
+        boolean matches(byte[] array, int index, int length)
+        {
+            if (length()!=length)
+                return false;
+            byte[] bytes=array();
+            for (int i=length;i-->0;)
+                if (bytes[i]!=array[index+i])
+                    return false;
+            return true;
+        }
+    }
+}
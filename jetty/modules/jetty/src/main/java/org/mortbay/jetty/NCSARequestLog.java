@@ -14,6 +14,7 @@
 
 package org.mortbay.jetty; 
 
+import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -39,6 +40,14 @@ import org.mortbay.util.Utf8StringBuffer;
  * and the Combined Log Format (single log format).
  * This log format can be output by most web servers, and almost all web log analysis software can understand
  *  these formats.
+ * <p>
+ * If async is set, request threads format each record and add it to a bounded
+ * ring buffer, which is drained by a single writer thread in batches.  This
+ * keeps disk latency and writer contention out of the request threads.  If the
+ * ring buffer is full, the overflowPolicy determines if the request thread
+ * blocks ("block"), or if the record is dropped with a warning ("drop") or
+ * only counted ("count").
+ * 
  * @author Greg Wilkins
  * @author Nigel Canonizado
  * 
@@ -46,6 +55,10 @@ import org.mortbay.util.Utf8StringBuffer;
  */
 public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
 {
+    public final static String OVERFLOW_BLOCK="block";
+    public final static String OVERFLOW_DROP="drop";
+    public final static String OVERFLOW_COUNT="count";
+    
     private String _filename;
     private boolean _extended;
     private boolean _append;
@@ -60,6 +73,10 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
     private boolean _logLatency = false;
     private boolean _logCookies = false;
     private boolean _logServer = false;
+    private boolean _async = false;
+    private int _queueSize = 1024;
+    private int _flushInterval = 1000;
+    private String _overflowPolicy = OVERFLOW_BLOCK;
     
     private transient OutputStream _out;
     private transient OutputStream _fileOut;
@@ -68,6 +85,14 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
     private transient Writer _writer;
     private transient ArrayList _buffers;
     private transient char[] _copy;
+    
+    private transient Object _queueLock = new Object();
+    private transient byte[][] _queue;
+    private transient int _queueHead;
+    private transient int _queued;
+    private transient long _dropped;
+    private transient boolean _warned;
+    private transient Thread _writerThread;
 
     
     public NCSARequestLog()
@@ -226,6 +251,116 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
         _preferProxiedForAddress = preferProxiedForAddress;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if records are written by a background thread.
+     */
+    public boolean isAsync()
+    {
+        return _async;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param async If true, records are queued by the request threads and
+     * written by a background thread.
+     */
+    public void setAsync(boolean async)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _async = async;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of records queued in async mode.
+     */
+    public int getQueueSize()
+    {
+        return _queueSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param queueSize The maximum number of records queued in async mode.
+     */
+    public void setQueueSize(int queueSize)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        if (queueSize<=0)
+            throw new IllegalArgumentException("queueSize="+queueSize);
+        _queueSize = queueSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The period in ms that the async writer waits to batch records before
+     * writing and flushing them.
+     */
+    public int getFlushInterval()
+    {
+        return _flushInterval;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param flushInterval The period in ms that the async writer waits to batch 
+     * records before writing and flushing them. Records are written sooner if the
+     * queue is half full. If 0, records are written as soon as they are queued.
+     */
+    public void setFlushInterval(int flushInterval)
+    {
+        _flushInterval = flushInterval;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The policy when the async queue is full: "block", "drop" or "count".
+     */
+    public String getOverflowPolicy()
+    {
+        return _overflowPolicy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param policy The policy when the async queue is full: "block" waits for 
+     * space, "drop" drops the record with a warning and "count" drops the record
+     * silently. Dropped records are counted by {@link #getDropped()}.
+     */
+    public void setOverflowPolicy(String policy)
+    {
+        if (!OVERFLOW_BLOCK.equals(policy) && !OVERFLOW_DROP.equals(policy) && !OVERFLOW_COUNT.equals(policy))
+            throw new IllegalArgumentException("overflowPolicy="+policy);
+        _overflowPolicy = policy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of records dropped because the async queue was full.
+     */
+    public long getDropped()
+    {
+        synchronized (_queueLock)
+        {
+            return _dropped;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of records waiting to be written by the async writer.
+     */
+    public int getQueued()
+    {
+        synchronized (_queueLock)
+        {
+            return _queued;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public void log(Request request, Response response)
     {
@@ -242,12 +377,21 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
 
             Utf8StringBuffer u8buf;
             StringBuffer buf;
-            synchronized(_writer)
+            if (_async)
             {
-                int size=_buffers.size();
-                u8buf = size==0?new Utf8StringBuffer(160):(Utf8StringBuffer)_buffers.remove(size-1);
+                // a new buffer, so that async logging never locks the writer
+                u8buf = new Utf8StringBuffer(160);
                 buf = u8buf.getStringBuffer();
             }
+            else
+            {
+                synchronized(_writer)
+                {
+                    int size=_buffers.size();
+                    u8buf = size==0?new Utf8StringBuffer(160):(Utf8StringBuffer)_buffers.remove(size-1);
+                    buf = u8buf.getStringBuffer();
+                }
+            }
             
             synchronized(buf) // for efficiency until we can use StringBuilder
             {
@@ -318,7 +462,16 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
 
             }
 
-            if (!_extended && !_logCookies && !_logLatency)
+            if (_async)
+            {
+                // format the whole record outside of any lock
+                String prefix=buf.toString();
+                CharArrayWriter record = new CharArrayWriter(prefix.length()+128);
+                record.write(prefix);
+                logRemainder(request,response,record);
+                enqueue(record.toString().getBytes());
+            }
+            else if (!_extended && !_logCookies && !_logLatency)
             {
                 synchronized(_writer)
                 {
@@ -346,46 +499,167 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
                     _buffers.add(u8buf); 
 
                     // TODO do outside synchronized scope
-                    if (_extended)
-                        logExtended(request, response, _writer);
+                    logRemainder(request, response, _writer);
+                    _writer.flush();
+                }
+            }
+        } 
+        catch (IOException e) 
+        {
+            Log.warn(e);
+        }
+        
+    }
 
-                    // TODO do outside synchronized scope
-                    if (_logCookies)
+    /* ------------------------------------------------------------ */
+    /** Write the extended, cookie and latency fields and the line separator.
+     */
+    private void logRemainder(Request request, 
+                              Response response, 
+                              Writer writer) throws IOException 
+    {
+        if (_extended)
+            logExtended(request, response, writer);
+
+        if (_logCookies)
+        {
+            Cookie[] cookies = request.getCookies(); 
+            if (cookies == null || cookies.length == 0)
+                writer.write(" -");
+            else
+            {
+                writer.write(" \"");
+                for (int i = 0; i < cookies.length; i++) 
+                {
+                    if (i != 0)
+                        writer.write(';');
+                    writer.write(cookies[i].getName());
+                    writer.write('=');
+                    writer.write(cookies[i].getValue());
+                }
+                writer.write('\"');
+            }
+        }
+
+        if (_logLatency)
+        {
+            writer.write(' ');
+            writer.write(TypeUtil.toString(System.currentTimeMillis() - request.getTimeStamp()));
+        }
+
+        writer.write(StringUtil.__LINE_SEPARATOR);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Add a record to the async queue.
+     */
+    private void enqueue(byte[] record) throws IOException
+    {
+        synchronized (_queueLock)
+        {
+            while (_queued==_queue.length)
+            {
+                if (OVERFLOW_BLOCK.equals(_overflowPolicy) && _writerThread!=null)
+                {
+                    _queueLock.notifyAll();
+                    try
+                    {
+                        _queueLock.wait(_flushInterval>0?_flushInterval:100);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Log.ignore(e);
+                        _dropped++;
+                        return;
+                    }
+                    if (!isStarted())
+                        return;
+                }
+                else
+                {
+                    _dropped++;
+                    if (!_warned && OVERFLOW_DROP.equals(_overflowPolicy))
+                    {
+                        _warned=true;
+                        Log.warn("Request log queue full, dropping records");
+                    }
+                    return;
+                }
+            }
+
+            _queue[(_queueHead+_queued)%_queue.length]=record;
+            _queued++;
+            if ((_queued==1 && _flushInterval<=0) || _queued==_queue.length/2+1)
+                _queueLock.notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Write queued records until stopped.
+     */
+    private void writeQueued()
+    {
+        byte[][] batch=new byte[_queue.length][];
+        while (true)
+        {
+            int n=0;
+            boolean running;
+            synchronized (_queueLock)
+            {
+                while (_queued==0 && _writerThread!=null)
+                {
+                    try
                     {
-                        Cookie[] cookies = request.getCookies(); 
-                        if (cookies == null || cookies.length == 0)
-                            _writer.write(" -");
-                        else
-                        {
-                            _writer.write(" \"");
-                            for (int i = 0; i < cookies.length; i++) 
-                            {
-                                if (i != 0)
-                                    _writer.write(';');
-                                _writer.write(cookies[i].getName());
-                                _writer.write('=');
-                                _writer.write(cookies[i].getValue());
-                            }
-                            _writer.write('\"');
-                        }
+                        _queueLock.wait();
                     }
+                    catch (InterruptedException e)
+                    {
+                        Log.ignore(e);
+                    }
+                }
 
-                    if (_logLatency)
+                // wait for a batch to accumulate
+                if (_flushInterval>0 && _queued<=_queue.length/2 && _writerThread!=null)
+                {
+                    try
                     {
-                        _writer.write(' ');
-                        _writer.write(TypeUtil.toString(System.currentTimeMillis() - request.getTimeStamp()));
+                        _queueLock.wait(_flushInterval);
                     }
+                    catch (InterruptedException e)
+                    {
+                        Log.ignore(e);
+                    }
+                }
 
-                    _writer.write(StringUtil.__LINE_SEPARATOR);
-                    _writer.flush();
+                running=_writerThread!=null;
+                while (_queued>0)
+                {
+                    batch[n++]=_queue[_queueHead];
+                    _queue[_queueHead]=null;
+                    _queueHead=(_queueHead+1)%_queue.length;
+                    _queued--;
                 }
+                _queueLock.notifyAll();
             }
-        } 
-        catch (IOException e) 
-        {
-            Log.warn(e);
+
+            try
+            {
+                for (int i=0;i<n;i++)
+                {
+                    _out.write(batch[i]);
+                    batch[i]=null;
+                }
+                if (n>0)
+                    _out.flush();
+            }
+            catch (IOException e)
+            {
+                Log.warn(e);
+            }
+
+            if (!running)
+                return;
         }
-        
     }
 
     /* ------------------------------------------------------------ */
@@ -446,6 +720,27 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
         _writer = new OutputStreamWriter(_out);
         _buffers = new ArrayList();
         _copy = new char[1024];
+
+        if (_async)
+        {
+            synchronized (_queueLock)
+            {
+                _queue = new byte[_queueSize][];
+                _queueHead = 0;
+                _queued = 0;
+                _dropped = 0;
+                _warned = false;
+                _writerThread = new Thread("NCSARequestLog-"+hashCode())
+                {
+                    public void run()
+                    {
+                        writeQueued();
+                    }
+                };
+                _writerThread.setDaemon(true);
+                _writerThread.start();
+            }
+        }
         super.doStart();
     }
 
@@ -453,6 +748,18 @@ public class NCSARequestLog extends AbstractLifeCycle implements RequestLog
     protected void doStop() throws Exception
     {
         super.doStop();
+        
+        Thread writer;
+        synchronized (_queueLock)
+        {
+            writer = _writerThread;
+            _writerThread = null;
+            _queueLock.notifyAll();
+        }
+        // the writer thread writes any queued records before exiting
+        if (writer != null)
+            writer.join();
+        
         try {if (_writer != null) _writer.flush();} catch (IOException e) {Log.ignore(e);}
         if (_out != null && _closeOut) 
             try {_out.close();} catch (IOException e) {Log.ignore(e);}
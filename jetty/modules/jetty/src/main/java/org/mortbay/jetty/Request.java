@@ -16,6 +16,7 @@
 package org.mortbay.jetty;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -66,6 +67,7 @@ import org.mortbay.util.QuotedStringTokenizer;
 import org.mortbay.util.StringUtil;
 import org.mortbay.util.URIUtil;
 import org.mortbay.util.UrlEncoded;
+import org.mortbay.util.UrlEncodedIndex;
 import org.mortbay.util.ajax.Continuation;
 
 /* ------------------------------------------------------------ */
@@ -105,6 +107,7 @@ public class Request implements HttpServletRequest
 {
     private static final Collection __defaultLocale = Collections.singleton(Locale.getDefault());
     private static final int __NONE=0, _STREAM=1, __READER=2;
+    private static final int __FORM_BUFFER_SIZE=4096;
     
     private boolean _handled =false;
     private HttpConnection _connection;
@@ -135,6 +138,12 @@ public class Request implements HttpServletRequest
     private MultiMap _parameters;
     private MultiMap _baseParameters;
     private boolean _paramsExtracted;
+    private boolean _paramsIndexed;
+    private UrlEncodedIndex _queryIndex;
+    private UrlEncodedIndex _formIndex;
+    private boolean _formIndexed;
+    private byte[] _formContent;
+    private int _formLength=-1;
     private int _inputState=__NONE;
     private BufferedReader _reader;
     private String _readerEncoding;
@@ -206,6 +215,13 @@ public class Request implements HttpServletRequest
         _authType=null;
         _characterEncoding=null;
         _queryEncoding=null;
+        if (_formContent!=null)
+        {
+            // only keep a form buffer within the limit for the next request
+            int max=getMaxFormContentSize();
+            if (_formContent.length>(max>0?max:_connection.getConnector().getRequestBufferSize()))
+                _formContent=null;
+        }
         _context=null;
         _serverName=null;
         _method=null;
@@ -228,6 +244,13 @@ public class Request implements HttpServletRequest
             _baseParameters.clear();
         _parameters=null;
         _paramsExtracted=false;
+        _paramsIndexed=false;
+        _formIndexed=false;
+        _formLength=-1;
+        if (_queryIndex!=null)
+            _queryIndex.clear();
+        if (_formIndex!=null)
+            _formIndex.clear();
         _inputState=__NONE;
         
         _cookiesExtracted=false;
@@ -669,6 +692,111 @@ public class Request implements HttpServletRequest
         return _cookies;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Get the values of the cookies with a name.
+     * Unless {@link #getCookies()} has already been called, the cookie headers
+     * are scanned for the name, without parsing every cookie into a 
+     * {@link Cookie} and allocating only the values found.
+     * @param name The name of the cookies
+     * @param ignoreCase True if the name is matched ignoring case
+     * @return The values of the cookies in the order they were sent, or null if there are none.
+     */
+    public String[] getCookieValues(String name, boolean ignoreCase)
+    {
+        Object values=null;
+        if (_cookiesExtracted)
+        {
+            for (int i=0;_cookies!=null && i<_cookies.length;i++)
+            {
+                String n=_cookies[i].getName();
+                if (ignoreCase?name.equalsIgnoreCase(n):name.equals(n))
+                    values=LazyList.add(values,_cookies[i].getValue());
+            }
+        }
+        else
+        {
+            Enumeration enm = _connection.getRequestFields().getValues(HttpHeaders.COOKIE_BUFFER);
+            while (enm!=null && enm.hasMoreElements())
+            {
+                String hdr = (String)enm.nextElement();
+                
+                // split the header into cookies at separators outside of quotes
+                boolean quoted=false;
+                int start=0;
+                for (int i=0, length=hdr.length(); i<=length; i++)
+                {
+                    char c = i<length?hdr.charAt(i):';';
+                    if (quoted)
+                    {
+                        if (c=='\\')
+                        {
+                            i++;
+                            continue;
+                        }
+                        if (c=='"')
+                            quoted=false;
+                        if (i<length)
+                            continue;
+                    }
+                    else if (c=='"')
+                    {
+                        quoted=true;
+                        continue;
+                    }
+                    
+                    if (c==';' || c==',' || i==length)
+                    {
+                        values=matchCookie(hdr,start,i,name,ignoreCase,values);
+                        start=i+1;
+                    }
+                }
+            }
+        }
+        
+        if (values==null)
+            return null;
+        return (String[])LazyList.toArray(values,String.class);
+    }
+    
+    /* ------------------------------------------------------------ */
+    private static Object matchCookie(String hdr, int start, int end, String name, boolean ignoreCase, Object values)
+    {
+        int eq=hdr.indexOf('=',start);
+        if (eq<0 || eq>end)
+            eq=end;
+        
+        // trim the name
+        int ns=start;
+        int ne=eq;
+        while (ns<ne && hdr.charAt(ns)<=' ')
+            ns++;
+        while (ne>ns && hdr.charAt(ne-1)<=' ')
+            ne--;
+        // $Version, $Path etc. are attributes rather than cookies
+        if (ns==ne || hdr.charAt(ns)=='$')
+            return values;
+        
+        if (hdr.charAt(ns)=='"')
+        {
+            String n=QuotedStringTokenizer.unquote(hdr.substring(ns,ne));
+            if (!(ignoreCase?name.equalsIgnoreCase(n):name.equals(n)))
+                return values;
+        }
+        else if (ne-ns!=name.length() || !hdr.regionMatches(ignoreCase,ns,name,0,name.length()))
+            return values;
+        
+        // trim the value
+        int vs=eq+1;
+        int ve=end;
+        while (vs<ve && hdr.charAt(vs)<=' ')
+            vs++;
+        while (ve>vs && hdr.charAt(ve-1)<=' ')
+            ve--;
+        if (vs>=ve)
+            return LazyList.add(values,"");
+        return LazyList.add(values,QuotedStringTokenizer.unquote(hdr.substring(vs,ve)));
+    }
+
     /* ------------------------------------------------------------ */
     /* 
      * @see javax.servlet.http.HttpServletRequest#getDateHeader(java.lang.String)
@@ -856,7 +984,16 @@ public class Request implements HttpServletRequest
     public String getParameter(String name)
     {
         if (!_paramsExtracted) 
+        {
+            if (indexParameters())
+            {
+                String value=_queryIndex.getValue(name);
+                if (value==null && _formLength>=0)
+                    value=_formIndex.getValue(name);
+                return value;
+            }
             extractParameters();
+        }
         return (String) _parameters.getValue(name, 0);
     }
 
@@ -890,7 +1027,18 @@ public class Request implements HttpServletRequest
     public String[] getParameterValues(String name)
     {
         if (!_paramsExtracted) 
+        {
+            if (indexParameters())
+            {
+                Object values=_queryIndex.addValues(name,null);
+                if (_formLength>=0)
+                    values=_formIndex.addValues(name,values);
+                if (values==null)
+                    return null;
+                return (String[])LazyList.toArray(values,String.class);
+            }
             extractParameters();
+        }
         List vals = _parameters.getValues(name);
         if (vals==null)
             return null;
@@ -1489,6 +1637,102 @@ public class Request implements HttpServletRequest
     }
     
 
+    /* ------------------------------------------------------------ */
+    private int getMaxFormContentSize()
+    {
+        if (_context!=null)
+            return _context.getContextHandler().getMaxFormContentSize();
+        
+        Integer size = (Integer)_connection.getConnector().getServer().getAttribute("org.mortbay.jetty.Request.maxFormContentSize");
+        if (size!=null)
+            return size.intValue();
+        return -1;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /*
+     * Index parameters from the query string and/or form content, so 
+     * that parameters may be looked up by name without decoding them all.
+     * The indexes are kept for reuse by the next request on the connection.
+     * @return true if the parameters are indexed, false if they must be extracted.
+     */
+    private boolean indexParameters()
+    {
+        if (_paramsExtracted || _parameters!=null)
+            return false;
+        if (_paramsIndexed)
+            return true;
+        
+        // Index the query string
+        if (_queryEncoding!=null && !StringUtil.isUTF8(_queryEncoding))
+            return false;
+        if (_queryIndex==null)
+            _queryIndex=new UrlEncodedIndex();
+        if (_uri!=null)
+            _uri.indexQuery(_queryIndex);
+        else
+            _queryIndex.clear();
+        
+        // Read and index any form content
+        if (!_formIndexed)
+        {
+            String content_type = getContentType();
+            if (content_type != null && content_type.length() > 0)
+            {
+                content_type = HttpFields.valueParameters(content_type, null);
+                if (MimeTypes.FORM_ENCODED.equalsIgnoreCase(content_type) && _inputState==__NONE &&
+                    (HttpMethods.POST.equals(getMethod()) || HttpMethods.PUT.equals(getMethod())))
+                {
+                    String encoding = getCharacterEncoding();
+                    int content_length = getContentLength();
+                    int maxFormContentSize=getMaxFormContentSize();
+                    
+                    // Unknown lengths and other charsets are left to extractParameters 
+                    if (content_length<0 || !UrlEncodedIndex.isSupported(encoding) || 
+                        content_length>maxFormContentSize && maxFormContentSize > 0)
+                        return false;
+                    
+                    if (_formContent==null)
+                        _formContent=new byte[Math.min(content_length,__FORM_BUFFER_SIZE)];
+                    _formLength=0;
+                    try
+                    {
+                        InputStream in = getInputStream();
+                        while (_formLength<content_length)
+                        {
+                            // grow the buffer as the content arrives, as the content length is not trusted
+                            if (_formLength==_formContent.length)
+                            {
+                                byte[] content=new byte[(int)Math.min(content_length,Math.max(__FORM_BUFFER_SIZE,2L*_formContent.length))];
+                                System.arraycopy(_formContent,0,content,0,_formLength);
+                                _formContent=content;
+                            }
+                            int l=in.read(_formContent,_formLength,Math.min(content_length,_formContent.length)-_formLength);
+                            if (l<0)
+                                break;
+                            _formLength+=l;
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        if (Log.isDebugEnabled())
+                            Log.warn(e);
+                        else
+                            Log.warn(e.toString());
+                    }
+                    
+                    if (_formIndex==null)
+                        _formIndex=new UrlEncodedIndex();
+                    _formIndex.index(_formContent,0,_formLength,encoding);
+                }
+            }
+            _formIndexed=true;
+        }
+        
+        _paramsIndexed=true;
+        return true;
+    }
+    
     /* ------------------------------------------------------------ */
     /*
      * Extract Paramters from query string and/or form _content.
@@ -1537,7 +1781,19 @@ public class Request implements HttpServletRequest
         {
             content_type = HttpFields.valueParameters(content_type, null);
             
-            if (MimeTypes.FORM_ENCODED.equalsIgnoreCase(content_type) && _inputState==__NONE &&
+            if (_formLength>=0)
+            {
+                // Form content already read by indexParameters
+                try
+                {
+                    UrlEncoded.decodeTo(new ByteArrayInputStream(_formContent,0,_formLength), _baseParameters, encoding,-1);
+                }
+                catch (IOException e)
+                {
+                    Log.warn(e);
+                }
+            }
+            else if (MimeTypes.FORM_ENCODED.equalsIgnoreCase(content_type) && _inputState==__NONE &&
                     (HttpMethods.POST.equals(getMethod()) || HttpMethods.PUT.equals(getMethod())))
             {
                 int content_length = getContentLength();
@@ -1545,16 +1801,7 @@ public class Request implements HttpServletRequest
                 {
                     try
                     {
-                        int maxFormContentSize=-1;
-                        
-                        if (_context!=null)
-                            maxFormContentSize=_context.getContextHandler().getMaxFormContentSize();
-                        else
-                        {
-                            Integer size = (Integer)_connection.getConnector().getServer().getAttribute("org.mortbay.jetty.Request.maxFormContentSize");
-                            if (size!=null)
-                                maxFormContentSize =size.intValue();
-                        }
+                        int maxFormContentSize=getMaxFormContentSize();
                         
                         if (content_length>maxFormContentSize && maxFormContentSize > 0)
                         {
@@ -1645,6 +1892,7 @@ public class Request implements HttpServletRequest
     public void setUri(HttpURI uri)
     {
         _uri = uri;
+        _paramsIndexed=false;
     }
     
     /* ------------------------------------------------------------ */
@@ -2035,6 +2283,7 @@ public class Request implements HttpServletRequest
     {
         _queryEncoding=queryEncoding;
         _queryString=null;
+        _paramsIndexed=false;
     }
 
     /* ------------------------------------------------------------ */
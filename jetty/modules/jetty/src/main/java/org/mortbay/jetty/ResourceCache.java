@@ -32,20 +32,46 @@ import org.mortbay.resource.ResourceFactory;
 
 /* ------------------------------------------------------------ */
 /** 
+ * Static content cache.
+ * <p>
+ * The cache is split into a number of lock stripes (see {@link #setStripes(int)}),
+ * each with its own map and recency list, so that lookups of different resources
+ * do not contend on a single monitor.  The maxCacheSize and maxCachedFiles limits
+ * apply to the cache as a whole and victims are taken from each stripe in turn.
+ * <p>
+ * The eviction policy may be one of:<dl>
+ * <dt>{@link #LRU}</dt><dd>The least recently used content is evicted (the default).</dd>
+ * <dt>{@link #LFU}</dt><dd>The least frequently hit of a small sample of the least
+ * recently used contents is evicted.</dd>
+ * <dt>{@link #TINY_LFU}</dt><dd>LRU eviction with frequency sketch admission: new content
+ * is only cached if it has been asked for more often than the content it would evict.</dd>
+ * </dl>
+ *
  * @author Greg Wilkins
  */
 public class ResourceCache extends AbstractLifeCycle implements Serializable
 {   
+    public final static String LRU="lru";
+    public final static String LFU="lfu";
+    public final static String TINY_LFU="tinylfu";
+
+    private final static int __LRU=0;
+    private final static int __LFU=1;
+    private final static int __TINY_LFU=2;
+    private final static int __LFU_SAMPLE=8;
+
     private int _maxCachedFileSize =1024*1024;
     private int _maxCachedFiles=2048;
     private int _maxCacheSize =16*1024*1024;
+    private int _stripes=1;
+    private int _policy=__LRU;
     private MimeTypes _mimeTypes;
     
-    protected transient Map _cache;
+    protected transient Segment[] _segments;
     protected transient int _cachedSize;
     protected transient int _cachedFiles;
-    protected transient Content _mostRecentlyUsed;
-    protected transient Content _leastRecentlyUsed;
+    private transient Object _sizeLock;
+    private transient int _hand;
 
 
     /* ------------------------------------------------------------ */
@@ -113,26 +139,143 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         _maxCachedFiles = maxCachedFiles;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lock stripes.
+     */
+    public int getStripes()
+    {
+        return _stripes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param stripes The number of lock stripes, rounded up to a power of 2.
+     * Takes effect when the cache is next started.
+     */
+    public void setStripes(int stripes)
+    {
+        int s=1;
+        while (s<stripes)
+            s<<=1;
+        _stripes=s;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The eviction policy: {@link #LRU}, {@link #LFU} or {@link #TINY_LFU}
+     */
+    public String getEvictionPolicy()
+    {
+        switch(_policy)
+        {
+            case __LFU: return LFU;
+            case __TINY_LFU: return TINY_LFU;
+            default: return LRU;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param policy The eviction policy: {@link #LRU}, {@link #LFU} or {@link #TINY_LFU}.
+     * Takes effect when the cache is next started.
+     */
+    public void setEvictionPolicy(String policy)
+    {
+        if (LRU.equalsIgnoreCase(policy))
+            _policy=__LRU;
+        else if (LFU.equalsIgnoreCase(policy))
+            _policy=__LFU;
+        else if (TINY_LFU.equalsIgnoreCase(policy))
+            _policy=__TINY_LFU;
+        else
+            throw new IllegalArgumentException("Unknown eviction policy: "+policy);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lookups that found valid cached content.
+     */
+    public long getHits()
+    {
+        long hits=0;
+        Segment[] segments=_segments;
+        for (int i=0;segments!=null && i<segments.length;i++)
+        {
+            synchronized(segments[i])
+            {
+                hits+=segments[i]._hits;
+            }
+        }
+        return hits;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lookups that did not find valid cached content.
+     */
+    public long getMisses()
+    {
+        long misses=0;
+        Segment[] segments=_segments;
+        for (int i=0;segments!=null && i<segments.length;i++)
+        {
+            synchronized(segments[i])
+            {
+                misses+=segments[i]._misses;
+            }
+        }
+        return misses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of contents evicted to keep within the cache limits.
+     */
+    public long getEvictions()
+    {
+        long evictions=0;
+        Segment[] segments=_segments;
+        for (int i=0;segments!=null && i<segments.length;i++)
+        {
+            synchronized(segments[i])
+            {
+                evictions+=segments[i]._evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void resetStats()
+    {
+        Segment[] segments=_segments;
+        for (int i=0;segments!=null && i<segments.length;i++)
+        {
+            synchronized(segments[i])
+            {
+                segments[i]._hits=0;
+                segments[i]._misses=0;
+                segments[i]._evictions=0;
+            }
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public void flushCache()
     {
-        if (_cache!=null)
+        Segment[] segments=_segments;
+        for (int i=0;segments!=null && i<segments.length;i++)
         {
-            synchronized(this)
+            synchronized(segments[i])
             {
-                ArrayList values=new ArrayList(_cache.values());
+                ArrayList values=new ArrayList(segments[i]._map.values());
                 Iterator iter = values.iterator();
                 while(iter.hasNext())
                 {
                     Content content = (Content)iter.next();
                     content.invalidate();
                 }
-                
-                _cache.clear();
-                _cachedSize=0;
-                _cachedFiles=0;
-                _mostRecentlyUsed=null;
-                _leastRecentlyUsed=null;
             }
         }
     }
@@ -149,19 +292,10 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
     public Content lookup(String pathInContext, ResourceFactory factory)
         throws IOException
     {
-        Content content=null;
-        
-        // Look up cache operations
-        synchronized(_cache)
-        {
-            // Look for it in the cache
-            content = (Content)_cache.get(pathInContext);
+        Content content=get(pathInContext);
+        if (content!=null)
+            return content;
         
-            if (content!=null && content.isValid())
-            {
-                return content;
-            }    
-        }
         Resource resource=factory.getResource(pathInContext);
         return load(pathInContext,resource);
     }
@@ -169,23 +303,60 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
     public Content lookup(String pathInContext, Resource resource)
         throws IOException
     {
+        Content content=get(pathInContext);
+        if (content!=null)
+            return content;
+
+        return load(pathInContext,resource);
+    }
+
+    /* ------------------------------------------------------------ */
+    private Segment getSegment(String pathInContext)
+    {
+        int h=pathInContext.hashCode();
+        h^=(h>>>20)^(h>>>12);
+        h^=(h>>>7)^(h>>>4);
+        return _segments[h&(_segments.length-1)];
+    }
+
+    /* ------------------------------------------------------------ */
+    protected Content get(String pathInContext)
+    {
+        Segment segment=getSegment(pathInContext);
         Content content=null;
         
         // Look up cache operations
-        synchronized(_cache)
+        synchronized(segment)
         {
+            if (segment._sketch!=null)
+                segment._sketch.increment(pathInContext.hashCode());
+
             // Look for it in the cache
-            content = (Content)_cache.get(pathInContext);
-        
-            if (content!=null && content.isValid())
+            content = (Content)segment._map.get(pathInContext);
+            if (content==null)
             {
-                return content;
-            }    
+                segment._misses++;
+                return null;
+            }
+            segment._hits++;
+            content._frequency++;
+            segment.touch(content);
         }
-        return load(pathInContext,resource);
+        
+        // check the resource outside of the lock
+        if (content.isValid())
+            return content;
+
+        synchronized(segment)
+        {
+            segment._hits--;
+            segment._misses++;
+        }
+        return null;
     }
 
-    private Content load(String pathInContext, Resource resource)
+    /* ------------------------------------------------------------ */
+    protected Content load(String pathInContext, Resource resource)
         throws IOException
     {
         Content content=null;
@@ -194,40 +365,83 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
             long len = resource.length();
             if (len>0 && len<_maxCachedFileSize && len<_maxCacheSize)
             {
+                Segment segment=getSegment(pathInContext);
+                if (!segment.admit(pathInContext,(int)len))
+                    return null;
+
                 content = new Content(resource);
                 fill(content);
 
-                synchronized(_cache)
+                synchronized(segment)
                 {
                     // check that somebody else did not fill this spot.
-                    Content content2 =(Content)_cache.get(pathInContext);
+                    Content content2 =(Content)segment._map.get(pathInContext);
                     if (content2!=null)
                     {
                         content.release();
                         return content2;
                     }
 
-                    int must_be_smaller_than=_maxCacheSize-(int)len;
-                    while(_cachedSize>must_be_smaller_than || (_maxCachedFiles>0 && _cachedFiles>=_maxCachedFiles))
-                        _leastRecentlyUsed.invalidate();
-                    content.cache(pathInContext);
-                    
-                    return content;
+                    content.cache(segment,pathInContext);
                 }
+                    
+                shrink(content);
+                return content;
             }
         }
 
         return null; 
     }
 
+    /* ------------------------------------------------------------ */
+    private boolean isOverLimit(int size, int files)
+    {
+        synchronized(_sizeLock)
+        {
+            return _cachedSize+size>_maxCacheSize || (_maxCachedFiles>0 && _cachedFiles+files>_maxCachedFiles);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Evict contents until the cache is within its limits.
+     * Victims are taken from each stripe in turn, so that no more than
+     * one stripe lock is held at a time.
+     * @param added The content just added, which is not evicted.
+     */
+    private void shrink(Content added)
+    {
+        Segment[] segments=_segments;
+        int empty=0;
+        while (empty<segments.length && isOverLimit(0,0))
+        {
+            Segment segment=segments[(_hand++)&(segments.length-1)];
+            synchronized(segment)
+            {
+                Content victim=segment.victim(added);
+                if (victim==null)
+                    empty++;
+                else
+                {
+                    empty=0;
+                    segment._evictions++;
+                    victim.invalidate();
+                }
+            }
+        }
+    }
 
     /* ------------------------------------------------------------ */
     public synchronized void doStart()
         throws Exception
     {
-        _cache=new HashMap();
+        _sizeLock=new Object();
         _cachedSize=0;
         _cachedFiles=0;
+
+        Segment[] segments=new Segment[_stripes];
+        for (int i=0;i<segments.length;i++)
+            segments[i]=new Segment();
+        _segments=segments;
     }
 
     /* ------------------------------------------------------------ */
@@ -258,6 +472,169 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         }
     }
     
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A lock stripe of the cache.
+     * All fields are protected by the segment monitor.
+     */
+    protected class Segment
+    {
+        final Map _map=new HashMap();
+        final FrequencySketch _sketch;
+        Content _mostRecentlyUsed;
+        Content _leastRecentlyUsed;
+        long _hits;
+        long _misses;
+        long _evictions;
+
+        /* ------------------------------------------------------------ */
+        Segment()
+        {
+            if (_policy==__TINY_LFU)
+            {
+                int files=_maxCachedFiles>0?_maxCachedFiles:2048;
+                _sketch=new FrequencySketch(Math.max(16,4*files/_stripes));
+            }
+            else
+                _sketch=null;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Move content to the head of the recency list.
+         */
+        void touch(Content content)
+        {
+            if (_mostRecentlyUsed!=content)
+            {
+                Content tp = content._prev;
+                Content tn = content._next;
+
+                content._next=_mostRecentlyUsed;
+                _mostRecentlyUsed=content;
+                if (content._next!=null)
+                    content._next._prev=content;
+                content._prev=null;
+
+                if (tp!=null)
+                    tp._next=tn;
+                if (tn!=null)
+                    tn._prev=tp;
+
+                if (_leastRecentlyUsed==content && tp!=null)
+                    _leastRecentlyUsed=tp;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param exclude Content that is not evicted, or null.
+         * @return The content to evict from this stripe, or null if it has
+         * no content other than the excluded content.
+         */
+        Content victim(Content exclude)
+        {
+            Content victim=_leastRecentlyUsed;
+            if (victim!=null && victim==exclude)
+                victim=victim._prev;
+            if (_policy!=__LFU || victim==null)
+                return victim;
+
+            Content content=victim;
+            for (int i=__LFU_SAMPLE;content!=null && i-->0;content=content._prev)
+                if (content!=exclude && content._frequency<victim._frequency)
+                    victim=content;
+            return victim;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Frequency sketch admission.
+         * @return True if new content for the path may be cached.
+         */
+        boolean admit(String pathInContext, int size)
+        {
+            if (_sketch==null || !isOverLimit(size,1))
+                return true;
+
+            synchronized(this)
+            {
+                Content victim=victim(null);
+                if (victim==null)
+                    return true;
+                return _sketch.frequency(pathInContext.hashCode())>_sketch.frequency(victim._key.hashCode());
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Count-min sketch of 4 bit access frequencies.
+     * Counters are halved once the number of increments reaches
+     * 10 times the capacity, so that old popularity ages out.
+     */
+    static class FrequencySketch
+    {
+        private final static int[] __SEEDS = {0x97cb3127,0xb4b82e39,0x6b6c9ac1,0x2bd3e1f5};
+        private final byte[] _table;
+        private final int _mask;
+        private final int _sampleSize;
+        private int _additions;
+
+        /* ------------------------------------------------------------ */
+        FrequencySketch(int capacity)
+        {
+            int size=16;
+            while (size<capacity)
+                size<<=1;
+            _table=new byte[size];
+            _mask=size-1;
+            _sampleSize=10*capacity;
+        }
+
+        /* ------------------------------------------------------------ */
+        void increment(int hash)
+        {
+            int min=frequency(hash);
+            if (min<15)
+            {
+                // conservative update: only bump the counters at the minimum
+                for (int i=0;i<__SEEDS.length;i++)
+                {
+                    int index=index(hash,i);
+                    if (_table[index]==min)
+                        _table[index]++;
+                }
+            }
+
+            if (++_additions>=_sampleSize)
+            {
+                for (int i=0;i<_table.length;i++)
+                    _table[i]>>=1;
+                _additions/=2;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        int frequency(int hash)
+        {
+            int min=15;
+            for (int i=0;i<__SEEDS.length;i++)
+            {
+                int count=_table[index(hash,i)];
+                if (count<min)
+                    min=count;
+            }
+            return min;
+        }
+
+        /* ------------------------------------------------------------ */
+        private int index(int hash, int i)
+        {
+            int h=(hash+__SEEDS[i])*__SEEDS[i];
+            h^=h>>>16;
+            return h&_mask;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /** MetaData associated with a context Resource.
@@ -267,8 +644,10 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         String _key;
         Resource _resource;
         long _lastModified;
+        Segment _segment;
         Content _prev;
         Content _next;
+        int _frequency;
         
         Buffer _lastModifiedBytes;
         Buffer _contentType;
@@ -287,20 +666,27 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         }
 
         /* ------------------------------------------------------------ */
-        void cache(String pathInContext)
+        /** Add to the cache.
+         * Called with the segment lock held.
+         */
+        void cache(Segment segment, String pathInContext)
         {
             _key=pathInContext;
-            _next=_mostRecentlyUsed;
-            _mostRecentlyUsed=this;
+            _segment=segment;
+            _next=segment._mostRecentlyUsed;
+            segment._mostRecentlyUsed=this;
             if (_next!=null)
                 _next._prev=this;
             _prev=null;
-            if (_leastRecentlyUsed==null)
-                _leastRecentlyUsed=this;
+            if (segment._leastRecentlyUsed==null)
+                segment._leastRecentlyUsed=this;
 
-            _cache.put(_key,this);
-            _cachedSize+=_buffer.length();
-            _cachedFiles++;
+            segment._map.put(_key,this);
+            synchronized(_sizeLock)
+            {
+                _cachedSize+=_buffer.length();
+                _cachedFiles++;
+            }
             if (_lastModified!=-1)
                 _lastModifiedBytes=new ByteArrayBuffer(HttpFields.formatDate(_lastModified,false));
         }
@@ -326,29 +712,9 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         /* ------------------------------------------------------------ */
         boolean isValid()
         {
-            if (_lastModified==_resource.lastModified())
-            {
-                if (_mostRecentlyUsed!=this)
-                {
-                    Content tp = _prev;
-                    Content tn = _next;
-
-                    _next=_mostRecentlyUsed;
-                    _mostRecentlyUsed=this;
-                    if (_next!=null)
-                        _next._prev=this;
-                    _prev=null;
-
-                    if (tp!=null)
-                        tp._next=tn;
-                    if (tn!=null)
-                        tn._prev=tp;
-
-                    if (_leastRecentlyUsed==this && tp!=null)
-                        _leastRecentlyUsed=tp;
-                }
+            Resource resource=_resource;
+            if (resource!=null && _lastModified==resource.lastModified())
                 return true;
-            }
 
             invalidate();
             return false;
@@ -357,21 +723,31 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         /* ------------------------------------------------------------ */
         public void invalidate()
         {
-            synchronized(this)
+            Segment segment=_segment;
+            if (segment==null)
+                return;
+
+            synchronized(segment)
             {
+                if (_key==null)
+                    return;
+
                 // Invalidate it
-                _cache.remove(_key);
+                segment._map.remove(_key);
                 _key=null;
-                _cachedSize=_cachedSize-(int)_buffer.length();
-                _cachedFiles--;
+                synchronized(_sizeLock)
+                {
+                    _cachedSize=_cachedSize-(int)_buffer.length();
+                    _cachedFiles--;
+                }
                 
-                if (_mostRecentlyUsed==this)
-                    _mostRecentlyUsed=_next;
+                if (segment._mostRecentlyUsed==this)
+                    segment._mostRecentlyUsed=_next;
                 else
                     _prev._next=_next;
                 
-                if (_leastRecentlyUsed==this)
-                    _leastRecentlyUsed=_prev;
+                if (segment._leastRecentlyUsed==this)
+                    segment._leastRecentlyUsed=_prev;
                 else
                     _next._prev=_prev;
                 
@@ -0,0 +1,55 @@
+// ========================================================================
+// Copyright 2003-2005 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+ 
+package org.mortbay.jetty.bio;
+
+import org.mortbay.thread.ThreadPool;
+import org.mortbay.thread.VirtualThreadPool;
+
+
+/* ------------------------------------------------------------------------------- */
+/**  Virtual Thread Socket Connector.
+ * A {@link SocketConnector} that runs each connection on its own
+ * {@link VirtualThreadPool}, so that a virtual thread is allocated per
+ * connection when the runtime supports them.  This allows blocking
+ * servlets to be used with very many concurrent connections.
+ * If virtual threads are not supported, the connector falls back to
+ * a pool of platform threads and behaves as a normal SocketConnector.
+ * <p>
+ * Other connectors may be given a {@link VirtualThreadPool} with
+ * {@link #setThreadPool(ThreadPool)}.
+ * 
+ * @org.apache.xbean.XBean element="virtualBioConnector" description="Creates a BIO based socket connector using virtual threads"
+ */
+public class VirtualSocketConnector extends SocketConnector
+{
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * 
+     */
+    public VirtualSocketConnector()
+    {
+        setThreadPool(new VirtualThreadPool());
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if connections are handled by virtual threads.
+     */
+    public boolean isVirtual()
+    {
+        ThreadPool pool=getThreadPool();
+        return (pool instanceof VirtualThreadPool) && ((VirtualThreadPool)pool).isVirtual();
+    }
+}
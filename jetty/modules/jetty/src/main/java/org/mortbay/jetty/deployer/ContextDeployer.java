@@ -75,6 +75,7 @@ public class ContextDeployer extends AbstractLifeCycle
     private ContextHandlerCollection _contexts;
     private ConfigurationManager _configMgr;
     private boolean _recursive = false;
+    private boolean _watch = false;
 
     /* ------------------------------------------------------------ */
     protected class ScannerListener implements Scanner.DiscreteListener
@@ -166,6 +167,25 @@ public class ContextDeployer extends AbstractLifeCycle
         return _scanInterval;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @param watch True if the configuration directory is watched for changes
+     *            when the runtime supports it, rather than scanned every scan interval.
+     * @see Scanner#setWatch(boolean)
+     */
+    public void setWatch(boolean watch)
+    {
+        if (isStarted()||isStarting())
+            throw new IllegalStateException("Cannot change watch after deployer start");
+        _watch=watch;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean getWatch()
+    {
+        return _watch;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @param dir
@@ -302,6 +322,7 @@ public class ContextDeployer extends AbstractLifeCycle
             throw new IllegalStateException("No context handler collection specified for deployer");
 
         _scanner.setScanDir(_configurationDir.getFile());
+        _scanner.setWatch(_watch);
         _scanner.setScanInterval(getScanInterval());
         _scanner.setRecursive(_recursive); //only look in the top level for deployment files?
         // Accept changes only in files that could be a deployment descriptor
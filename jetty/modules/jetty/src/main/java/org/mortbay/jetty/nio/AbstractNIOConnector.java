@@ -18,10 +18,13 @@
 package org.mortbay.jetty.nio;
 
 import org.mortbay.io.Buffer;
+import org.mortbay.io.EndPoint;
+import org.mortbay.io.nio.ChannelEndPoint;
 import org.mortbay.io.nio.DirectNIOBuffer;
 import org.mortbay.io.nio.IndirectNIOBuffer;
 import org.mortbay.io.nio.NIOBuffer;
 import org.mortbay.jetty.AbstractConnector;
+import org.mortbay.jetty.HttpConnection;
 
 /* ------------------------------------------------------------ */
 /**
@@ -31,6 +34,9 @@ import org.mortbay.jetty.AbstractConnector;
 public abstract class AbstractNIOConnector extends AbstractConnector implements NIOConnector
 {
     private boolean _useDirectBuffers=true;
+    private final Object _bytesLock=new Object();
+    private long _bytesWritten;
+    private long _bytesCopied;
  
     /* ------------------------------------------------------------------------------- */
     public boolean getUseDirectBuffers()
@@ -74,5 +80,56 @@ public abstract class AbstractNIOConnector extends AbstractConnector implements
         return buf;
     }
     
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return Number of bytes written by connections closed
+     * since statsReset() called. Undefined if setStatsOn(false).
+     */
+    public long getBytesWritten()
+    {
+        return _bytesWritten;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return Number of bytes written by connections closed since statsReset()
+     * called, that were copied into another buffer rather than written
+     * directly with a gathering write. Undefined if setStatsOn(false).
+     */
+    public long getBytesCopied()
+    {
+        return _bytesCopied;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void statsReset()
+    {
+        super.statsReset();
+        synchronized(_bytesLock)
+        {
+            _bytesWritten=0;
+            _bytesCopied=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void connectionClosed(HttpConnection connection)
+    {
+        if (getStatsOn())
+        {
+            EndPoint endp=connection.getEndPoint();
+            if (endp instanceof ChannelEndPoint)
+            {
+                ChannelEndPoint cep=(ChannelEndPoint)endp;
+                synchronized(_bytesLock)
+                {
+                    _bytesWritten+=cep.getBytesWritten();
+                    _bytesCopied+=cep.getBytesCopied();
+                }
+            }
+        }
+        super.connectionClosed(connection);
+    }
+    
 
 }
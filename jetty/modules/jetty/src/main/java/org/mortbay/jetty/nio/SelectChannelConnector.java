@@ -112,10 +112,12 @@ public class SelectChannelConnector extends AbstractNIOConnector
     /* ------------------------------------------------------------------------------- */
     /**
      * Constructor.
-     * 
+     * The number of acceptors, each of which runs a SelectSet, defaults
+     * to {@link SelectorManager#getDefaultSelectSets()}.
      */
     public SelectChannelConnector()
     {
+        setAcceptors(SelectorManager.getDefaultSelectSets());
     }
     
     /* ------------------------------------------------------------ */
@@ -180,6 +182,46 @@ public class SelectChannelConnector extends AbstractNIOConnector
         return _manager.isDelaySelectKeyUpdate();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if connection timeouts are kept in a {@link org.mortbay.thread.WheelTimeout}
+     */
+    public boolean getUseTimeoutWheel()
+    {
+        return _manager.getUseTimeoutWheel();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The SelectorManager of the connector, from which the load and
+     * statistics of each SelectSet may be read.
+     */
+    public SelectorManager getSelectorManager()
+    {
+        return _manager;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A description of the load and statistics of each SelectSet, 
+     * or an empty array if the connector is not started.
+     */
+    public String[] getSelectSetStatistics()
+    {
+        int sets=_manager.isStarted()?_manager.getSelectSets():0;
+        String[] stats=new String[sets];
+        for (int i=0;i<sets;i++)
+            stats[i]=String.valueOf(_manager.getSelectSet(i));
+        return stats;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void statsReset()
+    {
+        super.statsReset();
+        _manager.resetStatistics();
+    }
+
     /* ------------------------------------------------------------------------------- */
     public int getLocalPort()
     {
@@ -234,6 +276,17 @@ public class SelectChannelConnector extends AbstractNIOConnector
         _manager.setDelaySelectKeyUpdate(delay);
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @param useTimeoutWheel If true, connection idle and continuation timeouts are kept
+     * in a {@link org.mortbay.thread.WheelTimeout}, which is O(1) to schedule and cancel and is
+     * suitable for very many connections.
+     */
+    public void setUseTimeoutWheel(boolean useTimeoutWheel)
+    {
+        _manager.setUseTimeoutWheel(useTimeoutWheel);
+    }
+
     /* ------------------------------------------------------------ */
     public void setMaxIdleTime(int maxIdleTime)
     {
@@ -0,0 +1,289 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.security;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mortbay.io.BufferCache;
+import org.mortbay.jetty.HttpMethods;
+import org.mortbay.jetty.servlet.PathMap;
+import org.mortbay.util.LazyList;
+import org.mortbay.util.StringMap;
+
+/* ------------------------------------------------------------ */
+/** Compiled table of security constraints.
+ * <p>
+ * The constraints of a set of {@link ConstraintMapping}s are combined
+ * when the table is built, for each path spec and each HTTP method, into a
+ * single {@link Decision}.  A request is then checked with a path lookup
+ * and a method lookup, instead of combining the mapped constraints on
+ * every request.
+ * <p>
+ * The decisions are the same as combining the constraints of the best
+ * matching path spec that has mappings for the method of the request,
+ * as the mappings were combined by {@link SecurityHandler}.
+ * <p>
+ * A table is immutable and changes to the mappings or their constraints
+ * are not seen by a table that has already been built.
+ */
+public class ConstraintTable
+{
+    private final PathMap _map=new PathMap();
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param mappings The constraint mappings, which may be null.
+     */
+    public ConstraintTable(ConstraintMapping[] mappings)
+    {
+        if (mappings==null)
+            return;
+
+        Map specs=new HashMap();
+        for (int i=0;i<mappings.length;i++)
+        {
+            String path_spec=mappings[i].getPathSpec();
+            specs.put(path_spec,LazyList.add(specs.get(path_spec),mappings[i]));
+        }
+
+        // Put the specs in the order of the mappings, as a spec such as /a/*
+        // also maps the exact path /a and the last put of /a takes precedence
+        for (int i=0;i<mappings.length;i++)
+        {
+            String path_spec=mappings[i].getPathSpec();
+            Object methods=specs.get(path_spec);
+            if (!(methods instanceof Methods))
+            {
+                methods=new Methods(methods);
+                specs.put(path_spec,methods);
+            }
+            _map.put(path_spec,methods);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the combined constraints for a request.
+     * @param pathInContext The path of the request
+     * @param method The method of the request
+     * @return The decision, or null if no constraints apply to the request.
+     */
+    public Decision getDecision(String pathInContext, String method)
+    {
+        // The best match is also the first of the lazy matches, unless
+        // the path ends with a / that only getMatch tries as a prefix.
+        if (pathInContext!=null && !pathInContext.endsWith("/"))
+        {
+            Map.Entry entry=_map.getMatch(pathInContext);
+            if (entry==null)
+                return null;
+            Decision decision=((Methods)entry.getValue()).getDecision(method);
+            if (decision!=null)
+                return decision;
+        }
+
+        Object entries=_map.getLazyMatches(pathInContext);
+        for (int i=0;i<LazyList.size(entries);i++)
+        {
+            Map.Entry entry=(Map.Entry)LazyList.get(entries,i);
+            Decision decision=((Methods)entry.getValue()).getDecision(method);
+            if (decision!=null)
+                return decision;
+        }
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The decisions for a path spec, by method.
+     */
+    private static class Methods
+    {
+        private final Decision[] _known=new Decision[HttpMethods.MOVE_ORDINAL+1];
+        private final StringMap _other=new StringMap(StringMap.CASE_INSENSTIVE);
+        private final Decision _any;
+
+        /* ------------------------------------------------------------ */
+        Methods(Object mappings)
+        {
+            for (int m=0;m<LazyList.size(mappings);m++)
+            {
+                String method=((ConstraintMapping)LazyList.get(mappings,m)).getMethod();
+                if (method!=null && HttpMethods.CACHE.get(method)==null && _other.get(method)==null)
+                    _other.put(method,Decision.combine(mappings,method));
+            }
+            for (int o=1;o<_known.length;o++)
+            {
+                BufferCache.CachedBuffer method=HttpMethods.CACHE.get(o);
+                if (method!=null)
+                    _known[o]=Decision.combine(mappings,method.toString());
+            }
+            _any=Decision.combine(mappings,null);
+        }
+
+        /* ------------------------------------------------------------ */
+        Decision getDecision(String method)
+        {
+            BufferCache.CachedBuffer known=HttpMethods.CACHE.get(method);
+            if (known!=null)
+                return _known[known.getOrdinal()];
+            if (_other.size()>0)
+            {
+                Decision decision=(Decision)_other.get(method);
+                if (decision!=null)
+                    return decision;
+            }
+            return _any;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The combined constraints for a path spec and method.
+     */
+    public static class Decision
+    {
+        private final boolean _forbidden;
+        private final int _dataConstraint;
+        private final boolean _unauthenticated;
+        private final boolean _anyRole;
+        private final String[] _roles;
+
+        /* ------------------------------------------------------------ */
+        private Decision(boolean forbidden, int dataConstraint, boolean unauthenticated, boolean anyRole, String[] roles)
+        {
+            _forbidden=forbidden;
+            _dataConstraint=dataConstraint;
+            _unauthenticated=unauthenticated;
+            _anyRole=anyRole;
+            _roles=roles;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Combine the constraints of the mappings for a method.
+         * @param mappings LazyList of the {@link ConstraintMapping}s of a path spec
+         * @param method The method, or null for methods without their own mappings
+         * @return The decision or null if no mappings apply to the method.
+         */
+        static Decision combine(Object mappings, String method)
+        {
+            int dataConstraint= Constraint.DC_NONE;
+            Object roles= null;
+            boolean unauthenticated= false;
+            boolean forbidden= false;
+            boolean mapped=false;
+
+            for (int m= 0; m < LazyList.size(mappings); m++)
+            {
+                ConstraintMapping mapping=(ConstraintMapping)LazyList.get(mappings,m);
+                if (mapping.getMethod()!=null && !mapping.getMethod().equalsIgnoreCase(method))
+                    continue;
+                mapped=true;
+                Constraint sc= mapping.getConstraint();
+
+                // Combine data constraints.
+                if (dataConstraint > Constraint.DC_UNSET && sc.hasDataConstraint())
+                {
+                    if (sc.getDataConstraint() > dataConstraint)
+                        dataConstraint= sc.getDataConstraint();
+                }
+                else
+                    dataConstraint= Constraint.DC_UNSET; // ignore all other data constraints
+
+                // Combine auth constraints.
+                if (!unauthenticated && !forbidden)
+                {
+                    if (sc.getAuthenticate())
+                    {
+                        if (sc.isAnyRole())
+                        {
+                            roles= Constraint.ANY_ROLE;
+                        }
+                        else
+                        {
+                            String[] scr= sc.getRoles();
+                            if (scr == null || scr.length == 0)
+                            {
+                                forbidden= true;
+                                break;
+                            }
+                            else if (roles != Constraint.ANY_ROLE)
+                            {
+                                for (int r=scr.length;r-->0;)
+                                    roles= LazyList.add(roles, scr[r]);
+                            }
+                        }
+                    }
+                    else
+                        unauthenticated= true;
+                }
+            }
+
+            if (!mapped)
+                return null;
+            if (roles==Constraint.ANY_ROLE)
+                return new Decision(forbidden,dataConstraint,unauthenticated,true,null);
+            return new Decision(forbidden,dataConstraint,unauthenticated,false,
+                    roles==null?null:(String[])LazyList.toArray(roles,String.class));
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if the constraints forbid all access.
+         */
+        public boolean isForbidden()
+        {
+            return _forbidden;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The combined data constraint
+         */
+        public int getDataConstraint()
+        {
+            return _dataConstraint;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if the user must be authenticated and in a role.
+         */
+        public boolean isAuthMandatory()
+        {
+            return !_unauthenticated && (_anyRole || _roles!=null);
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if the user may be in any role.
+         */
+        public boolean isAnyRole()
+        {
+            return _anyRole;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The roles the user may be in, or null if any role.
+         */
+        public String[] getRoles()
+        {
+            return _roles;
+        }
+    }
+}
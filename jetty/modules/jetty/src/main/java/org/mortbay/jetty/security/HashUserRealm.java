@@ -77,6 +77,7 @@ public class HashUserRealm extends AbstractLifeCycle implements UserRealm, SSORe
     private SSORealm _ssoRealm;
     private Scanner _scanner;
     private int _refreshInterval=0;//default is not to reload
+    private volatile int _configVersion;
     
 
     /* ------------------------------------------------------------ */
@@ -130,7 +131,26 @@ public class HashUserRealm extends AbstractLifeCycle implements UserRealm, SSORe
         _config=config;
         _configResource=Resource.newResource(_config);
        loadConfig();
+       usersChanged();
+    }
  
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return A version number that is incremented each time the config is (re)loaded
+     * and each time users or roles are put or removed.
+     */
+    public int getConfigVersion()
+    {
+        return _configVersion;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Note a change to the users or roles, so that cached
+     * authentications are discarded.
+     */
+    protected synchronized void usersChanged()
+    {
+        _configVersion++;
     }
     
 
@@ -257,14 +277,17 @@ public class HashUserRealm extends AbstractLifeCycle implements UserRealm, SSORe
      */
     public synchronized Object put(Object name, Object credentials)
     {
+        Object old=null;
         if (credentials instanceof Principal)
-            return _users.put(name.toString(),credentials);
-        
-        if (credentials instanceof Password)
-            return _users.put(name,new KnownUser(name.toString(),(Password)credentials));
-        if (credentials != null)
-            return _users.put(name,new KnownUser(name.toString(),Credential.getCredential(credentials.toString())));
-        return null;
+            old=_users.put(name.toString(),credentials);
+        else if (credentials instanceof Password)
+            old=_users.put(name,new KnownUser(name.toString(),(Password)credentials));
+        else if (credentials != null)
+            old=_users.put(name,new KnownUser(name.toString(),Credential.getCredential(credentials.toString())));
+        else
+            return null;
+        usersChanged();
+        return old;
     }
 
     /* ------------------------------------------------------------ */
@@ -281,6 +304,7 @@ public class HashUserRealm extends AbstractLifeCycle implements UserRealm, SSORe
             _roles.put(roleName,userSet);
         }
         userSet.add(userName);
+        usersChanged();
     }
     
     /* -------------------------------------------------------- */
@@ -414,7 +438,10 @@ public class HashUserRealm extends AbstractLifeCycle implements UserRealm, SSORe
                     if (filenames.isEmpty())
                         return;
                     if (filenames.size()==1 && filenames.get(0).equals(_config))
+                    {
                         loadConfig();
+                        usersChanged();
+                    }
                 }
                 public String toString()
                 {
@@ -22,11 +22,19 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.mortbay.jetty.Request;
 import org.mortbay.log.Log;
-import org.mortbay.resource.Resource;
+import org.mortbay.util.LazyList;
 import org.mortbay.util.Loader;
 
 /* ------------------------------------------------------------ */
@@ -37,11 +45,16 @@ import org.mortbay.util.Loader;
  * If the user is not found, it will fetch details from the database
  * and populate the inherited HashMap. It then calls the HashUserRealm
  * authenticate() method to perform the actual authentication.
- * Periodically (controlled by configuration parameter), internal
- * hashes are cleared. Caching can be disabled by setting cache
- * refresh interval to zero.
- * Uses one database connection that is initialized at startup. Reconnect
- * on failures. authenticate() is 'synchronized'.
+ * <p>
+ * Each user is cached for the configured cache time, and users that
+ * are not found in the database are cached for the negative cache time.
+ * A user that is used after three quarters of the cache time has passed
+ * is refreshed from the database in the background, so that frequently
+ * used users do not expire.  Only one thread loads a given user, and
+ * caching can be disabled by setting the cache time to zero.
+ * <p>
+ * Users are loaded without holding the realm lock, with connections
+ * from a small pool that are opened as needed. Reconnect on failures.
  *
  * An example properties file for configuration is in
  * $JETTY_HOME/etc/jdbcRealm.properties
@@ -71,11 +84,18 @@ public class JDBCUserRealm extends HashUserRealm implements UserRealm
     private String _userRoleTableUserKey;
     private String _userRoleTableRoleKey;
     private int _cacheTime;
+    private int _negativeCacheTime;
+    private int _maxConnections;
     
-    private long _lastHashPurge;
-    private Connection _con;
     private String _userSql;
     private String _roleSql;
+
+    private final Map _cache=new HashMap();
+    private int _nextSweep=1024;
+    private Timer _timer;
+
+    private final List _connections=new ArrayList();
+    private int _openConnections;
     
     /* ------------------------------------------------------------ */
     /** Constructor. 
@@ -141,18 +161,28 @@ public class JDBCUserRealm extends HashUserRealm implements UserRealm
         // default cachetime = 30s
         String cachetime = properties.getProperty("cachetime");
         _cacheTime = cachetime!=null ? new Integer(cachetime).intValue() : 30;
+        // default negativecachetime = cachetime
+        String negativecachetime = properties.getProperty("negativecachetime");
+        _negativeCacheTime = negativecachetime!=null ? new Integer(negativecachetime).intValue() : _cacheTime;
+        // default maxconnections = 4
+        String maxconnections = properties.getProperty("maxconnections");
+        _maxConnections = maxconnections!=null ? new Integer(maxconnections).intValue() : 4;
         
         if (_jdbcDriver == null || _jdbcDriver.equals("")
             || _url == null || _url.equals("")
             || _userName == null || _userName.equals("")
             || _password == null
-            || _cacheTime < 0)
+            || _cacheTime < 0
+            || _negativeCacheTime < 0
+            || _maxConnections < 1)
         {
             if(Log.isDebugEnabled())Log.debug("UserRealm " + getName()
                         + " has not been properly configured");
         }
+        if (_maxConnections < 1)
+            _maxConnections = 1;
         _cacheTime *= 1000;
-        _lastHashPurge = 0;
+        _negativeCacheTime *= 1000;
         _userSql = "select " + _userTableKey + ","
             + _userTablePasswordField + " from "
             + _userTable + " where "
@@ -163,6 +193,24 @@ public class JDBCUserRealm extends HashUserRealm implements UserRealm
             + _userRoleTableUserKey + " = ?"
             + " and r." + _roleTableKey + " = u."
             + _userRoleTableRoleKey;
+
+        synchronized (_cache)
+        {
+            _cache.clear();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+        synchronized (_cache)
+        {
+            if (_timer!=null)
+                _timer.cancel();
+            _timer=null;
+        }
+        closeConnections();
     }
 
     /* ------------------------------------------------------------ */
@@ -171,24 +219,19 @@ public class JDBCUserRealm extends HashUserRealm implements UserRealm
     
     /* ------------------------------------------------------------ */
     /** (re)Connect to database with parameters setup by loadConfig()
+     * and add the connection to the pool.
      */
     public void connectDatabase()
     {
         try 
         {
-             Class.forName(_jdbcDriver);
-            _con = DriverManager.getConnection(_url, _userName, _password);
+            returnConnection(getConnection(),true);
         }
         catch(SQLException e)
         {
             Log.warn("UserRealm " + getName()
                       + " could not connect to database; will try later", e);
         }
-        catch(ClassNotFoundException e)
-        {
-            Log.warn("UserRealm " + getName()
-                      + " could not connect to database; will try later", e);
-        }
     }
     
     /* ------------------------------------------------------------ */
@@ -196,23 +239,7 @@ public class JDBCUserRealm extends HashUserRealm implements UserRealm
                                   Object credentials,
                                   Request request)
     {
-        synchronized (this)
-        {
-            long now = System.currentTimeMillis();
-            if (now - _lastHashPurge > _cacheTime || _cacheTime == 0)
-            {
-                _users.clear();
-                _roles.clear();
-                _lastHashPurge = now;
-                closeConnection(); //force a fresh connection
-            }
-            Principal user = super.getPrincipal(username);
-            if (user == null)
-            {
-                loadUser(username);
-                user = super.getPrincipal(username);
-            }
-        }
+        cacheUser(username);
         return super.authenticate(username, credentials, request);
     }
     
@@ -222,65 +249,321 @@ public class JDBCUserRealm extends HashUserRealm implements UserRealm
      * @param roleName 
      * @return True if the user can act in the role.
      */
-    public synchronized boolean isUserInRole(Principal user, String roleName)
+    public boolean isUserInRole(Principal user, String roleName)
     {
-        if(super.getPrincipal(user.getName())==null)
-            loadUser(user.getName());
+        if (user!=null)
+            cacheUser(user.getName());
         return super.isUserInRole(user, roleName);
     }
     
+    /* ------------------------------------------------------------ */
+    /** Make sure a user is cached.
+     * If the cached user has expired, it is loaded from the database, or
+     * if another thread is loading the user, this thread waits for it.
+     * If the cached user is due to expire, it is refreshed in the background.
+     */
+    private void cacheUser(String username)
+    {
+        if (username==null)
+            return;
+
+        CachedUser cached;
+        boolean load=false;
+        boolean refresh=false;
+        synchronized (_cache)
+        {
+            cached=(CachedUser)_cache.get(username);
+            if (cached==null)
+            {
+                if (_cache.size()>=_nextSweep)
+                    sweep();
+                cached=new CachedUser();
+                _cache.put(username,cached);
+            }
+
+            try
+            {
+                while (cached._loading)
+                    _cache.wait();
+            }
+            catch (InterruptedException e)
+            {
+                Log.ignore(e);
+            }
 
+            long age=System.currentTimeMillis()-cached._loaded;
+            long ttl=cached._known?_cacheTime:_negativeCacheTime;
+            if (cached._loaded==0 || age>=ttl)
+            {
+                cached._loading=true;
+                load=true;
+            }
+            else if (cached._known && !cached._refreshing && age>=ttl*3/4)
+            {
+                cached._refreshing=true;
+                refresh=true;
+            }
+        }
 
+        if (load)
+            loadUser(username,cached);
+        else if (refresh)
+            refreshUser(username,cached);
+    }
     
     /* ------------------------------------------------------------ */
-    private void loadUser(String username)
+    /** Evict the cached users that have expired.
+     * Called while holding the cache lock.
+     */
+    private void sweep()
+    {
+        long now=System.currentTimeMillis();
+        synchronized (this)
+        {
+            Iterator iter=_cache.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry entry=(Map.Entry)iter.next();
+                CachedUser cached=(CachedUser)entry.getValue();
+                long ttl=cached._known?_cacheTime:_negativeCacheTime;
+                if (!cached._loading && !cached._refreshing && now-cached._loaded>=ttl)
+                {
+                    iter.remove();
+                    removeUser((String)entry.getKey());
+                }
+            }
+        }
+        _nextSweep=Math.max(1024,_cache.size()*2);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void loadUser(String username, CachedUser cached)
     {
+        boolean known=false;
+        long loaded=0;
         try
         {
-            if (null==_con)
-                connectDatabase();
+            known=setUser(username,queryUser(username));
+            loaded=System.currentTimeMillis();
+        }
+        catch (SQLException e)
+        {
+            Log.warn("UserRealm " + getName()
+                      + " could not load user information from database", e);
+            setUser(username,null);
+        }
+        finally
+        {
+            synchronized (_cache)
+            {
+                cached._known=known;
+                cached._loaded=loaded;
+                cached._loading=false;
+                _cache.notifyAll();
+            }
+        }
+    }
             
-            if (null==_con)
-                throw new SQLException("Can't connect to database");
+    /* ------------------------------------------------------------ */
+    private void refreshUser(final String username, final CachedUser cached)
+    {
+        TimerTask task=new TimerTask()
+        {
+            public void run()
+            {
+                boolean known=cached._known;
+                long loaded=cached._loaded;
+                try
+                {
+                    known=setUser(username,queryUser(username));
+                    loaded=System.currentTimeMillis();
+                }
+                catch (SQLException e)
+                {
+                    // the cached user is kept until it expires
+                    Log.warn("UserRealm " + getName()
+                              + " could not refresh user information from database", e);
+                }
+                finally
+                {
+                    synchronized (_cache)
+                    {
+                        cached._known=known;
+                        cached._loaded=loaded;
+                        cached._refreshing=false;
+                    }
+                }
+            }
+        };
             
-            PreparedStatement stat = _con.prepareStatement(_userSql);
+        synchronized (_cache)
+        {
+            if (_timer==null)
+                _timer=new Timer(true);
+            _timer.schedule(task,0);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Query the database for a user.
+     * @return null if the user is not known, otherwise the password followed by the roles of the user
+     */
+    private Object queryUser(String username) throws SQLException
+    {
+        Connection connection=getConnection();
+        boolean ok=false;
+        try
+        {
+            Object user=null;
+            PreparedStatement stat = connection.prepareStatement(_userSql);
             stat.setObject(1, username);
             ResultSet rs = stat.executeQuery();
     
             if (rs.next())
             {
                 int key = rs.getInt(_userTableKey);
-                put(username, rs.getString(_userTablePasswordField));
+                user=LazyList.add(user,rs.getString(_userTablePasswordField));
                 stat.close();
                 
-                stat = _con.prepareStatement(_roleSql);
+                stat = connection.prepareStatement(_roleSql);
                 stat.setInt(1, key);
                 rs = stat.executeQuery();
 
                 while (rs.next())
-                    addUserToRole(username, rs.getString(_roleTableRoleField));
+                    user=LazyList.add(user,rs.getString(_roleTableRoleField));
+            }
+            stat.close();
+            ok=true;
+            return user==null?null:LazyList.getList(user);
+        }
+        finally
+        {
+            returnConnection(connection,ok);
+        }
+    }
                 
-                stat.close();
+    /* ------------------------------------------------------------ */
+    /** Set the user and roles held by the inherited maps.
+     * @param user The result of {@link #queryUser(String)}
+     * @return True if the user is known.
+     */
+    private synchronized boolean setUser(String username, Object user)
+    {
+        removeUser(username);
+        if (user==null)
+            return false;
+
+        List list=(List)user;
+        put(username,list.get(0));
+        for (int i=1;i<list.size();i++)
+            addUserToRole(username,(String)list.get(i));
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    private synchronized void removeUser(String username)
+    {
+        _users.remove(username);
+        Iterator iter=_roles.values().iterator();
+        while (iter.hasNext())
+            ((HashSet)iter.next()).remove(username);
+        usersChanged();
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** Get a connection from the pool, waiting for one if the maximum
+     * number of connections are in use.
+     */
+    private Connection getConnection() throws SQLException
+    {
+        synchronized (_connections)
+        {
+            while (_connections.size()==0 && _openConnections>=_maxConnections)
+            {
+                try
+                {
+                    _connections.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new SQLException("Interrupted waiting for connection");
+                }
             }
+            if (_connections.size()>0)
+                return (Connection)_connections.remove(_connections.size()-1);
+            _openConnections++;
         }
-        catch (SQLException e)
+
+        Connection connection=null;
+        try
         {
-            Log.warn("UserRealm " + getName()
-                      + " could not load user information from database", e);
-           closeConnection();
+            Class.forName(_jdbcDriver);
+            connection = DriverManager.getConnection(_url, _userName, _password);
+            return connection;
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new SQLException("Can't connect to database: "+e);
+        }
+        finally
+        {
+            if (connection==null)
+            {
+                synchronized (_connections)
+                {
+                    _openConnections--;
+                    _connections.notify();
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Return a connection to the pool.
+     * @param ok False if the connection failed and is closed instead.
+     */
+    private void returnConnection(Connection connection, boolean ok)
+    {
+        if (!ok)
+        {
+            if (Log.isDebugEnabled()) Log.debug("Closing db connection for JDBCUserRealm");
+            try { connection.close(); }catch (Exception e) {Log.ignore(e);}
+        }
+
+        synchronized (_connections)
+        {
+            if (ok)
+                _connections.add(connection);
+            else
+                _openConnections--;
+            _connections.notify();
         }
     }
     
     /**
-     * Close an existing connection
+     * Close the pooled connections
      */
-    private void closeConnection ()
+    private void closeConnections ()
     {
-        if (_con != null)
+        synchronized (_connections)
         {
-            if (Log.isDebugEnabled()) Log.debug("Closing db connection for JDBCUserRealm");
-            try { _con.close(); }catch (Exception e) {Log.ignore(e);}
+            for (int i=_connections.size();i-->0;)
+            {
+                if (Log.isDebugEnabled()) Log.debug("Closing db connection for JDBCUserRealm");
+                try { ((Connection)_connections.get(i)).close(); }catch (Exception e) {Log.ignore(e);}
+                _openConnections--;
+            }
+            _connections.clear();
         }
-        _con = null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class CachedUser
+    {
+        long _loaded;
+        boolean _known;
+        boolean _loading;
+        boolean _refreshing;
     }
 }
@@ -15,7 +15,10 @@
 package org.mortbay.jetty.security;
 
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.security.Principal;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import javax.servlet.ServletException;
@@ -24,13 +27,13 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.HttpHeaders;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Response;
 import org.mortbay.jetty.handler.HandlerWrapper;
-import org.mortbay.jetty.servlet.PathMap;
 import org.mortbay.log.Log;
-import org.mortbay.util.LazyList;
 import org.mortbay.util.StringUtil;
+import org.mortbay.util.TypeUtil;
 
 
 /* ------------------------------------------------------------ */
@@ -44,10 +47,13 @@ public class SecurityHandler extends HandlerWrapper
     private String _authMethod=Constraint.__BASIC_AUTH;
     private UserRealm _userRealm;
     private ConstraintMapping[] _constraintMappings;
-    private PathMap _constraintMap=new PathMap();
+    private volatile ConstraintTable _constraintTable=new ConstraintTable(null);
     private Authenticator _authenticator;
     private NotChecked _notChecked=new NotChecked();
     private boolean _checkWelcomeFiles=false;
+    private int _authCacheTime=10000;
+    private int _maxAuthCacheSize=1024;
+    private volatile AuthCache _authCache;
     
 
     /* ------------------------------------------------------------ */
@@ -84,6 +90,9 @@ public class SecurityHandler extends HandlerWrapper
     public void setUserRealm(UserRealm userRealm)
     {
         _userRealm = userRealm;
+        AuthCache cache=_authCache;
+        if (cache!=null)
+            cache.clear();
     }
     
     /* ------------------------------------------------------------ */
@@ -103,17 +112,7 @@ public class SecurityHandler extends HandlerWrapper
     {
         _constraintMappings=constraintMappings;
         if (_constraintMappings!=null)
-        {
-            this._constraintMappings = constraintMappings;
-            _constraintMap.clear();
-            
-            for (int i=0;i<_constraintMappings.length;i++)
-            {
-                Object mappings = _constraintMap.get(_constraintMappings[i].getPathSpec());
-                mappings=LazyList.add(mappings, _constraintMappings[i]);
-                _constraintMap.put(_constraintMappings[i].getPathSpec(),mappings);
-            }
-        }
+            _constraintTable=new ConstraintTable(_constraintMappings);
     }
     
     /* ------------------------------------------------------------ */
@@ -153,6 +152,80 @@ public class SecurityHandler extends HandlerWrapper
     {
         _checkWelcomeFiles=authenticateWelcomeFiles;
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The time in ms that a BASIC authentication is cached, or 0 if not cached.
+     */
+    public int getAuthCacheTime()
+    {
+        return _authCacheTime;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the authentication cache time.
+     * The users authenticated with BASIC authentication against a 
+     * {@link HashUserRealm} (or a derived realm such as {@link JDBCUserRealm})
+     * are cached for this time, together with the results of their role checks,
+     * so that requests with the same credentials do not check the credentials
+     * with the realm again. Cached users are discarded when the realm
+     * config is reloaded, while other changes to the realm are seen 
+     * once the cached users expire.
+     * @param ms The time in ms that a BASIC authentication is cached, or 0 to not cache.
+     */
+    public void setAuthCacheTime(int ms)
+    {
+        _authCacheTime=ms;
+        if (isStarted())
+            newAuthCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of cached authentications.
+     */
+    public int getMaxAuthCacheSize()
+    {
+        return _maxAuthCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The maximum number of cached authentications.
+     */
+    public void setMaxAuthCacheSize(int size)
+    {
+        _maxAuthCacheSize=size;
+        if (isStarted())
+            newAuthCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of authentications found in the cache.
+     */
+    public int getAuthCacheHits()
+    {
+        AuthCache cache=_authCache;
+        return cache==null?0:cache._hits;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of authentications not found in the cache.
+     */
+    public int getAuthCacheMisses()
+    {
+        AuthCache cache=_authCache;
+        return cache==null?0:cache._misses;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void newAuthCache()
+    {
+        _authCache=(_authCacheTime>0 && _maxAuthCacheSize>0)?new AuthCache(_authCacheTime,_maxAuthCacheSize):null;
+    }
+    
     /* ------------------------------------------------------------ */
     public void doStart()
         throws Exception
@@ -171,10 +244,23 @@ public class SecurityHandler extends HandlerWrapper
             else
                 Log.warn("Unknown Authentication method:"+_authMethod);
         }
+        newAuthCache();
+        
+        // Recompile in case the constraints were changed after they were set
+        if (_constraintMappings!=null)
+            _constraintTable=new ConstraintTable(_constraintMappings);
         
         super.doStart();
     }
     
+    /* ------------------------------------------------------------ */
+    public void doStop()
+        throws Exception
+    {
+        super.doStop();
+        _authCache=null;
+    }
+    
 
     /* ------------------------------------------------------------ */
     /* 
@@ -236,38 +322,9 @@ public class SecurityHandler extends HandlerWrapper
         Response response)
         throws IOException
     {
-        Object mapping_entries= _constraintMap.getLazyMatches(pathInContext);
-        String pattern=null;
-        Object constraints= null;
-        
-        // for each path match
-        // Add only constraints that have the correct method
-        // break if the matching pattern changes.  This allows only
-        // constraints with matching pattern and method to be combined.
-        if (mapping_entries!=null)
-        {
-            loop: for (int m=0;m<LazyList.size(mapping_entries); m++)
-            {
-                Map.Entry entry= (Map.Entry)LazyList.get(mapping_entries,m);
-                Object mappings= entry.getValue();
-                String path_spec=(String)entry.getKey();
-                
-                for (int c=0;c<LazyList.size(mappings);c++)
-                {
-                    ConstraintMapping mapping=(ConstraintMapping)LazyList.get(mappings,c);
-                    if (mapping.getMethod()!=null && !mapping.getMethod().equalsIgnoreCase(request.getMethod()))
-                        continue;
-                    
-                    if (pattern!=null && !pattern.equals(path_spec))
-                        break loop;
-                    
-                    pattern=path_spec;	
-                    constraints= LazyList.add(constraints, mapping.getConstraint());
-                }
-            }
-        
-            return check(constraints,_authenticator,_userRealm,pathInContext,request,response);
-        }
+        ConstraintTable.Decision decision=_constraintTable.getDecision(pathInContext,request.getMethod());
+        if (decision!=null)
+            return check(decision,_authenticator,_userRealm,pathInContext,request,response);
         
         request.setUserPrincipal(_notChecked);
         return true;
@@ -276,7 +333,7 @@ public class SecurityHandler extends HandlerWrapper
 
     /* ------------------------------------------------------------ */
     /** Check security contraints
-     * @param constraints 
+     * @param decision The combined constraints 
      * @param authenticator 
      * @param realm 
      * @param pathInContext 
@@ -286,7 +343,7 @@ public class SecurityHandler extends HandlerWrapper
      * @exception IOException 
      */
     private boolean check(
-        Object constraints,
+        ConstraintTable.Decision decision,
         Authenticator authenticator,
         UserRealm realm,
         String pathInContext,
@@ -294,60 +351,10 @@ public class SecurityHandler extends HandlerWrapper
         Response response)
         throws IOException
     {
-        // Combine data and auth constraints
-        int dataConstraint= Constraint.DC_NONE;
-        Object roles= null;
-        boolean unauthenticated= false;
-        boolean forbidden= false;
-
-        for (int c= 0; c < LazyList.size(constraints); c++)
-        {
-            Constraint sc= (Constraint)LazyList.get(constraints,c);
-
-            // Combine data constraints.
-            if (dataConstraint > Constraint.DC_UNSET && sc.hasDataConstraint())
-            {
-                if (sc.getDataConstraint() > dataConstraint)
-                    dataConstraint= sc.getDataConstraint();
-            }
-            else
-                dataConstraint= Constraint.DC_UNSET; // ignore all other data constraints
-
-            // Combine auth constraints.
-            if (!unauthenticated && !forbidden)
-            {
-                if (sc.getAuthenticate())
-                {
-                    if (sc.isAnyRole())
-                    {
-                        roles= Constraint.ANY_ROLE;
-                    }
-                    else
-                    {
-                        String[] scr= sc.getRoles();
-                        if (scr == null || scr.length == 0)
-                        {
-                            forbidden= true;
-                            break;
-                        }
-                        else
-                        {
-                            // TODO - this looks inefficient!
-                            if (roles != Constraint.ANY_ROLE)
-                            {
-                                for (int r=scr.length;r-->0;)
-                                    roles= LazyList.add(roles, scr[r]);
-                            }
-                        }
-                    }
-                }
-                else
-                    unauthenticated= true;
-            }
-        }
+        int dataConstraint=decision.getDataConstraint();
 
         // Does this forbid everything?
-        if (forbidden && 
+        if (decision.isForbidden() && 
             (!(authenticator instanceof FormAuthenticator) || 
             !((FormAuthenticator)authenticator).isLoginOrErrorPage(pathInContext)))
         {
@@ -414,7 +421,7 @@ public class SecurityHandler extends HandlerWrapper
         }
 
         // Does it fail a role check?
-        if (!unauthenticated && roles != null)
+        if (decision.isAuthMandatory())
         {
             if (realm == null)
             {
@@ -424,6 +431,7 @@ public class SecurityHandler extends HandlerWrapper
             }
 
             Principal user= null;
+            Authenticated authenticated=null;
 
             // Handle pre-authenticated request
             if (request.getAuthType() != null && request.getRemoteUser() != null)
@@ -437,8 +445,24 @@ public class SecurityHandler extends HandlerWrapper
             }
             else if (authenticator != null)
             {
-                // User authenticator.
-                user= authenticator.authenticate(realm, pathInContext, request, response);
+                // Use a cached authentication if we can
+                AuthCache cache=_authCache;
+                String key=cache==null?null:authCacheKey(authenticator,realm,request);
+                int version=key==null?0:((HashUserRealm)realm).getConfigVersion();
+                authenticated=key==null?null:cache.get(key,version);
+                if (authenticated!=null)
+                {
+                    user=authenticated._user;
+                    request.setAuthType(Constraint.__BASIC_AUTH);
+                    request.setUserPrincipal(user);
+                }
+                else
+                {
+                    // User authenticator.
+                    user= authenticator.authenticate(realm, pathInContext, request, response);
+                    if (key!=null && user!=null)
+                        authenticated=cache.put(key,user,version);
+                }
             }
             else
             {
@@ -453,12 +477,14 @@ public class SecurityHandler extends HandlerWrapper
             else if (user == __NOBODY)
                 return true; // The Nobody user indicates authentication in transit.
 
-            if (roles != Constraint.ANY_ROLE)
+            if (!decision.isAnyRole())
             {
+                String[] roles=decision.getRoles();
                 boolean inRole= false;
-                for (int r= LazyList.size(roles); r-- > 0;)
+                for (int r= roles.length; r-- > 0;)
                 {
-                    if (realm.isUserInRole(user, (String)LazyList.get(roles, r)))
+                    String role=roles[r];
+                    if (authenticated==null?realm.isUserInRole(user,role):authenticated.isUserInRole(realm,role))
                     {
                         inRole= true;
                         break;
@@ -484,6 +510,35 @@ public class SecurityHandler extends HandlerWrapper
         return true;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Get the authentication cache key of a request.
+     * Only the plain BASIC authenticator is cached, as its result depends only
+     * on the authorization header, and only for a HashUserRealm, which tells
+     * when its config is reloaded.
+     * @return A digest of the authorization header, or null if the authentication cannot be cached.
+     */
+    private String authCacheKey(Authenticator authenticator, UserRealm realm, Request request)
+    {
+        if (authenticator.getClass()!=BasicAuthenticator.class || !(realm instanceof HashUserRealm))
+            return null;
+        String authorization=request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization==null)
+            return null;
+        try
+        {
+            // The digest avoids keeping the credentials in the cache
+            MessageDigest md=MessageDigest.getInstance("SHA-1");
+            md.update(authorization.getBytes(StringUtil.__ISO_8859_1));
+            return TypeUtil.toHexString(md.digest());
+        }
+        catch(Exception e)
+        {
+            Log.ignore(e);
+            return null;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
     public static Principal __NO_USER = new Principal()
     {
         public String getName()
@@ -535,5 +590,173 @@ public class SecurityHandler extends HandlerWrapper
             return getName();
         }
     };
-}
 
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A cached authentication.
+     * The user and the results of the role checks of the user. The role 
+     * checks are held in arrays that are replaced when a role is added, so
+     * they can be read without locking.
+     */
+    private static class Authenticated
+    {
+        final Principal _user;
+        final int _version;
+        final long _expires;
+        private volatile String[] _roles=__NO_ROLES;
+        private volatile String[] _notRoles=__NO_ROLES;
+        
+        /* ------------------------------------------------------------ */
+        Authenticated(Principal user, int version, long expires)
+        {
+            _user=user;
+            _version=version;
+            _expires=expires;
+        }
+        
+        /* ------------------------------------------------------------ */
+        boolean isUserInRole(UserRealm realm, String role)
+        {
+            if (contains(_roles,role))
+                return true;
+            if (contains(_notRoles,role))
+                return false;
+            
+            boolean in_role=realm.isUserInRole(_user,role);
+            synchronized (this)
+            {
+                if (in_role)
+                    _roles=add(_roles,role);
+                else
+                    _notRoles=add(_notRoles,role);
+            }
+            return in_role;
+        }
+
+        /* ------------------------------------------------------------ */
+        private static boolean contains(String[] roles, String role)
+        {
+            for (int i=roles.length;i-->0;)
+                if (roles[i].equals(role))
+                    return true;
+            return false;
+        }
+
+        /* ------------------------------------------------------------ */
+        private static String[] add(String[] roles, String role)
+        {
+            if (contains(roles,role))
+                return roles;
+            String[] added=new String[roles.length+1];
+            System.arraycopy(roles,0,added,0,roles.length);
+            added[roles.length]=role;
+            return added;
+        }
+    }
+    private static final String[] __NO_ROLES={};
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Cache of authentications.
+     * Maps the digests of authorization headers to the authenticated users.
+     * The cache is split into stripes, each with their own lock and an 
+     * equal share of the maximum size. When a stripe is full, expired
+     * authentications are removed and then the oldest if need be.
+     */
+    private static class AuthCache
+    {
+        private static final int __STRIPES=16;
+        
+        private final HashMap[] _stripes=new HashMap[__STRIPES];
+        private final int _time;
+        private final int _maxStripeSize;
+        int _hits;
+        int _misses;
+
+        /* ------------------------------------------------------------ */
+        AuthCache(int time, int maxSize)
+        {
+            _time=time;
+            _maxStripeSize=Math.max(1,maxSize/__STRIPES);
+            for (int i=0;i<__STRIPES;i++)
+                _stripes[i]=new HashMap();
+        }
+
+        /* ------------------------------------------------------------ */
+        private HashMap stripe(String key)
+        {
+            int hash=key.hashCode();
+            return _stripes[(hash^(hash>>>16))&(__STRIPES-1)];
+        }
+        
+        /* ------------------------------------------------------------ */
+        Authenticated get(String key, int version)
+        {
+            HashMap stripe=stripe(key);
+            Authenticated authenticated;
+            synchronized (stripe)
+            {
+                authenticated=(Authenticated)stripe.get(key);
+                if (authenticated!=null && (authenticated._version!=version || authenticated._expires<=System.currentTimeMillis()))
+                {
+                    stripe.remove(key);
+                    authenticated=null;
+                }
+            }
+            
+            // The counts are approximate as they are not synchronized
+            if (authenticated==null)
+                _misses++;
+            else
+                _hits++;
+            return authenticated;
+        }
+
+        /* ------------------------------------------------------------ */
+        Authenticated put(String key, Principal user, int version)
+        {
+            long now=System.currentTimeMillis();
+            Authenticated authenticated=new Authenticated(user,version,now+_time);
+            HashMap stripe=stripe(key);
+            synchronized (stripe)
+            {
+                if (stripe.size()>=_maxStripeSize && !stripe.containsKey(key))
+                {
+                    Object oldest=null;
+                    long oldest_expires=Long.MAX_VALUE;
+                    Iterator iter=stripe.entrySet().iterator();
+                    while (iter.hasNext())
+                    {
+                        Map.Entry entry=(Map.Entry)iter.next();
+                        Authenticated a=(Authenticated)entry.getValue();
+                        if (a._version!=version || a._expires<=now)
+                            iter.remove();
+                        else if (a._expires<oldest_expires)
+                        {
+                            oldest=entry.getKey();
+                            oldest_expires=a._expires;
+                        }
+                    }
+                    if (stripe.size()>=_maxStripeSize)
+                        stripe.remove(oldest);
+                }
+                stripe.put(key,authenticated);
+            }
+            return authenticated;
+        }
+
+        /* ------------------------------------------------------------ */
+        void clear()
+        {
+            for (int i=0;i<__STRIPES;i++)
+            {
+                synchronized (_stripes[i])
+                {
+                    _stripes[i].clear();
+                }
+            }
+        }
+    }
+}
@@ -15,13 +15,17 @@
 package org.mortbay.jetty.servlet;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
 import java.util.Map.Entry;
 
 import javax.servlet.RequestDispatcher;
@@ -39,6 +43,7 @@ import org.mortbay.io.nio.DirectNIOBuffer;
 import org.mortbay.io.nio.IndirectNIOBuffer;
 import org.mortbay.io.nio.NIOBuffer;
 import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.GzipResourceCache;
 import org.mortbay.jetty.HttpConnection;
 import org.mortbay.jetty.HttpContent;
 import org.mortbay.jetty.HttpFields;
@@ -90,6 +95,18 @@ import org.mortbay.util.URIUtil;
  *                    gzip content encoded if a matching resource is 
  *                    found ending with ".gz"
  *
+ *  gzipCacheSize     If gzip is true and this is set greater than 0, content
+ *                    with a gzipMimeTypes type that has no ".gz" resource is
+ *                    compressed on first request and the compressed bytes are
+ *                    cached, up to this total size.  Defaults to 0 (no cache).
+ *
+ *  gzipMimeTypes     Comma separated list of the mime types compressed by the
+ *                    gzip cache. Defaults to common text, script, json and xml types.
+ *
+ *  gzipCacheBackground
+ *                    If true, content is compressed in the background by the
+ *                    server thread pool and sent uncompressed until it is cached.
+ *
  *  resourceBase      Set to replace the context resource base
  *
  *  relativeResourceBase    
@@ -103,6 +120,10 @@ import org.mortbay.util.URIUtil;
  *  maxCacheSize      The maximum total size of the cache or 0 for no cache.
  *  maxCachedFileSize The maximum size of a file to cache
  *  maxCachedFiles    The maximum number of files to cache
+ *  cacheStripes      The number of lock stripes the cache is split into. Defaults to 1.
+ *  cacheEvictionPolicy
+ *                    Set to "lru", "lfu" or "tinylfu" to select how cached files are evicted.
+ *                    See {@link ResourceCache}. Defaults to "lru".
  *  cacheType         Set to "bio", "nio" or "both" to determine the type resource cache. 
  *                    A bio cached buffer may be used by nio but is not as efficient as an
  *                    nio buffer.  An nio cached buffer may not be used by bio.    
@@ -113,6 +134,11 @@ import org.mortbay.util.URIUtil;
  *                    a direct buffer will be used instead of a mapped file buffer. 
  *                    By default, this is set to true.
  *                    
+ *  useFileTransfer   If set to true (the default), uncached file content that is larger
+ *                    than the response buffer, including single byte ranges, is sent
+ *                    with FileChannel.transferTo directly to the connection channel
+ *                    when using a non SSL NIO connector, bypassing the response buffer.
+ *                    
  *  cacheControl      If set, all static content will have this value set as the cache-control
  *                    header.
  *                    
@@ -125,6 +151,10 @@ import org.mortbay.util.URIUtil;
  */
 public class DefaultServlet extends HttpServlet implements ResourceFactory
 {   
+    private final static String __DEFAULT_GZIP_MIME_TYPES=
+        "text/html,text/plain,text/xml,text/css,text/javascript,application/javascript,"+
+        "application/x-javascript,application/json,application/xml,application/xhtml+xml,image/svg+xml";
+
     private ContextHandler.SContext _context;
     
     private boolean _acceptRanges=true;
@@ -136,11 +166,14 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
     private Resource _resourceBase;
     private NIOResourceCache _nioCache;
     private ResourceCache _bioCache;
+    private GzipResourceCache _gzipCache;
+    private Set _gzipMimeTypes;
     
     private MimeTypes _mimeTypes;
     private String[] _welcomes;
     private boolean _aliases=false;
     private boolean _useFileMappedBuffer=false;
+    private boolean _useFileTransfer=true;
     ByteArrayBuffer _cacheControl;
     private ServletHandler _servletHandler;
     private ServletHolder _defaultHolder;
@@ -172,6 +205,7 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
             config.log("Aliases are enabled");
         
         _useFileMappedBuffer=getInitBoolean("useFileMappedBuffer",_useFileMappedBuffer);
+        _useFileTransfer=getInitBoolean("useFileTransfer",_useFileTransfer);
         
         String rrb = getInitParameter("relativeResourceBase");
         if (rrb!=null)
@@ -217,6 +251,8 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
             int max_cache_size=getInitInt("maxCacheSize", -2);
             int max_cached_file_size=getInitInt("maxCachedFileSize", -2);
             int max_cached_files=getInitInt("maxCachedFiles", -2);
+            int cache_stripes=getInitInt("cacheStripes", -2);
+            String cache_policy=getInitParameter("cacheEvictionPolicy");
 
             if (cache_type==null || "nio".equals(cache_type)|| "both".equals(cache_type))
             {
@@ -229,6 +265,10 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                         _nioCache.setMaxCachedFileSize(max_cached_file_size);    
                     if (max_cached_files>=-1)
                         _nioCache.setMaxCachedFiles(max_cached_files);
+                    if (cache_stripes>0)
+                        _nioCache.setStripes(cache_stripes);
+                    if (cache_policy!=null)
+                        _nioCache.setEvictionPolicy(cache_policy);
                     _nioCache.start();
                 }
             }
@@ -243,11 +283,39 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                         _bioCache.setMaxCachedFileSize(max_cached_file_size);    
                     if (max_cached_files>=-1)
                         _bioCache.setMaxCachedFiles(max_cached_files);
+                    if (cache_stripes>0)
+                        _bioCache.setStripes(cache_stripes);
+                    if (cache_policy!=null)
+                        _bioCache.setEvictionPolicy(cache_policy);
                     _bioCache.start();
                 }
             }
             if (_nioCache==null)
                 _bioCache=null;
+
+            int gzip_cache_size=getInitInt("gzipCacheSize", 0);
+            if (_gzip && gzip_cache_size>0)
+            {
+                _gzipCache=new GzipResourceCache(_mimeTypes);
+                _gzipCache.setMaxCacheSize(gzip_cache_size);
+                if (max_cached_file_size>=-1)
+                    _gzipCache.setMaxCachedFileSize(max_cached_file_size);
+                if (max_cached_files>=-1)
+                    _gzipCache.setMaxCachedFiles(max_cached_files);
+                if (cache_stripes>0)
+                    _gzipCache.setStripes(cache_stripes);
+                if (getInitBoolean("gzipCacheBackground",false))
+                    _gzipCache.setThreadPool(_context.getContextHandler().getServer().getThreadPool());
+                _gzipCache.start();
+
+                String types=getInitParameter("gzipMimeTypes");
+                if (types==null)
+                    types=__DEFAULT_GZIP_MIME_TYPES;
+                _gzipMimeTypes=new HashSet();
+                StringTokenizer tok = new StringTokenizer(types,",",false);
+                while (tok.hasMoreTokens())
+                    _gzipMimeTypes.add(tok.nextToken().trim());
+            }
         }
         catch (Exception e) 
         {
@@ -402,6 +470,17 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                     gzip=false;
                     pathInContextGz=null;
                 }
+                
+                // Try cached compressed content
+                if (!gzip && _gzipCache!=null && isGzipMimeType(pathInContext))
+                {
+                    content=_gzipCache.lookup(pathInContext,this);
+                    if (content!=null)
+                    {
+                        resource=content.getResource();
+                        gzip=true;
+                    }
+                }
             }
         
             // find resource
@@ -451,6 +530,10 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                             if (mt!=null)
                                 response.setContentType(mt);
                         }
+                        // caches must key compressible content on the accepted encodings,
+                        // even when this response is not compressed
+                        if (gzip || _gzipCache!=null && isGzipMimeType(pathInContext))
+                            response.setHeader(HttpHeaders.VARY,HttpHeaders.ACCEPT_ENCODING);
                         sendData(request,response,included.booleanValue(),resource,content,reqRanges);  
                     }
                 }
@@ -529,6 +612,21 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
         
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the content for the path may be compressed by the gzip cache.
+     */
+    private boolean isGzipMimeType(String pathInContext)
+    {
+        String mt=_context.getMimeType(pathInContext);
+        if (mt==null)
+            return false;
+        int semi=mt.indexOf(';');
+        if (semi>=0)
+            mt=mt.substring(0,semi).trim();
+        return _gzipMimeTypes.contains(mt);
+    }
+    
     /* ------------------------------------------------------------ */
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException
@@ -704,7 +802,12 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                 // See if a direct methods can be used?
                 if (out instanceof HttpConnection.Output)
                 {
-                    if (response instanceof Response)
+                    if (content.getBuffer()==null && isTransferable(response,out,resource,content_length))
+                    {
+                        writeHeaders(response,content,content_length);
+                        transfer(out,resource,0,content_length);
+                    }
+                    else if (response instanceof Response)
                     {
                         writeOptionHeaders(((Response)response).getHttpFields());
                         ((HttpConnection.Output)out).sendContent(content);
@@ -755,7 +858,10 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                 response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
                 response.setHeader(HttpHeaders.CONTENT_RANGE, 
                         singleSatisfiableRange.toHeaderRangeString(content_length));
-                resource.writeTo(out,singleSatisfiableRange.getFirst(content_length),singleLength);
+                if ((content==null || content.getBuffer()==null) && isTransferable(response,out,resource,singleLength))
+                    transfer(out,resource,singleSatisfiableRange.getFirst(content_length),singleLength);
+                else
+                    resource.writeTo(out,singleSatisfiableRange.getFirst(content_length),singleLength);
                 return;
             }
             
@@ -836,6 +942,40 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
         return;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the content can be sent with {@link #transfer(OutputStream, Resource, long, long)}.
+     * Only file resources larger than the response buffer are transferred, as smaller
+     * content is written as efficiently by copying it into the buffer.
+     */
+    protected boolean isTransferable(HttpServletResponse response, OutputStream out, Resource resource, long count)
+        throws IOException
+    {
+        return _useFileTransfer && 
+            count>=response.getBufferSize() &&
+            out instanceof HttpConnection.Output &&
+            ((HttpConnection.Output)out).isTransferSupported() &&
+            resource.getFile()!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Send a region of a file resource directly to the connection channel.
+     * @see HttpConnection.Output#transferContent(java.nio.channels.FileChannel, long, long)
+     */
+    protected void transfer(OutputStream out, Resource resource, long start, long count)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(resource.getFile());
+        try
+        {
+            ((HttpConnection.Output)out).transferContent(in.getChannel(),start,count);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     protected void writeHeaders(HttpServletResponse response,HttpContent content,long count)
         throws IOException
@@ -928,6 +1068,15 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
 	    }
 	    finally
 	    {
+		try
+		{
+		    if (_gzipCache!=null)
+			_gzipCache.stop();
+		}
+		catch(Exception e)
+		{
+		    Log.warn(Log.EXCEPTION,e);
+		}
 		super.destroy();
 	    }
 	}
@@ -0,0 +1,675 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.mortbay.log.Log;
+
+
+/* ------------------------------------------------------------ */
+/** An append only log of session state.
+ * <p>
+ * The log is a sequence of numbered segment files in a directory, each holding
+ * records that set the fields of a session, set or remove a serialized attribute,
+ * or delete a session.  Only changes are appended, so saving a session that has
+ * had one attribute set writes just that attribute.  A new segment is started
+ * when the current one exceeds the segment size.
+ * <p>
+ * When the log is opened, the segments are scanned to build an index of the
+ * latest record for each session field and attribute, without reading or
+ * deserializing the attribute values, which are read with {@link #readAttributes(String)}
+ * only when a session is restored.
+ * <p>
+ * Records that have been overwritten or deleted are garbage.  When the garbage
+ * exceeds the live records (see {@link #isCompactable()}), {@link #compact()}
+ * copies the live records to new segments and deletes the old ones, so the size
+ * of the log, and the time taken to open it, is bounded by the live session state.
+ * <p>
+ * All public methods are synchronized.
+ */
+public class HashSessionLog
+{
+    public final static int __DEFAULT_SEGMENT_SIZE=4*1024*1024;
+
+    private final static String __PREFIX="session-";
+    private final static String __SUFFIX=".log";
+    private final static int SESSION='S';
+    private final static int ATTRIBUTE='A';
+    private final static int REMOVE='R';
+    private final static int DELETE='D';
+
+    private final File _dir;
+    private final int _segmentSize;
+    private final Map _entries=new HashMap();
+    private int _segment=-1;
+    private DataOutputStream _out;
+    private long _total;
+    private long _live;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param dir The directory of the log segments
+     * @param segmentSize The size in bytes at which a new segment is started.
+     */
+    public HashSessionLog(File dir, int segmentSize)
+    {
+        _dir=dir;
+        _segmentSize=segmentSize<=0?__DEFAULT_SEGMENT_SIZE:segmentSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name A file name
+     * @return True if the name is that of a log segment.
+     */
+    public static boolean isSegment(String name)
+    {
+        return segment(name)>=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int segment(String name)
+    {
+        if (!name.startsWith(__PREFIX) || !name.endsWith(__SUFFIX))
+            return -1;
+        try
+        {
+            return Integer.parseInt(name.substring(__PREFIX.length(),name.length()-__SUFFIX.length()));
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private File file(int segment)
+    {
+        return new File(_dir,__PREFIX+segment+__SUFFIX);
+    }
+
+    /* ------------------------------------------------------------ */
+    private int[] segments()
+    {
+        String[] names=_dir.list();
+        int n=0;
+        int[] segments=new int[names==null?0:names.length];
+        for (int i=0;i<segments.length;i++)
+        {
+            int segment=segment(names[i]);
+            if (segment>=0)
+                segments[n++]=segment;
+        }
+        int[] sorted=new int[n];
+        System.arraycopy(segments,0,sorted,0,n);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Open the log.
+     * Scan the existing segments to build the index of logged sessions.
+     * New records are appended to a new segment.
+     */
+    public synchronized void open() throws IOException
+    {
+        _entries.clear();
+        _total=0;
+        _live=0;
+        _segment=-1;
+
+        int[] segments=segments();
+        for (int i=0;i<segments.length;i++)
+        {
+            _segment=segments[i];
+            scan(segments[i]);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void scan(int segment) throws IOException
+    {
+        Counter counter=new Counter(new BufferedInputStream(new FileInputStream(file(segment))));
+        DataInputStream in=new DataInputStream(counter);
+        try
+        {
+            while(true)
+            {
+                long start=counter._position;
+                int type=in.read();
+                if (type<0)
+                    break;
+
+                String id=in.readUTF();
+                switch(type)
+                {
+                    case SESSION:
+                    {
+                        long created=in.readLong();
+                        long cookieSet=in.readLong();
+                        long accessed=in.readLong();
+                        long lastAccessed=in.readLong();
+                        long maxIdleMs=in.readLong();
+                        applySession(id,created,cookieSet,accessed,lastAccessed,maxIdleMs,(int)(counter._position-start));
+                        break;
+                    }
+                    case ATTRIBUTE:
+                    {
+                        String name=in.readUTF();
+                        int length=in.readInt();
+                        long offset=counter._position;
+                        if (length<0 || in.skipBytes(length)!=length)
+                            throw new EOFException();
+                        applyAttribute(id,name,new Value(segment,offset,length,(int)(counter._position-start)));
+                        break;
+                    }
+                    case REMOVE:
+                    {
+                        String name=in.readUTF();
+                        applyRemove(id,name,(int)(counter._position-start));
+                        break;
+                    }
+                    case DELETE:
+                        applyDelete(id,(int)(counter._position-start));
+                        break;
+                    default:
+                        throw new IOException("Unknown record "+type);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            // A partly written record at the end of a segment is ignored.
+            Log.warn("Session log "+file(segment)+" truncated at "+counter._position+": "+e);
+            Log.ignore(e);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private Entry entry(String id)
+    {
+        Entry entry=(Entry)_entries.get(id);
+        if (entry==null)
+        {
+            entry=new Entry(id);
+            _entries.put(id,entry);
+        }
+        return entry;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void applySession(String id, long created, long cookieSet, long accessed, long lastAccessed, long maxIdleMs, int size)
+    {
+        Entry entry=entry(id);
+        entry._created=created;
+        entry._cookieSet=cookieSet;
+        entry._accessed=accessed;
+        entry._lastAccessed=lastAccessed;
+        entry._maxIdleMs=maxIdleMs;
+        _live-=entry._size;
+        entry._size=size;
+        _live+=size;
+        _total+=size;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void applyAttribute(String id, String name, Value value)
+    {
+        Entry entry=entry(id);
+        Value old=(Value)entry._attributes.put(name,value);
+        if (old!=null)
+            _live-=old._size;
+        _live+=value._size;
+        _total+=value._size;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void applyRemove(String id, String name, int size)
+    {
+        Entry entry=(Entry)_entries.get(id);
+        Value old=entry==null?null:(Value)entry._attributes.remove(name);
+        if (old!=null)
+            _live-=old._size;
+        _total+=size;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void applyDelete(String id, int size)
+    {
+        Entry entry=(Entry)_entries.remove(id);
+        if (entry!=null)
+            _live-=entry.getSize();
+        _total+=size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Start a record, rolling to a new segment if needed.
+     * @return the offset of the record in the current segment.
+     */
+    private int begin() throws IOException
+    {
+        if (_out==null || _out.size()>=_segmentSize)
+        {
+            if (_out!=null)
+                _out.close();
+            _segment++;
+            _out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file(_segment))));
+        }
+        return _out.size();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Log the fields of a session.
+     */
+    public synchronized void writeSession(String id, long created, long cookieSet, long accessed, long lastAccessed, long maxIdleMs) throws IOException
+    {
+        int start=begin();
+        _out.writeByte(SESSION);
+        _out.writeUTF(id);
+        _out.writeLong(created);
+        _out.writeLong(cookieSet);
+        _out.writeLong(accessed);
+        _out.writeLong(lastAccessed);
+        _out.writeLong(maxIdleMs);
+        applySession(id,created,cookieSet,accessed,lastAccessed,maxIdleMs,_out.size()-start);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Log the serialized value of a session attribute.
+     */
+    public synchronized void writeAttribute(String id, String name, byte[] value) throws IOException
+    {
+        int start=begin();
+        _out.writeByte(ATTRIBUTE);
+        _out.writeUTF(id);
+        _out.writeUTF(name);
+        _out.writeInt(value.length);
+        int offset=_out.size();
+        _out.write(value);
+        applyAttribute(id,name,new Value(_segment,offset,value.length,_out.size()-start));
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Log the removal of a session attribute.
+     */
+    public synchronized void removeAttribute(String id, String name) throws IOException
+    {
+        Entry entry=(Entry)_entries.get(id);
+        if (entry==null || !entry._attributes.containsKey(name))
+            return;
+        int start=begin();
+        _out.writeByte(REMOVE);
+        _out.writeUTF(id);
+        _out.writeUTF(name);
+        applyRemove(id,name,_out.size()-start);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Log the deletion of a session.
+     */
+    public synchronized void delete(String id) throws IOException
+    {
+        if (!_entries.containsKey(id))
+            return;
+        int start=begin();
+        _out.writeByte(DELETE);
+        _out.writeUTF(id);
+        applyDelete(id,_out.size()-start);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param id The session ID
+     * @return The logged state of the session, or null if it is not logged.
+     */
+    public synchronized Entry getEntry(String id)
+    {
+        return (Entry)_entries.get(id);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The IDs of the logged sessions
+     */
+    public synchronized String[] getIds()
+    {
+        return (String[])_entries.keySet().toArray(new String[_entries.size()]);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of logged sessions
+     */
+    public synchronized int getSessions()
+    {
+        return _entries.size();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes of all segments
+     */
+    public synchronized long getSize()
+    {
+        return _total;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes of the live records
+     */
+    public synchronized long getLiveSize()
+    {
+        return _live;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param id The session ID
+     * @return A map of attribute name to serialized value, or null if the session is not logged.
+     */
+    public synchronized Map readAttributes(String id) throws IOException
+    {
+        Entry entry=(Entry)_entries.get(id);
+        if (entry==null)
+            return null;
+        return read(entry);
+    }
+
+    /* ------------------------------------------------------------ */
+    private Map read(Entry entry) throws IOException
+    {
+        if (_out!=null)
+            _out.flush();
+
+        Map values=new HashMap();
+        RandomAccessFile file=null;
+        int segment=-1;
+        try
+        {
+            Iterator iter=entry._attributes.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry e=(Map.Entry)iter.next();
+                Value value=(Value)e.getValue();
+                if (file==null || segment!=value._segment)
+                {
+                    if (file!=null)
+                        file.close();
+                    segment=value._segment;
+                    file=new RandomAccessFile(file(segment),"r");
+                }
+                byte[] bytes=new byte[value._length];
+                file.seek(value._offset);
+                file.readFully(bytes);
+                values.put(e.getKey(),bytes);
+            }
+        }
+        finally
+        {
+            if (file!=null)
+                file.close();
+        }
+        return values;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the log is larger than a segment and has more
+     * garbage than live records.
+     */
+    public synchronized boolean isCompactable()
+    {
+        return _total>_segmentSize && _total-_live>_live;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Compact the log.
+     * The live records are copied to new segments and the old segments
+     * are deleted.  If the copy is interrupted, the old segments are
+     * replayed before the new ones when the log is next opened, so no
+     * state is lost.
+     */
+    public synchronized void compact() throws IOException
+    {
+        if (_out!=null)
+        {
+            _out.close();
+            _out=null;
+        }
+        int last=_segment;
+
+        Entry[] entries=(Entry[])_entries.values().toArray(new Entry[_entries.size()]);
+        for (int i=0;i<entries.length;i++)
+        {
+            Entry entry=entries[i];
+            Map values=read(entry);
+            writeSession(entry._id,entry._created,entry._cookieSet,entry._accessed,entry._lastAccessed,entry._maxIdleMs);
+            Iterator iter=values.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry e=(Map.Entry)iter.next();
+                writeAttribute(entry._id,(String)e.getKey(),(byte[])e.getValue());
+            }
+        }
+        if (_out!=null)
+            _out.flush();
+
+        int[] segments=segments();
+        for (int i=0;i<segments.length;i++)
+            if (segments[i]<=last)
+                file(segments[i]).delete();
+        _total=_live;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Flush appended records to the current segment.
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (_out!=null)
+            _out.flush();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Close the current segment.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (_out!=null)
+            _out.close();
+        _out=null;
+        _entries.clear();
+    }
+
+    /* ------------------------------------------------------------ */
+    public synchronized String toString()
+    {
+        return "HashSessionLog@"+_dir+"{sessions="+_entries.size()+",size="+_total+",live="+_live+"}";
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The logged state of a session.
+     */
+    public static class Entry
+    {
+        private final String _id;
+        private long _created;
+        private long _cookieSet;
+        private long _accessed;
+        private long _lastAccessed;
+        private long _maxIdleMs;
+        private int _size;
+        private final Map _attributes=new HashMap();
+
+        /* ------------------------------------------------------------ */
+        Entry(String id)
+        {
+            _id=id;
+        }
+
+        /* ------------------------------------------------------------ */
+        public String getId()
+        {
+            return _id;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getCreated()
+        {
+            return _created;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getCookieSet()
+        {
+            return _cookieSet;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getAccessed()
+        {
+            return _accessed;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getLastAccessed()
+        {
+            return _lastAccessed;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getMaxIdleMs()
+        {
+            return _maxIdleMs;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The names of the logged attributes
+         */
+        public String[] getAttributeNames()
+        {
+            return (String[])_attributes.keySet().toArray(new String[_attributes.size()]);
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param now The current time
+         * @return True if the session had expired by the given time.
+         */
+        public boolean isExpired(long now)
+        {
+            return _maxIdleMs>0 && _accessed+_maxIdleMs<now;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The size of the live records for the session.
+         */
+        int getSize()
+        {
+            int size=_size;
+            Iterator iter=_attributes.values().iterator();
+            while (iter.hasNext())
+                size+=((Value)iter.next())._size;
+            return size;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The location of a logged attribute value.
+     */
+    private static class Value
+    {
+        final int _segment;
+        final long _offset;
+        final int _length;
+        final int _size;
+
+        Value(int segment, long offset, int length, int size)
+        {
+            _segment=segment;
+            _offset=offset;
+            _length=length;
+            _size=size;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** An InputStream that counts the bytes read or skipped.
+     */
+    private static class Counter extends FilterInputStream
+    {
+        long _position;
+
+        Counter(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int b=super.read();
+            if (b>=0)
+                _position++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int l=super.read(b,off,len);
+            if (l>0)
+                _position+=l;
+            return l;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long l=super.skip(n);
+            if (l>0)
+                _position+=l;
+            return l;
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+}
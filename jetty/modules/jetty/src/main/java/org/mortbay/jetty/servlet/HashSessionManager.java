@@ -14,6 +14,8 @@
 
 package org.mortbay.jetty.servlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -25,12 +27,16 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 
 import org.mortbay.log.Log;
 import org.mortbay.util.LazyList;
@@ -38,11 +44,42 @@ import org.mortbay.util.LazyList;
 
 /* ------------------------------------------------------------ */
 /** An in-memory implementation of SessionManager.
+ * <p>
+ * Sessions are held in a concurrent map (if available), so that looking up a
+ * session never waits for the scavenger.  Sessions that can expire are also
+ * indexed by their expiry deadline, in buckets of the scavenge period, and are
+ * moved to a later bucket when they are accessed.  Each scavenge only removes
+ * the buckets that are due, so it only visits the sessions that have expired
+ * rather than every session.
+ * <p>
+ * If a store directory is set, sessions are saved to it when the manager is
+ * stopped and every save period.  By default every session is written to its
+ * own file on each save.  If incremental save is enabled, only the changes to
+ * sessions since the last save are appended to a {@link HashSessionLog} in the
+ * store directory, and sessions are restored from the log one at a time when
+ * they are first requested, so that restart time does not depend on the number
+ * of stored sessions.  Changes are detected by setAttribute and removeAttribute,
+ * so a mutable attribute value that is changed must be set again to be saved.
  *
  * @author Greg Wilkins (gregw)
  */
 public class HashSessionManager extends AbstractSessionManager
 {
+    private final static Class __concurrentMap;
+    static
+    {
+        Class map=null;
+        try
+        {
+            map=Class.forName("java.util.concurrent.ConcurrentHashMap");
+        }
+        catch(Throwable e)
+        {
+            Log.ignore(e);
+        }
+        __concurrentMap=map;
+    }
+
     private Timer _timer;
     private TimerTask _task;
     private int _scavengePeriodMs=30000;
@@ -52,6 +89,16 @@ public class HashSessionManager extends AbstractSessionManager
     private File _storeDir;
     private boolean _lazyLoad=false;
     private boolean _sessionsLoaded=false;
+    private boolean _incrementalSave=false;
+    private int _logSegmentSize=HashSessionLog.__DEFAULT_SEGMENT_SIZE;
+    private HashSessionLog _log;
+    private final Set _dirtySessions=new HashSet();
+    private final Object _restoreLock=new Object();
+    private final TreeMap _expiry=new TreeMap();
+    private int _scavengeExpired;
+    private long _scavengeTime;
+    private long _scavengeTimeMax;
+    private long _sessionsExpired;
     
     /* ------------------------------------------------------------ */
     public HashSessionManager()
@@ -65,7 +112,7 @@ public class HashSessionManager extends AbstractSessionManager
      */
     public void doStart() throws Exception
     {
-        _sessions=new HashMap();
+        _sessions=newSessionMap();
         super.doStart();
 
         _timer=new Timer(true);
@@ -96,8 +143,22 @@ public class HashSessionManager extends AbstractSessionManager
         
         super.doStop();
  
+        synchronized (_restoreLock)
+        {
+            if (_log!=null)
+                _log.close();
+            _log=null;
+        }
+        synchronized (_dirtySessions)
+        {
+            _dirtySessions.clear();
+        }
         _sessions.clear();
         _sessions=null;
+        synchronized (_expiry)
+        {
+            _expiry.clear();
+        }
 
         // stop the scavenger
         synchronized(this)
@@ -135,6 +196,66 @@ public class HashSessionManager extends AbstractSessionManager
         return _sessions.size();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions expired by the last scavenge.
+     */
+    public int getScavengeExpired()
+    {
+        return _scavengeExpired;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The time in ms taken by the last scavenge.
+     */
+    public long getScavengeTime()
+    {
+        return _scavengeTime;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum time in ms taken by a scavenge since the 
+     * statistics were reset.
+     */
+    public long getScavengeTimeMax()
+    {
+        return _scavengeTimeMax;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total number of sessions expired by the scavenger since
+     * the statistics were reset.
+     */
+    public long getSessionsExpired()
+    {
+        return _sessionsExpired;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of expiry buckets that hold sessions.
+     */
+    public int getExpiryBuckets()
+    {
+        synchronized (_expiry)
+        {
+            return _expiry.size();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void resetStats()
+    {
+        super.resetStats();
+        _scavengeExpired=0;
+        _scavengeTime=0;
+        _scavengeTimeMax=0;
+        _sessionsExpired=0;
+    }
+
 
     /* ------------------------------------------------------------ */
     public void setMaxInactiveInterval(int seconds)
@@ -227,9 +348,10 @@ public class HashSessionManager extends AbstractSessionManager
     /* -------------------------------------------------------------- */
     /**
      * Find sessions that have timed out and invalidate them. This runs in the
-     * SessionScavenger thread.
+     * SessionScavenger thread.  Only the sessions in the expiry buckets that
+     * are due are visited.
      */
-    private void scavenge()
+    protected void scavenge()
     {
         //don't attempt to scavenge if we are shutting down
         if (isStopping() || isStopped())
@@ -254,40 +376,52 @@ public class HashSessionManager extends AbstractSessionManager
                 Log.debug(e);
             }
             
-            // Since Hashtable enumeration is not safe over deletes,
-            // we build a list of stale sessions, then go back and invalidate
-            // them
+            // Take the due buckets out of the index, then go back and 
+            // invalidate the sessions in them without holding any lock.
             Object stale=null;
-
-            synchronized (HashSessionManager.this)
+            synchronized (_expiry)
             {
-                // For each session
-                for (Iterator i=_sessions.values().iterator(); i.hasNext();)
+                Iterator i=_expiry.headMap(new Long(now+1)).values().iterator();
+                while (i.hasNext())
                 {
-                    Session session=(Session)i.next();
-                    long idleTime=session._maxIdleMs;
-                    if (idleTime>0&&session._accessed+idleTime<now)
+                    Iterator j=((Set)i.next()).iterator();
+                    while (j.hasNext())
                     {
-                        // Found a stale session, add it to the list
+                        Session session=(Session)j.next();
+                        session._expiryBucket=0;
                         stale=LazyList.add(stale,session);
                     }
+                    i.remove();
                 }
             }
 
             // Remove the stale sessions
+            int expired=0;
             for (int i=LazyList.size(stale); i-->0;)
             {
-                // check it has not been accessed in the meantime
+                // check it has not been removed or accessed in the meantime
                 Session session=(Session)LazyList.get(stale,i);
+                if (_sessions.get(session.getClusterId())!=session)
+                    continue;
                 long idleTime=session._maxIdleMs;
                 if (idleTime>0&&session._accessed+idleTime<System.currentTimeMillis())
                 {
                     ((Session)session).timeout();
+                    expired++;
                     int nbsess=this._sessions.size();
                     if (nbsess<this._minSessions)
                         this._minSessions=nbsess;
                 }
+                else
+                    index(session);
             }
+
+            long time=System.currentTimeMillis()-now;
+            _scavengeExpired=expired;
+            _sessionsExpired+=expired;
+            _scavengeTime=time;
+            if (time>_scavengeTimeMax)
+                _scavengeTimeMax=time;
         }
         catch (Throwable t)
         {
@@ -302,10 +436,68 @@ public class HashSessionManager extends AbstractSessionManager
         }
     }
     
+    /* ------------------------------------------------------------ */
+    /** Put a session in the expiry bucket for its current deadline.
+     * Buckets are keyed by the end of the scavenge period that contains the
+     * deadline, so every session in a bucket is due once its key has passed.
+     * A session that is already in the right bucket is not locked or moved.
+     */
+    private void index(Session session)
+    {
+        long idle=session._maxIdleMs;
+        long bucket=0;
+        if (idle>0)
+        {
+            long period=_scavengePeriodMs;
+            bucket=((session._accessed+idle)/period+1)*period;
+        }
+        if (bucket==session._expiryBucket)
+            return;
+
+        synchronized (_expiry)
+        {
+            unindex(session);
+            if (bucket!=0)
+            {
+                Long key=new Long(bucket);
+                Set sessions=(Set)_expiry.get(key);
+                if (sessions==null)
+                {
+                    sessions=new HashSet();
+                    _expiry.put(key,sessions);
+                }
+                sessions.add(session);
+                session._expiryBucket=bucket;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Remove a session from its expiry bucket.
+     * Must be called while holding the expiry index lock.
+     */
+    private void unindex(Session session)
+    {
+        if (session._expiryBucket==0)
+            return;
+        Long key=new Long(session._expiryBucket);
+        Set sessions=(Set)_expiry.get(key);
+        if (sessions!=null)
+        {
+            sessions.remove(session);
+            if (sessions.isEmpty())
+                _expiry.remove(key);
+        }
+        session._expiryBucket=0;
+    }
+    
     /* ------------------------------------------------------------ */
     protected void addSession(AbstractSessionManager.Session session)
     {
         _sessions.put(session.getClusterId(),session);
+        index((Session)session);
+        if (_incrementalSave)
+            ((Session)session).dirty(null);
     }
     
     /* ------------------------------------------------------------ */
@@ -321,10 +513,26 @@ public class HashSessionManager extends AbstractSessionManager
             Log.warn(e);
         }
         
-        if (_sessions==null)
+        Map sessions=_sessions;
+        if (sessions==null)
             return null;
 
-        return (Session)_sessions.get(idInCluster);
+        Session session=(Session)sessions.get(idInCluster);
+        
+        // Restore a logged session, unless this thread holds the manager lock
+        // that addSession would need after the id manager lock.
+        if (session==null && _log!=null && !Thread.holdsLock(this))
+            session=restoreSession(idInCluster);
+        return session;
+    }
+
+    /* ------------------------------------------------------------ */
+    public HttpSession getHttpSession(String nodeId)
+    {
+        // restore a logged session before the manager is locked
+        if (_log!=null)
+            getSession(getIdManager().getClusterId(nodeId));
+        return super.getHttpSession(nodeId);
     }
 
     /* ------------------------------------------------------------ */
@@ -347,10 +555,65 @@ public class HashSessionManager extends AbstractSessionManager
         return new Session(request);
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A session being restored from the store directory.
+     */
+    protected Session newSession(long created, String clusterId)
+    {
+        return new Session(created,clusterId);
+    }
+    
     /* ------------------------------------------------------------ */
     protected void removeSession(String clusterId)
     {
-        _sessions.remove(clusterId);
+        Session session=(Session)_sessions.remove(clusterId);
+        if (session!=null)
+        {
+            synchronized (_expiry)
+            {
+                unindex(session);
+            }
+            
+            // sessions are not deleted from the log when they are invalidated by stop
+            HashSessionLog log=_log;
+            if (log!=null && isRunning())
+            {
+                synchronized (_dirtySessions)
+                {
+                    _dirtySessions.remove(session);
+                }
+                try
+                {
+                    log.delete(clusterId);
+                }
+                catch(IOException e)
+                {
+                    Log.warn("Problem deleting logged session "+clusterId,e);
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A new map for the sessions, which is a ConcurrentHashMap if
+     * the runtime supports it, otherwise a synchronized HashMap.
+     */
+    protected Map newSessionMap()
+    {
+        if (__concurrentMap!=null)
+        {
+            try
+            {
+                return (Map)__concurrentMap.newInstance();
+            }
+            catch(Exception e)
+            {
+                Log.ignore(e);
+            }
+        }
+        return Collections.synchronizedMap(new HashMap());
     }
     
     /* ------------------------------------------------------------ */
@@ -365,6 +628,61 @@ public class HashSessionManager extends AbstractSessionManager
         return _storeDir;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if only the changes to sessions are saved to a log
+     * in the store directory.
+     */
+    public boolean isIncrementalSave()
+    {
+        return _incrementalSave;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param incremental If true, only the changes to sessions are saved, by 
+     * appending them to a {@link HashSessionLog} in the store directory, and logged
+     * sessions are restored when they are first requested.  If false, every 
+     * session is saved to its own file.
+     */
+    public void setIncrementalSave(boolean incremental)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _incrementalSave=incremental;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes at which a new session log segment is started.
+     */
+    public int getLogSegmentSize()
+    {
+        return _logSegmentSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The size in bytes at which a new session log segment is started.
+     * The log is compacted once it is larger than a segment and holds more 
+     * overwritten records than live ones.
+     */
+    public void setLogSegmentSize(int size)
+    {
+        _logSegmentSize=size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions in the session log, including those
+     * not yet restored, or 0 if incremental save is not used.
+     */
+    public int getLoggedSessions()
+    {
+        HashSessionLog log=_log;
+        return log==null?0:log.getSessions();
+    }
+
     /* ------------------------------------------------------------ */
     public void setLazyLoad(boolean lazyLoad)
     {
@@ -391,9 +709,25 @@ public class HashSessionManager extends AbstractSessionManager
             return;
         }
 
+        if (_incrementalSave)
+        {
+            synchronized (_restoreLock)
+            {
+                if (_log==null)
+                {
+                    HashSessionLog log=new HashSessionLog(_storeDir,_logSegmentSize);
+                    log.open();
+                    _log=log;
+                }
+            }
+        }
+        
         File[] files = _storeDir.listFiles();
         for (int i=0;files!=null&&i<files.length;i++)
         {
+            // logged sessions are restored by getSession
+            if (HashSessionLog.isSegment(files[i].getName()))
+                continue;
             try
             {
                 FileInputStream in = new FileInputStream(files[i]);           
@@ -425,6 +759,14 @@ public class HashSessionManager extends AbstractSessionManager
             return;
         }
  
+        if (_incrementalSave)
+        {
+            if (_log==null)
+                restoreSessions();
+            saveChanges();
+            return;
+        }
+ 
         synchronized (this)
         {
             Iterator itor = _sessions.entrySet().iterator();
@@ -451,6 +793,126 @@ public class HashSessionManager extends AbstractSessionManager
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /** Append the changes to dirty sessions to the session log.
+     * Logged sessions that have not been restored and have expired are 
+     * deleted, and the log is compacted if needed.
+     */
+    private void saveChanges() throws IOException
+    {
+        HashSessionLog log=_log;
+        if (log==null)
+            return;
+        
+        Object[] dirty;
+        synchronized (_dirtySessions)
+        {
+            dirty=_dirtySessions.toArray();
+            _dirtySessions.clear();
+        }
+        
+        for (int i=0;i<dirty.length;i++)
+        {
+            Session session=(Session)dirty[i];
+            try
+            {
+                session.save(log);
+            }
+            catch(IOException e)
+            {
+                for (int j=i;j<dirty.length;j++)
+                    ((Session)dirty[j]).dirty(null);
+                throw e;
+            }
+        }
+        
+        long now=System.currentTimeMillis();
+        synchronized (_restoreLock)
+        {
+            String[] ids=log.getIds();
+            for (int i=0;i<ids.length;i++)
+            {
+                if (_sessions.get(ids[i])!=null)
+                    continue;
+                HashSessionLog.Entry entry=log.getEntry(ids[i]);
+                if (entry!=null && entry.isExpired(now))
+                    log.delete(ids[i]);
+            }
+        }
+        
+        if (log.isCompactable())
+            log.compact();
+        log.flush();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Restore a session from the session log.
+     * @param clusterId The session ID
+     * @return The restored session, or null if the session is not logged 
+     * or has expired.
+     */
+    private Session restoreSession(String clusterId)
+    {
+        synchronized (_restoreLock)
+        {
+            HashSessionLog log=_log;
+            Map sessions=_sessions;
+            if (log==null || sessions==null)
+                return null;
+            
+            Session session=(Session)sessions.get(clusterId);
+            if (session!=null)
+                return session;
+            
+            HashSessionLog.Entry entry=log.getEntry(clusterId);
+            if (entry==null)
+                return null;
+
+            Thread thread=Thread.currentThread();
+            ClassLoader old_loader=thread.getContextClassLoader();
+            try
+            {
+                if (entry.isExpired(System.currentTimeMillis()))
+                {
+                    log.delete(clusterId);
+                    return null;
+                }
+                
+                if (_loader!=null)
+                    thread.setContextClassLoader(_loader);
+                
+                session=newSession(entry.getCreated(),clusterId);
+                session._cookieSet=entry.getCookieSet();
+                session._accessed=entry.getAccessed();
+                session._lastAccessed=entry.getLastAccessed();
+                session._maxIdleMs=entry.getMaxIdleMs();
+                session.initValues();
+                
+                Map values=log.readAttributes(clusterId);
+                Iterator iter=values.entrySet().iterator();
+                while (iter.hasNext())
+                {
+                    Map.Entry e=(Map.Entry)iter.next();
+                    ClassLoadingObjectInputStream ois=new ClassLoadingObjectInputStream(new ByteArrayInputStream((byte[])e.getValue()));
+                    session._values.put(e.getKey(),ois.readObject());
+                    ois.close();
+                }
+                
+                addSession(session,false);
+                return session;
+            }
+            catch(Exception e)
+            {
+                Log.warn("Problem restoring session "+clusterId,e);
+                return null;
+            }
+            finally
+            {
+                thread.setContextClassLoader(old_loader);
+            }
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public Session restoreSession (FileInputStream fis) 
     throws Exception
@@ -475,7 +937,7 @@ public class HashSessionManager extends AbstractSessionManager
         //boolean isNew = in.readBoolean();
         int requests = in.readInt();
         
-        Session session = new Session (created, clusterId);
+        Session session = newSession(created, clusterId);
         session._cookieSet = cookieSet;
         session._lastAccessed = lastAccessed;
         
@@ -511,7 +973,9 @@ public class HashSessionManager extends AbstractSessionManager
         /* ------------------------------------------------------------ */
         private static final long serialVersionUID=-2134521374206116367L;
         
-   
+        private transient volatile long _expiryBucket;
+        private transient boolean _dirty;
+        private transient Set _dirtyAttributes;
 
         /* ------------------------------------------------------------- */
         protected Session(HttpServletRequest request)
@@ -529,6 +993,100 @@ public class HashSessionManager extends AbstractSessionManager
             super.setMaxInactiveInterval(secs);
             if (_maxIdleMs>0&&(_maxIdleMs/10)<_scavengePeriodMs)
                 HashSessionManager.this.setScavengePeriod((secs+9)/10);
+            if (_sessions!=null && _sessions.get(getClusterId())==this)
+                index(this);
+        }
+
+        /* ------------------------------------------------------------ */
+        protected void access(long time)
+        {
+            super.access(time);
+            index(this);
+            if (_incrementalSave && !_dirty)
+                dirty(null);
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized void setAttribute(String name, Object value)
+        {
+            super.setAttribute(name,value);
+            if (_incrementalSave)
+                dirty(name);
+        }
+
+        /* ------------------------------------------------------------ */
+        public synchronized void removeAttribute(String name)
+        {
+            super.removeAttribute(name);
+            if (_incrementalSave)
+                dirty(name);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Mark the session, and optionally an attribute, as changed 
+         * since the last save.
+         * @param name The changed attribute or null.
+         */
+        protected synchronized void dirty(String name)
+        {
+            if (name!=null)
+            {
+                if (_dirtyAttributes==null)
+                    _dirtyAttributes=new HashSet();
+                _dirtyAttributes.add(name);
+            }
+            if (!_dirty)
+            {
+                _dirty=true;
+                synchronized (_dirtySessions)
+                {
+                    _dirtySessions.add(this);
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Append the changes to the session since the last save to the log.
+         */
+        protected synchronized void save(HashSessionLog log) throws IOException
+        {
+            _dirty=false;
+            Map sessions=_sessions;
+            if (_invalid || sessions==null || sessions.get(_clusterId)!=this)
+                return;
+
+            log.writeSession(_clusterId,_created,_cookieSet,_accessed,_lastAccessed,_maxIdleMs);
+            if (_dirtyAttributes==null)
+                return;
+
+            Iterator iter=_dirtyAttributes.iterator();
+            while (iter.hasNext())
+            {
+                String name=(String)iter.next();
+                Object value=_values==null?null:_values.get(name);
+                if (value==null)
+                    log.removeAttribute(_clusterId,name);
+                else
+                {
+                    byte[] bytes;
+                    try
+                    {
+                        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+                        ObjectOutputStream oos=new ObjectOutputStream(bout);
+                        oos.writeObject(value);
+                        oos.close();
+                        bytes=bout.toByteArray();
+                    }
+                    catch(IOException e)
+                    {
+                        Log.warn("Problem persisting session attribute "+name,e);
+                        iter.remove();
+                        continue;
+                    }
+                    log.writeAttribute(_clusterId,name,bytes);
+                }
+                iter.remove();
+            }
         }
         
         /* ------------------------------------------------------------ */
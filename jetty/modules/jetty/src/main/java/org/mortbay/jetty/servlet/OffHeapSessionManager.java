@@ -0,0 +1,673 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.mortbay.log.Log;
+
+
+/* ------------------------------------------------------------ */
+/** A HashSessionManager that keeps session attribute values off heap.
+ * <p>
+ * Between requests, the attribute values of a session are held serialized in
+ * direct buffers, so that they are not scanned or copied by the garbage collector.
+ * Only an index of attribute name to buffer location is kept on heap.  The
+ * direct buffers are allocated as large slabs, which are divided into chunks
+ * of power of 2 sizes that are reused once freed.
+ * <p>
+ * A value is deserialized when it is first got during a request and is then
+ * held in a hot cache, so that the same instance is seen until the request
+ * completes.  When the last request on a session completes, new values and
+ * cached values that may have been changed are serialized back off heap, and
+ * the hot cache is discarded.  Values that cannot be serialized, or that do
+ * not fit within the maximum memory, are kept on heap.
+ * <p>
+ * As with HashSessionManager, this manager may be set on a {@link SessionHandler}
+ * and may be configured to save and restore sessions from a store directory.
+ */
+public class OffHeapSessionManager extends HashSessionManager
+{
+    public final static int __DEFAULT_SLAB_SIZE=1024*1024;
+
+    private int _slabSize=__DEFAULT_SLAB_SIZE;
+    private long _maxMemory=0;
+    private Slabs _slabs;
+
+    /* ------------------------------------------------------------ */
+    public OffHeapSessionManager()
+    {
+        super();
+    }
+
+    /* ------------------------------------------------------------ */
+    public void doStart() throws Exception
+    {
+        _slabs=new Slabs(_slabSize,_maxMemory);
+        super.doStart();
+    }
+
+    /* ------------------------------------------------------------ */
+    public void doStop() throws Exception
+    {
+        super.doStop();
+        _slabs=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes of the direct buffers allocated for values.
+     */
+    public int getSlabSize()
+    {
+        return _slabSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The size in bytes of the direct buffers allocated for values,
+     * rounded up to a power of 2.  Values larger than a slab are held in
+     * their own direct buffer.
+     */
+    public void setSlabSize(int size)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _slabSize=size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum off heap memory in bytes, or 0 for no limit.
+     */
+    public long getMaxMemory()
+    {
+        return _maxMemory;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param max The maximum off heap memory in bytes, or 0 for no limit.
+     * Values that do not fit are kept on heap.
+     */
+    public void setMaxMemory(long max)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _maxMemory=max;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The off heap memory in bytes allocated for values.
+     */
+    public long getMemory()
+    {
+        Slabs slabs=_slabs;
+        return slabs==null?0:slabs.getCapacity();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The off heap memory in bytes used by values.
+     */
+    public long getMemoryUsed()
+    {
+        Slabs slabs=_slabs;
+        return slabs==null?0:slabs.getUsed();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of values held off heap.
+     */
+    public int getOffHeapValues()
+    {
+        Slabs slabs=_slabs;
+        return slabs==null?0:slabs.getChunks();
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void addSession(AbstractSessionManager.Session session)
+    {
+        super.addSession(session);
+
+        // restored sessions are not in a request
+        if (session._requests<=0)
+            ((Session)session).writeBack();
+    }
+
+    /* ------------------------------------------------------------ */
+    protected AbstractSessionManager.Session newSession(HttpServletRequest request)
+    {
+        return new Session(request);
+    }
+
+    /* ------------------------------------------------------------ */
+    protected HashSessionManager.Session newSession(long created, String clusterId)
+    {
+        return new Session(created,clusterId);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the value cannot be changed, so need not be serialized
+     * again after it has been got.
+     */
+    private static boolean isImmutable(Object value)
+    {
+        return value instanceof String ||
+            value instanceof Boolean ||
+            value instanceof Character ||
+            value instanceof Number && value.getClass().getName().startsWith("java.lang.");
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    protected class Session extends HashSessionManager.Session
+    {
+        /* ------------------------------------------------------------ */
+        private static final long serialVersionUID=-4011597396128462924L;
+
+        /* ------------------------------------------------------------- */
+        protected Session(HttpServletRequest request)
+        {
+            super(request);
+        }
+
+        /* ------------------------------------------------------------- */
+        protected Session(long created, String clusterId)
+        {
+            super(created,clusterId);
+        }
+
+        /* ------------------------------------------------------------ */
+        protected Map newAttributeMap()
+        {
+            return new AttributeMap();
+        }
+
+        /* ------------------------------------------------------------ */
+        protected void complete()
+        {
+            super.complete();
+            synchronized (this)
+            {
+                if (_requests<=0)
+                    writeBack();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Move new and cached values off heap.
+         */
+        protected synchronized void writeBack()
+        {
+            if (!_invalid && _values instanceof AttributeMap)
+                ((AttributeMap)_values).writeBack();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A map of attribute name to value, where values are either held
+     * in an off heap {@link Chunk} or on heap.
+     * Guarded by the lock of the session.
+     */
+    private class AttributeMap extends AbstractMap
+    {
+        private final Map _index=new HashMap(3);
+        private Map _hot;
+        private Set _pinned;
+
+        /* ------------------------------------------------------------ */
+        public int size()
+        {
+            return _index.size();
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean containsKey(Object key)
+        {
+            return _index.containsKey(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Set keySet()
+        {
+            return Collections.unmodifiableSet(_index.keySet());
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object get(Object key)
+        {
+            Object value=_index.get(key);
+            if (value instanceof Chunk)
+            {
+                Object hot=_hot==null?null:_hot.get(key);
+                if (hot!=null)
+                    return hot;
+
+                value=load((Chunk)value);
+                if (value!=null)
+                {
+                    if (_hot==null)
+                        _hot=new HashMap(3);
+                    _hot.put(key,value);
+                }
+            }
+            return value;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object put(Object key, Object value)
+        {
+            Object old=get(key);
+            free(_index.put(key,value));
+            if (_hot!=null)
+                _hot.remove(key);
+            if (_pinned!=null)
+                _pinned.remove(key);
+            return old;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object remove(Object key)
+        {
+            if (!_index.containsKey(key))
+                return null;
+            Object old=get(key);
+            free(_index.remove(key));
+            if (_hot!=null)
+                _hot.remove(key);
+            if (_pinned!=null)
+                _pinned.remove(key);
+            return old;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void clear()
+        {
+            Iterator iter=_index.values().iterator();
+            while (iter.hasNext())
+                free(iter.next());
+            _index.clear();
+            _hot=null;
+            _pinned=null;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Set entrySet()
+        {
+            return new AbstractSet()
+            {
+                public int size()
+                {
+                    return _index.size();
+                }
+
+                public Iterator iterator()
+                {
+                    final Iterator keys=new ArrayList(_index.keySet()).iterator();
+                    return new Iterator()
+                    {
+                        Object _key;
+
+                        public boolean hasNext()
+                        {
+                            return keys.hasNext();
+                        }
+
+                        public Object next()
+                        {
+                            _key=keys.next();
+                            return new Attribute(_key);
+                        }
+
+                        public void remove()
+                        {
+                            if (_key==null)
+                                throw new IllegalStateException();
+                            AttributeMap.this.remove(_key);
+                            _key=null;
+                        }
+                    };
+                }
+            };
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Serialize new values and cached values that may have changed
+         * to off heap chunks and discard the hot cache.
+         */
+        void writeBack()
+        {
+            Slabs slabs=_slabs;
+            if (slabs==null)
+                return;
+
+            Iterator iter=_index.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry entry=(Map.Entry)iter.next();
+                Object key=entry.getKey();
+                Object value=entry.getValue();
+                if (value instanceof Chunk)
+                {
+                    value=_hot==null?null:_hot.get(key);
+                    if (value==null || isImmutable(value))
+                        continue;
+                }
+                else if (_pinned!=null && _pinned.contains(key))
+                    continue;
+
+                byte[] bytes=serialize(value);
+                if (bytes==null)
+                {
+                    if (_pinned==null)
+                        _pinned=new HashSet(3);
+                    _pinned.add(key);
+                    free(entry.setValue(value));
+                    continue;
+                }
+
+                Chunk chunk=slabs.allocate(bytes.length);
+                if (chunk==null)
+                    free(entry.setValue(value));
+                else
+                {
+                    chunk.write(bytes);
+                    free(entry.setValue(chunk));
+                }
+            }
+            _hot=null;
+        }
+
+        /* ------------------------------------------------------------ */
+        private void free(Object value)
+        {
+            Slabs slabs=_slabs;
+            if (value instanceof Chunk && slabs!=null)
+                slabs.free((Chunk)value);
+        }
+
+        /* ------------------------------------------------------------ */
+        private byte[] serialize(Object value)
+        {
+            try
+            {
+                ByteArrayOutputStream bout=new ByteArrayOutputStream();
+                ObjectOutputStream oos=new ObjectOutputStream(bout);
+                oos.writeObject(value);
+                oos.close();
+                return bout.toByteArray();
+            }
+            catch(IOException e)
+            {
+                Log.debug("Keeping on heap "+value.getClass(),e);
+                return null;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private Object load(Chunk chunk)
+        {
+            try
+            {
+                ClassLoadingObjectInputStream ois=new ClassLoadingObjectInputStream(new ByteArrayInputStream(chunk.read()));
+                Object value=ois.readObject();
+                ois.close();
+                return value;
+            }
+            catch(Exception e)
+            {
+                Log.warn("Problem loading session attribute",e);
+                return null;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /* ------------------------------------------------------------ */
+        private class Attribute implements Map.Entry
+        {
+            private final Object _key;
+
+            Attribute(Object key)
+            {
+                _key=key;
+            }
+
+            public Object getKey()
+            {
+                return _key;
+            }
+
+            public Object getValue()
+            {
+                return get(_key);
+            }
+
+            public Object setValue(Object value)
+            {
+                return put(_key,value);
+            }
+
+            public boolean equals(Object o)
+            {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry e=(Map.Entry)o;
+                Object value=getValue();
+                return _key.equals(e.getKey()) && (value==null?e.getValue()==null:value.equals(e.getValue()));
+            }
+
+            public int hashCode()
+            {
+                Object value=getValue();
+                return _key.hashCode()^(value==null?0:value.hashCode());
+            }
+
+            public String toString()
+            {
+                return _key+"="+getValue();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A serialized value held in a direct buffer.
+     */
+    private static class Chunk
+    {
+        final ByteBuffer _buffer;
+        final int _offset;
+        final int _capacity;
+        final int _class;
+        int _length;
+
+        Chunk(ByteBuffer buffer, int offset, int capacity, int sizeClass)
+        {
+            _buffer=buffer;
+            _offset=offset;
+            _capacity=capacity;
+            _class=sizeClass;
+        }
+
+        void write(byte[] bytes)
+        {
+            ByteBuffer buffer=_buffer.duplicate();
+            buffer.position(_offset);
+            buffer.put(bytes,0,bytes.length);
+            _length=bytes.length;
+        }
+
+        byte[] read()
+        {
+            byte[] bytes=new byte[_length];
+            ByteBuffer buffer=_buffer.duplicate();
+            buffer.position(_offset);
+            buffer.get(bytes,0,_length);
+            return bytes;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Allocator of chunks from direct buffer slabs.
+     * Chunks are power of 2 sizes from 64 bytes to the slab size, and freed
+     * chunks are kept in a free list for their size.  Larger values are
+     * given their own direct buffer.
+     */
+    private static class Slabs
+    {
+        private final static int MIN_SHIFT=6;
+
+        private final int _slabSize;
+        private final long _max;
+        private final ArrayList[] _free;
+        private ByteBuffer _slab;
+        private int _slabUsed;
+        private long _capacity;
+        private long _used;
+        private int _chunks;
+
+        Slabs(int slabSize, long max)
+        {
+            int shift=MIN_SHIFT;
+            while ((1<<shift)<slabSize && shift<30)
+                shift++;
+            _slabSize=1<<shift;
+            _max=max;
+            _free=new ArrayList[shift-MIN_SHIFT+1];
+            for (int i=0;i<_free.length;i++)
+                _free[i]=new ArrayList();
+        }
+
+        synchronized long getCapacity()
+        {
+            return _capacity;
+        }
+
+        synchronized long getUsed()
+        {
+            return _used;
+        }
+
+        synchronized int getChunks()
+        {
+            return _chunks;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return A chunk of at least the length, or null if the maximum
+         * memory would be exceeded.
+         */
+        synchronized Chunk allocate(int length)
+        {
+            Chunk chunk=null;
+            if (length>_slabSize)
+            {
+                if (_max>0 && _capacity+length>_max)
+                    return null;
+                chunk=new Chunk(ByteBuffer.allocateDirect(length),0,length,-1);
+                _capacity+=length;
+            }
+            else
+            {
+                int shift=MIN_SHIFT;
+                while ((1<<shift)<length)
+                    shift++;
+                int size=1<<shift;
+                int sizeClass=shift-MIN_SHIFT;
+
+                if (!_free[sizeClass].isEmpty())
+                    chunk=(Chunk)_free[sizeClass].remove(_free[sizeClass].size()-1);
+                else if (_slab!=null && _slabSize-_slabUsed>=size)
+                {
+                    chunk=new Chunk(_slab,_slabUsed,size,sizeClass);
+                    _slabUsed+=size;
+                }
+                else if (_max<=0 || _capacity+_slabSize<=_max)
+                {
+                    retire();
+                    _slab=ByteBuffer.allocateDirect(_slabSize);
+                    _slabUsed=size;
+                    _capacity+=_slabSize;
+                    chunk=new Chunk(_slab,0,size,sizeClass);
+                }
+                else
+                {
+                    // use a free larger chunk rather than fail
+                    for (int c=sizeClass+1;chunk==null && c<_free.length;c++)
+                        if (!_free[c].isEmpty())
+                            chunk=(Chunk)_free[c].remove(_free[c].size()-1);
+                    if (chunk==null)
+                        return null;
+                }
+            }
+            _used+=chunk._capacity;
+            _chunks++;
+            return chunk;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Divide the rest of the current slab into free chunks.
+         */
+        private void retire()
+        {
+            if (_slab==null)
+                return;
+            for (int c=_free.length;c-->0;)
+            {
+                int size=1<<(c+MIN_SHIFT);
+                while (_slabSize-_slabUsed>=size)
+                {
+                    _free[c].add(new Chunk(_slab,_slabUsed,size,c));
+                    _slabUsed+=size;
+                }
+            }
+            _slab=null;
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void free(Chunk chunk)
+        {
+            _used-=chunk._capacity;
+            _chunks--;
+            if (chunk._class<0)
+                _capacity-=chunk._capacity;
+            else
+                _free[chunk._class].add(chunk);
+        }
+    }
+}
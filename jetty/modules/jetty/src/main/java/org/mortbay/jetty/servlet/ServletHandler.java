@@ -19,7 +19,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -99,7 +98,10 @@ public class ServletHandler extends AbstractHandler
     private transient Map _servletNameMap=new HashMap();
     private transient PathMap _servletPathMap;
     
-    protected transient MruCache _chainCache[];
+    protected transient volatile ChainCache _chainCache[];
+    private int _chainCacheHits;
+    private int _chainCacheMisses;
+    private int _chainCacheEvictions;
 
 
     /* ------------------------------------------------------------ */
@@ -145,16 +147,7 @@ public class ServletHandler extends AbstractHandler
         updateMappings();
         
         if(_filterChainsCached)
-            _chainCache = new MruCache[] {
-                null,
-                new MruCache(_maxFilterChainsCacheSize),
-                new MruCache(_maxFilterChainsCacheSize),
-                null,
-                new MruCache(_maxFilterChainsCacheSize),
-                null,
-                null,
-                null,
-                new MruCache(_maxFilterChainsCacheSize) };
+            invalidateChainsCache();
 
         super.doStart();
         
@@ -532,12 +525,21 @@ public class ServletHandler extends AbstractHandler
     {
         String key=pathInContext==null?servletHolder.getName():pathInContext;
         
-        if (_filterChainsCached && _chainCache!=null)
+        ChainCache cache=null;
+        if (_filterChainsCached)
         {
-            synchronized(this)
+            ChainCache[] caches=_chainCache;
+            int index=chainIndex(requestType);
+            if (caches!=null && index>=0)
             {
-                if(_chainCache[requestType].containsKey(key))
-                    return (FilterChain)_chainCache[requestType].get(key);
+                cache=caches[index];
+                FilterChain chain=cache.get(key);
+                if (chain!=null)
+                {
+                    _chainCacheHits++;
+                    return chain;
+                }
+                _chainCacheMisses++;
             }
         }
         
@@ -587,10 +589,8 @@ public class ServletHandler extends AbstractHandler
         {
             if (LazyList.size(filters) > 0)
                 chain= new CachedChain(filters, servletHolder);
-            synchronized(this)
-            {
-                _chainCache[requestType].put(key,chain);
-            }
+            if (cache!=null && chain!=null && cache.put(key,chain))
+                _chainCacheEvictions++;
         }
         else if (LazyList.size(filters) > 0)
             chain = new Chain(filters, servletHolder);
@@ -598,45 +598,30 @@ public class ServletHandler extends AbstractHandler
         return chain;
     }
     
-    private class MruCache extends LinkedHashMap
+    /* ------------------------------------------------------------ */
+    /* 
+     * @return The index of the chain cache for a dispatch type
+     */
+    private static int chainIndex(int requestType)
     {
-        private int maxEntries = 1000;
-        
-        public MruCache()
+        switch(requestType)
         {
-            super();
-        }
-
-        public MruCache(int maxSize)
-        {
-            super();
-            setMaxEntries(maxSize);
-        }
-
-        protected boolean removeEldestEntry(Map.Entry eldest)
-        {
-            return size() > maxEntries;
-        }
-        
-        public void setMaxEntries(int maxEntries)
-        {
-            this.maxEntries = maxEntries;
+            case REQUEST: return 0;
+            case FORWARD: return 1;
+            case INCLUDE: return 2;
+            case ERROR: return 3;
+            default: return -1;
         }
     }
     
     /* ------------------------------------------------------------ */
     private void invalidateChainsCache()
     {
-        _chainCache = new MruCache[] {
-            null,
-            new MruCache(_maxFilterChainsCacheSize),
-            new MruCache(_maxFilterChainsCacheSize),
-            null,
-            new MruCache(_maxFilterChainsCacheSize),
-            null,
-            null,
-            null,
-            new MruCache(_maxFilterChainsCacheSize) };
+        _chainCache = new ChainCache[] {
+            new ChainCache(_maxFilterChainsCacheSize),
+            new ChainCache(_maxFilterChainsCacheSize),
+            new ChainCache(_maxFilterChainsCacheSize),
+            new ChainCache(_maxFilterChainsCacheSize) };
     }
     
 
@@ -1300,21 +1285,44 @@ public class ServletHandler extends AbstractHandler
 
     /* ------------------------------------------------------------ */
     /** Set the maximum filter chain cache size.
-     * Filter chains are cached if {@link #isFilterChainsCached()} is true. If the max cache size
-     * is greater than zero, then the cache is flushed whenever it grows to be this size.
+     * Filter chains are cached if {@link #isFilterChainsCached()} is true. There is a cache for
+     * each dispatch type, and if the max cache size is greater than zero, then the oldest chain is
+     * evicted whenever a cache would grow beyond this size.  Changing the size clears the caches.
      * 
      * @param maxFilterChainsCacheSize  the maximum number of entries in a filter chain cache.
      */
     public void setMaxFilterChainsCacheSize(int maxFilterChainsCacheSize)
     {
         _maxFilterChainsCacheSize = maxFilterChainsCacheSize;
-        for (int i=0; i<_chainCache.length; i++)
-        {
-            if (_chainCache[i] != null && _chainCache[i] instanceof MruCache)
-            {
-                _chainCache[i].setMaxEntries(maxFilterChainsCacheSize);
-            }
-        }
+        if (_chainCache!=null)
+            invalidateChainsCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The approximate number of filter chains found in the filter chain caches.
+     */
+    public int getFilterChainsCacheHits()
+    {
+        return _chainCacheHits;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The approximate number of filter chains not found in the filter chain caches.
+     */
+    public int getFilterChainsCacheMisses()
+    {
+        return _chainCacheMisses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The approximate number of filter chains evicted from full filter chain caches.
+     */
+    public int getFilterChainsCacheEvictions()
+    {
+        return _chainCacheEvictions;
     }
     
     /**
@@ -1365,4 +1373,105 @@ public class ServletHandler extends AbstractHandler
     {
         return filter;
     }
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Bounded cache of the filter chains for one dispatch type.
+     * Chains are looked up without locking: entries are immutable, and
+     * are added or removed by replacing the head of a bucket while holding
+     * the lock of the cache.  When the cache is full, the oldest chain is
+     * evicted.
+     */
+    private static class ChainCache
+    {
+        private final Entry[] _table;
+        private final String[] _order;
+        private int _oldest;
+        private int _size;
+
+        /* ------------------------------------------------------------ */
+        ChainCache(int maxEntries)
+        {
+            int size=16;
+            while (size<maxEntries && size<4096)
+                size*=2;
+            _table=new Entry[size];
+            _order=new String[maxEntries>0?maxEntries:0];
+        }
+
+        /* ------------------------------------------------------------ */
+        FilterChain get(String key)
+        {
+            int hash=key.hashCode();
+            for (Entry e=_table[hash&(_table.length-1)];e!=null;e=e._next)
+                if (e._hash==hash && e._key.equals(key))
+                    return e._chain;
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        /* 
+         * @return True if a chain was evicted to make room for the chain
+         */
+        synchronized boolean put(String key, FilterChain chain)
+        {
+            if (_order.length==0)
+                return false;
+
+            int hash=key.hashCode();
+            int bucket=hash&(_table.length-1);
+            for (Entry e=_table[bucket];e!=null;e=e._next)
+                if (e._hash==hash && e._key.equals(key))
+                    return false;
+
+            boolean evicted=false;
+            if (_size==_order.length)
+            {
+                remove(_order[_oldest]);
+                evicted=true;
+            }
+            else
+                _size++;
+
+            _table[bucket]=new Entry(key,hash,chain,_table[bucket]);
+            _order[_oldest]=key;
+            _oldest=(_oldest+1)%_order.length;
+            return evicted;
+        }
+
+        /* ------------------------------------------------------------ */
+        private void remove(String key)
+        {
+            int hash=key.hashCode();
+            int bucket=hash&(_table.length-1);
+            Entry head=_table[bucket];
+            Entry removed=head;
+            while (removed!=null && !(removed._hash==hash && removed._key.equals(key)))
+                removed=removed._next;
+            if (removed==null)
+                return;
+
+            // copy the entries before the removed entry, as entries are immutable
+            Entry rebuilt=removed._next;
+            for (Entry e=head;e!=removed;e=e._next)
+                rebuilt=new Entry(e._key,e._hash,e._chain,rebuilt);
+            _table[bucket]=rebuilt;
+        }
+
+        /* ------------------------------------------------------------ */
+        private static class Entry
+        {
+            final String _key;
+            final int _hash;
+            final FilterChain _chain;
+            final Entry _next;
+
+            Entry(String key, int hash, FilterChain chain, Entry next)
+            {
+                _key=key;
+                _hash=hash;
+                _chain=chain;
+                _next=next;
+            }
+        }
+    }
 }
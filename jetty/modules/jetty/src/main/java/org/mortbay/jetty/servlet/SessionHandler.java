@@ -228,30 +228,28 @@ public class SessionHandler extends HandlerWrapper
         // Look for session id cookie    
         if (_sessionManager.isUsingCookies())
         {
-            Cookie[] cookies=request.getCookies();
-            if (cookies!=null && cookies.length>0)
+            // Only look for the session cookie rather than parsing all cookies
+            String[] ids=base_request.getCookieValues(sessionManager.getSessionCookie(),true);
+            if (ids!=null && ids.length>0)
             {
-                for (int i=0;i<cookies.length;i++)
+                for (int i=0;i<ids.length;i++)
                 {
-                    if (sessionManager.getSessionCookie().equalsIgnoreCase(cookies[i].getName()))
+                    if (requested_session_id!=null)
                     {
-                        if (requested_session_id!=null)
-                        {
-                            // Multiple jsessionid cookies. Probably due to
-                            // multiple paths and/or domains. Pick the first
-                            // known session or the last defined cookie.
-                            if (sessionManager.getHttpSession(requested_session_id)!=null)
-                                break;
-                        }
+                        // Multiple jsessionid cookies. Probably due to
+                        // multiple paths and/or domains. Pick the first
+                        // known session or the last defined cookie.
+                        if (sessionManager.getHttpSession(requested_session_id)!=null)
+                            break;
+                    }
 
-                        requested_session_id=cookies[i].getValue();
-                        requested_session_id_from_cookie = true;
-                        if(Log.isDebugEnabled())Log.debug("Got Session ID "+requested_session_id+" from cookie");
+                    requested_session_id=ids[i];
+                    requested_session_id_from_cookie = true;
+                    if(Log.isDebugEnabled())Log.debug("Got Session ID "+requested_session_id+" from cookie");
                         
-                        session=sessionManager.getHttpSession(requested_session_id);
-                        if (session!=null)
-                            base_request.setSession(session);
-                    }
+                    session=sessionManager.getHttpSession(requested_session_id);
+                    if (session!=null)
+                        base_request.setSession(session);
                 }
             }
         }
@@ -18,6 +18,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.CodeSource;
@@ -47,14 +48,44 @@ import org.mortbay.util.StringUtil;
  * If no parent class loader is provided, then the current thread context classloader will
  * be used.  If that is null then the classloader that loaded this class is used as the parent.
  * 
+ * Classes are loaded with a lock per class name rather than a lock on the whole
+ * loader, and the loader is registered as parallel capable on JVMs that support it, 
+ * so that classes may be loaded concurrently.  The system and server classes of 
+ * the context are compiled into a prefix trie, and the names of classes and 
+ * resources that could not be found are kept in a bounded negative cache, which
+ * is cleared when the classpath changes.
+ * 
  * @author Greg Wilkins (gregw)
  */
 public class WebAppClassLoader extends URLClassLoader 
 {
+    private static Method __getClassLoadingLock;
+    static
+    {
+        try
+        {
+            // ClassLoader.registerAsParallelCapable() and getClassLoadingLock(String)
+            // are only available from java 7
+            Method register=ClassLoader.class.getDeclaredMethod("registerAsParallelCapable",new Class[0]);
+            register.setAccessible(true);
+            register.invoke(null,new Object[0]);
+            Method lock=ClassLoader.class.getDeclaredMethod("getClassLoadingLock",new Class[]{String.class});
+            lock.setAccessible(true);
+            __getClassLoadingLock=lock;
+        }
+        catch(Throwable th)
+        {
+            Log.ignore(th);
+        }
+    }
+
     private String _name;
     private WebAppContext _context;
     private ClassLoader _parent;
     private HashSet _extensions;
+    private final NegativeCache _notFound=new NegativeCache();
+    private volatile ClassMatcher _systemMatcher;
+    private volatile ClassMatcher _serverMatcher;
     
     /* ------------------------------------------------------------ */
     /** Constructor.
@@ -120,6 +151,33 @@ public class WebAppClassLoader extends URLClassLoader
     {
         return _context;
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the maximum number of class names that were not found
+     * to remember.
+     */
+    public int getNegativeCacheSize()
+    {
+        return _notFound.getMaxSize();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size the maximum number of class names that were not found
+     * to remember, or 0 to not cache misses.
+     */
+    public void setNegativeCacheSize(int size)
+    {
+        _notFound.setMaxSize(size);
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void addURL(URL url)
+    {
+        super.addURL(url);
+        _notFound.clear();
+    }
     
     /* ------------------------------------------------------------ */
     /**
@@ -285,8 +343,10 @@ public class WebAppClassLoader extends URLClassLoader
         }
 
         if (url != null)
+        {
             if (Log.isDebugEnabled())
                 Log.debug("getResource("+name+")=" + url);
+        }
 
         return url;
     }
@@ -294,67 +354,27 @@ public class WebAppClassLoader extends URLClassLoader
     /* ------------------------------------------------------------ */
     public boolean isServerPath(String name)
     {
-        name=name.replace('/','.');
-        while(name.startsWith("."))
-            name=name.substring(1);
-
         String[] server_classes = _context.getServerClasses();
-        if (server_classes!=null)
+        ClassMatcher matcher=_serverMatcher;
+        if (matcher==null || !matcher.isFor(server_classes))
         {
-            for (int i=0;i<server_classes.length;i++)
-            {
-                boolean result=true;
-                String c=server_classes[i];
-                if (c.startsWith("-"))
-                {
-                    c=c.substring(1); // TODO cache
-                    result=false;
-                }
-                
-                if (c.endsWith("."))
-                {
-                    if (name.startsWith(c))
-                        return result;
-                }
-                else if (name.equals(c))
-                    return result;
-            }
+            matcher=new ClassMatcher(server_classes);
+            _serverMatcher=matcher;
         }
-        return false;
+        return matcher.match(name);
     }
 
     /* ------------------------------------------------------------ */
     public boolean isSystemPath(String name)
     {
-        name=name.replace('/','.');
-        while(name.startsWith("."))
-            name=name.substring(1);
         String[] system_classes = _context.getSystemClasses();
-        if (system_classes!=null)
+        ClassMatcher matcher=_systemMatcher;
+        if (matcher==null || !matcher.isFor(system_classes))
         {
-            for (int i=0;i<system_classes.length;i++)
-            {
-                boolean result=true;
-                String c=system_classes[i];
-                
-                if (c.startsWith("-"))
-                {
-                    c=c.substring(1); // TODO cache
-                    result=false;
-                }
-                
-                if (c.endsWith("."))
-                {
-                    if (name.startsWith(c))
-                        return result;
-                }
-                else if (name.equals(c))
-                    return result;
-            }
+            matcher=new ClassMatcher(system_classes);
+            _systemMatcher=matcher;
         }
-        
-        return false;
-        
+        return matcher.match(name);
     }
 
     /* ------------------------------------------------------------ */
@@ -364,9 +384,51 @@ public class WebAppClassLoader extends URLClassLoader
     }
 
     /* ------------------------------------------------------------ */
-    protected synchronized Class loadClass(String name, boolean resolve) throws ClassNotFoundException
+    protected Class loadClass(String name, boolean resolve) throws ClassNotFoundException
+    {
+        // classes already defined by this loader are found without locking
+        Class c= findLoadedClass(name);
+        if (c!=null)
+        {
+            if (resolve)
+                resolveClass(c);
+            return c;
+        }
+
+        synchronized (getLoadingLock(name))
+        {
+            return loadClassLocked(name,resolve);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The lock object used when loading the named class, which is
+     * a lock per class name if the loader is parallel capable.
+     */
+    private Object getLoadingLock(String name)
+    {
+        if (__getClassLoadingLock!=null)
+        {
+            try
+            {
+                return __getClassLoadingLock.invoke(this,new Object[]{name});
+            }
+            catch(Exception e)
+            {
+                Log.ignore(e);
+            }
+        }
+        return this;
+    }
+
+    /* ------------------------------------------------------------ */
+    private Class loadClassLocked(String name, boolean resolve) throws ClassNotFoundException
     {
         Class c= findLoadedClass(name);
+        if (c == null && _notFound.contains(name))
+            throw new ClassNotFoundException(name);
+
         ClassNotFoundException ex= null;
         boolean tried_parent= false;
         
@@ -397,11 +459,22 @@ public class WebAppClassLoader extends URLClassLoader
             }
         }
 
-        if (c == null && _parent!=null && !tried_parent && !isServerPath(name) )
-            c= _parent.loadClass(name);
+        try
+        {
+            if (c == null && _parent!=null && !tried_parent && !isServerPath(name) )
+                c= _parent.loadClass(name);
+        }
+        catch (ClassNotFoundException e)
+        {
+            _notFound.add(name);
+            throw e;
+        }
 
         if (c == null)
+        {
+            _notFound.add(name);
             throw ex;
+        }
 
         if (resolve)
             resolveClass(c);
@@ -420,4 +493,170 @@ public class WebAppClassLoader extends URLClassLoader
         return "ContextLoader@" + _name;
     }
     
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Prefix trie of class names and packages.
+     * Entries ending with '.' match all names in the package, other entries
+     * match only the exact name and entries starting with '-' give a negative
+     * match. If several entries match a name, the first in the list wins.
+     * Names may use '/' as the separator and leading separators are ignored.
+     * A matcher is immutable, so it can be shared without locking.
+     */
+    static class ClassMatcher
+    {
+        private final Node _root=new Node();
+        private final String[] _classes;
+
+        /* ------------------------------------------------------------ */
+        ClassMatcher(String[] classes)
+        {
+            _classes=classes;
+            for (int i=0;classes!=null && i<classes.length;i++)
+            {
+                String c=classes[i];
+                boolean result=true;
+                if (c.startsWith("-"))
+                {
+                    c=c.substring(1);
+                    result=false;
+                }
+                
+                Node node=_root;
+                for (int j=0;j<c.length();j++)
+                    node=node.child(c.charAt(j),true);
+                
+                if (c.endsWith("."))
+                {
+                    if (node._prefix<0)
+                    {
+                        node._prefix=i;
+                        node._prefixResult=result;
+                    }
+                }
+                else if (node._exact<0)
+                {
+                    node._exact=i;
+                    node._exactResult=result;
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        boolean match(String name)
+        {
+            int length=name.length();
+            int i=0;
+            while (i<length && (name.charAt(i)=='.' || name.charAt(i)=='/'))
+                i++;
+
+            int best=Integer.MAX_VALUE;
+            boolean result=false;
+            Node node=_root;
+            for (;i<length;i++)
+            {
+                char c=name.charAt(i);
+                node=node.child(c=='/'?'.':c,false);
+                if (node==null)
+                    return result;
+                if (node._prefix>=0 && node._prefix<best)
+                {
+                    best=node._prefix;
+                    result=node._prefixResult;
+                }
+            }
+            if (node._exact>=0 && node._exact<best)
+                result=node._exactResult;
+            return result;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if the matcher was built from the classes array.
+         */
+        boolean isFor(String[] classes)
+        {
+            return _classes==classes;
+        }
+
+        /* ------------------------------------------------------------ */
+        private static class Node
+        {
+            char[] _chars=new char[0];
+            Node[] _children=new Node[0];
+            int _prefix=-1;
+            boolean _prefixResult;
+            int _exact=-1;
+            boolean _exactResult;
+
+            Node child(char c, boolean create)
+            {
+                for (int i=0;i<_chars.length;i++)
+                    if (_chars[i]==c)
+                        return _children[i];
+                if (!create)
+                    return null;
+
+                char[] chars=new char[_chars.length+1];
+                System.arraycopy(_chars,0,chars,0,_chars.length);
+                chars[_chars.length]=c;
+                Node[] children=new Node[_children.length+1];
+                System.arraycopy(_children,0,children,0,_children.length);
+                Node child=new Node();
+                children[_children.length]=child;
+                _chars=chars;
+                _children=children;
+                return child;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Bounded set of class names that were not found.
+     * The names are held in a direct mapped table, so a name may replace
+     * another with the same hash.  Lookups do not lock, as the table is
+     * replaced when cleared and a stale read only misses the cache.
+     */
+    private static class NegativeCache
+    {
+        private int _maxSize=1024;
+        private volatile String[] _names=new String[1024];
+
+        synchronized int getMaxSize()
+        {
+            return _maxSize;
+        }
+
+        synchronized void setMaxSize(int maxSize)
+        {
+            _maxSize=maxSize;
+            clear();
+        }
+
+        boolean contains(String name)
+        {
+            String[] names=_names;
+            return names!=null && name.equals(names[name.hashCode()&(names.length-1)]);
+        }
+
+        void add(String name)
+        {
+            String[] names=_names;
+            if (names!=null)
+                names[name.hashCode()&(names.length-1)]=name;
+        }
+
+        synchronized void clear()
+        {
+            if (_maxSize<=0)
+                _names=null;
+            else
+            {
+                int size=1;
+                while (size<_maxSize)
+                    size<<=1;
+                _names=new String[size];
+            }
+        }
+    }
 }
@@ -0,0 +1,189 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.io.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+import junit.framework.TestCase;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.io.View;
+
+/* ------------------------------------------------------------ */
+/** 
+ */
+public class ChannelEndPointTest extends TestCase
+{
+    /* ------------------------------------------------------------ */
+    public ChannelEndPointTest(String name)
+    {
+        super(name);
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(ChannelEndPointTest.class);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testGatheringFlush() throws Exception
+    {
+        Channel channel=new GatheringChannel(Integer.MAX_VALUE);
+        ChannelEndPoint endp=new ChannelEndPoint(channel);
+
+        // indirect header, direct content and array trailer
+        Buffer header=new IndirectNIOBuffer(64);
+        header.put(new ByteArrayBuffer("header;"));
+        Buffer content=new DirectNIOBuffer(64);
+        content.put(new ByteArrayBuffer("content;"));
+        Buffer trailer=new View(new ByteArrayBuffer("xxtrailer"),2,2,9,Buffer.READONLY);
+
+        int len=endp.flush(header,content,trailer);
+        assertEquals(22,len);
+        assertEquals("header;content;trailer",channel.toString());
+        assertEquals(1,channel._writes);
+        assertEquals(0,header.length());
+        assertEquals(0,content.length());
+        assertEquals(0,trailer.length());
+        assertEquals(22,endp.getBytesWritten());
+        assertEquals(0,endp.getBytesCopied());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testPartialGatheringFlush() throws Exception
+    {
+        Channel channel=new GatheringChannel(10);
+        ChannelEndPoint endp=new ChannelEndPoint(channel);
+
+        Buffer header=new ByteArrayBuffer(64);
+        header.put(new ByteArrayBuffer("header;"));
+        Buffer content=new DirectNIOBuffer(64);
+        content.put(new ByteArrayBuffer("content;"));
+        Buffer trailer=new IndirectNIOBuffer(64);
+        trailer.put(new ByteArrayBuffer("trailer"));
+
+        assertEquals(10,endp.flush(header,content,trailer));
+        assertEquals(0,header.length());
+        assertEquals("tent;",content.toString());
+        assertEquals("trailer",trailer.toString());
+
+        assertEquals(10,endp.flush(header,content,trailer));
+        assertEquals(0,content.length());
+        assertEquals("er",trailer.toString());
+
+        assertEquals(2,endp.flush(header,content,trailer));
+        assertEquals("header;content;trailer",channel.toString());
+        assertEquals(3,channel._writes);
+        assertEquals(22,endp.getBytesWritten());
+        assertEquals(0,endp.getBytesCopied());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testCopyFlush() throws Exception
+    {
+        Channel channel=new Channel();
+        ChannelEndPoint endp=new ChannelEndPoint(channel);
+
+        Buffer header=new IndirectNIOBuffer(64);
+        header.put(new ByteArrayBuffer("header;"));
+        Buffer content=new DirectNIOBuffer(64);
+        content.put(new ByteArrayBuffer("content;"));
+
+        assertEquals(15,endp.flush(header,content,null));
+        assertEquals("header;content;",channel.toString());
+        assertEquals(1,channel._writes);
+        assertEquals(15,endp.getBytesWritten());
+        assertEquals(8,endp.getBytesCopied());
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Channel implements ByteChannel
+    {
+        final ByteArrayOutputStream _out=new ByteArrayOutputStream();
+        int _writes;
+
+        public int read(ByteBuffer dst) throws IOException
+        {
+            return -1;
+        }
+
+        public int write(ByteBuffer src) throws IOException
+        {
+            return write(src,Integer.MAX_VALUE);
+        }
+
+        int write(ByteBuffer src, int max)
+        {
+            int len=0;
+            while (src.hasRemaining() && len<max)
+            {
+                _out.write(src.get());
+                len++;
+            }
+            _writes++;
+            return len;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+        }
+
+        public String toString()
+        {
+            return new String(_out.toByteArray());
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class GatheringChannel extends Channel implements GatheringByteChannel
+    {
+        final int _max;
+
+        GatheringChannel(int max)
+        {
+            _max=max;
+        }
+
+        public long write(ByteBuffer[] srcs) throws IOException
+        {
+            return write(srcs,0,srcs.length);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+        {
+            long len=0;
+            for (int i=offset;i<offset+length && len<_max;i++)
+            {
+                len+=write(srcs[i],(int)(_max-len));
+                _writes--;
+            }
+            _writes++;
+            return len;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty;
+
+import junit.framework.TestCase;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+
+/**
+ * @version $Revision$
+ */
+public class AbstractBuffersTest extends TestCase
+{
+    AbstractBuffers _buffers=new AbstractBuffers()
+    {
+        protected Buffer newBuffer(int size)
+        {
+            return new ByteArrayBuffer(size);
+        }
+    };
+
+    protected void setUp() throws Exception
+    {
+        _buffers.setHeaderBufferSize(1024);
+        _buffers.setRequestBufferSize(2048);
+        _buffers.setResponseBufferSize(4096);
+        _buffers.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _buffers.stop();
+    }
+
+    public void testSharedPool() throws Exception
+    {
+        final Buffer header=_buffers.getBuffer(1024);
+        assertEquals(1024,header.capacity());
+        assertEquals(1,_buffers.getBuffersInUse());
+        assertEquals(1,_buffers.getBuffersAllocated());
+
+        header.put((byte)'x');
+        _buffers.returnBuffer(header);
+        assertEquals(0,header.length());
+        assertEquals(0,_buffers.getBuffersInUse());
+        assertEquals(1,_buffers.getPooledBuffers());
+        assertEquals(1024,_buffers.getPooledBufferMemory());
+
+        // The buffer is reused by another thread
+        final Buffer[] got=new Buffer[1];
+        Thread thread=new Thread()
+        {
+            public void run()
+            {
+                got[0]=_buffers.getBuffer(1024);
+            }
+        };
+        thread.start();
+        thread.join();
+        assertTrue(header==got[0]);
+        assertEquals(0,_buffers.getPooledBuffers());
+        assertEquals(1,_buffers.getBuffersAllocated());
+
+        // Other sizes are pooled too
+        Buffer other=_buffers.getBuffer(100);
+        _buffers.returnBuffer(other);
+        assertTrue(other==_buffers.getBuffer(100));
+    }
+
+    public void testMaxPooledBufferMemory() throws Exception
+    {
+        _buffers.setMaxPooledBufferMemory(6000);
+        Buffer request0=_buffers.getBuffer(2048);
+        Buffer request1=_buffers.getBuffer(2048);
+        Buffer response=_buffers.getBuffer(4096);
+        assertEquals(3,_buffers.getBuffersInUse());
+
+        _buffers.returnBuffer(request0);
+        _buffers.returnBuffer(response);
+        _buffers.returnBuffer(request1);
+        assertEquals(0,_buffers.getBuffersInUse());
+        assertEquals(2,_buffers.getPooledBuffers());
+        assertEquals(4096,_buffers.getPooledBufferMemory());
+        assertTrue(request1==_buffers.getBuffer(2048));
+        assertTrue(request0==_buffers.getBuffer(2048));
+        assertTrue(response!=_buffers.getBuffer(4096));
+        assertEquals(4,_buffers.getBuffersAllocated());
+    }
+}
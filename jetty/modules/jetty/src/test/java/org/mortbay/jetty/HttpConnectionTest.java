@@ -31,6 +31,7 @@ import javax.servlet.http.HttpServletRequest;
 import org.mortbay.log.Log;
 import org.mortbay.log.Logger;
 import org.mortbay.log.StdErrLog;
+import org.mortbay.util.IO;
 
 
 import junit.framework.TestCase;
@@ -544,6 +545,51 @@ public class HttpConnectionTest extends TestCase
 
     }
     
+    public void testPipelinedResponses() throws Exception
+    {
+        server.stop();
+        connector.setMaxPipelinedResponses(3);
+        server.setHandler(new DumpHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                ((Request)request).setHandled(true);
+                String content=request.getRequestURI()+" "+IO.toString(request.getInputStream())+"\n";
+                response.setContentLength(content.length());
+                response.getOutputStream().print(content);
+            }
+        });
+        server.start();
+        
+        String requests="";
+        for (int i=1;i<=4;i++)
+            requests+="GET /R"+i+" HTTP/1.1\n"+
+                "Host: localhost\n"+
+                "\n";
+        requests+="POST /R5 HTTP/1.1\n"+
+            "Host: localhost\n"+
+            "Content-Type: text/plain; charset=utf-8\n"+
+            "Content-Length: 10\n"+
+            "\n"+
+            "0123456789"+
+            "GET /R6 HTTP/1.1\n"+
+            "Host: localhost\n"+
+            "\n"+
+            "GET /R7 HTTP/1.1\n"+
+            "Host: localhost\n"+
+            "Connection: close\n"+
+            "\n";
+
+        String response=connector.getResponses(requests);
+        int offset=0;
+        for (int i=1;i<=7;i++)
+        {
+            offset = checkContains(response,offset,"HTTP/1.1 200");
+            offset = checkContains(response,offset,"/R"+i+" "+(i==5?"0123456789":"")+"\n");
+        }
+        assertEquals(-1,response.indexOf("HTTP/1.1",offset));
+    }
+
     private int checkContains(String s,int offset,String c)
     {
         int o=s.indexOf(c,offset);
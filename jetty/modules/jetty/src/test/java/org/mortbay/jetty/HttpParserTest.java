@@ -461,7 +461,51 @@ public class HttpParserTest extends TestCase
 	assertTrue(messageCompleted);
     }
 
+    public void testValueCache()
+        throws Exception
+    {
+        HttpValueCache cache=new HttpValueCache(1,16);
+        String[] uris={"/foo","/foo","/foo","/FOO","/bar","/bar","/other","/other","/foo"};
+        Buffer[] parsed=new Buffer[uris.length];
+        for (int i=0;i<uris.length;i++)
+        {
+            StringEndPoint io=new StringEndPoint();
+            io.setInput("GET "+uris[i]+" HTTP/1.1\015\012" +
+                "User-Agent: this agent is longer than sixteen bytes\015\012" +
+                "Connection: close\015\012" +
+                "\015\012");
+            ByteArrayBuffer buffer= new ByteArrayBuffer(4096);
+            SimpleBuffers buffers=new SimpleBuffers(new Buffer[]{buffer});
+
+            Handler handler = new Handler();
+            HttpParser parser= new HttpParser(buffers,io, handler, buffer.capacity(), 0);
+            parser.setValueCache(cache);
+            parser.parse();
+            assertEquals(uris[i], f1);
+            assertEquals("this agent is longer than sixteen bytes", val[0]);
+            assertEquals("close", val[1]);
+            parsed[i]=_uri;
+        }
+
+        // values are cached once they have been seen before
+        assertFalse(parsed[0] instanceof HttpValueCache.Entry);
+        assertTrue(parsed[1] instanceof HttpValueCache.Entry);
+        assertSame(parsed[1],parsed[2]);
+        assertEquals("/foo",parsed[2].toString());
+        assertFalse(parsed[3] instanceof HttpValueCache.Entry);
+        
+        // the cache is full and /foo has been used since the last sweep
+        assertFalse(parsed[4] instanceof HttpValueCache.Entry);
+        assertFalse(parsed[5] instanceof HttpValueCache.Entry);
+        
+        // /foo has not been used since the last sweep, so it is evicted
+        assertTrue(parsed[7] instanceof HttpValueCache.Entry);
+        assertFalse(parsed[8] instanceof HttpValueCache.Entry);
+        assertEquals(1,cache.getSize());
+    }
+
     String _content;
+    Buffer _uri;
     String f0;
     String f1;
     String f2;
@@ -490,6 +534,7 @@ public class HttpParserTest extends TestCase
             try
             {
                 request=true;
+                _uri=tok1;
                 h= -1;
                 hdr= new String[9];
                 val= new String[9];
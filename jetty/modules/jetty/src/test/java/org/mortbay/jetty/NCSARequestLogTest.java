@@ -0,0 +1,143 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.handler.RequestLogHandler;
+import org.mortbay.util.IO;
+
+public class NCSARequestLogTest extends TestCase
+{
+    Server _server;
+    LocalConnector _connector;
+    NCSARequestLog _log;
+    File _file;
+
+    protected void setUp() throws Exception
+    {
+        _file=File.createTempFile("request",".log");
+        _file.deleteOnExit();
+        
+        _server=new Server();
+        _connector=new LocalConnector();
+        _server.addConnector(_connector);
+        
+        _log=new NCSARequestLog(_file.getAbsolutePath());
+        _log.setAppend(false);
+        
+        RequestLogHandler logHandler = new RequestLogHandler();
+        logHandler.setRequestLog(_log);
+        logHandler.setHandler(new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                ((Request)request).setHandled(true);
+                response.setStatus(200);
+                response.getOutputStream().print("hello");
+            }
+        });
+        _server.setHandler(logHandler);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _server.stop();
+        _file.delete();
+    }
+    
+    private String[] request(int count) throws Exception
+    {
+        _server.start();
+        for (int i=0;i<count;i++)
+        {
+            String response=_connector.getResponses("GET /path/"+i+" HTTP/1.1\r\n"+
+                "Host: localhost\r\n"+
+                "User-Agent: test\r\n"+
+                "Connection: close\r\n"+
+                "\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+        }
+        _server.stop();
+        
+        String log=IO.toString(new FileInputStream(_file));
+        return log.split("\\r?\\n");
+    }
+
+    public void testSync() throws Exception
+    {
+        String[] lines=request(10);
+        assertEquals(10,lines.length);
+        for (int i=0;i<lines.length;i++)
+        {
+            assertTrue(lines[i].indexOf("\"GET /path/"+i+" HTTP/1.1\" 200 5")>0);
+            assertTrue(lines[i].endsWith("\"-\" \"test\""));
+        }
+    }
+
+    public void testAsync() throws Exception
+    {
+        _log.setAsync(true);
+        _log.setFlushInterval(50);
+        _log.setQueueSize(8);
+        
+        String[] lines=request(100);
+        assertEquals(100,lines.length);
+        for (int i=0;i<lines.length;i++)
+        {
+            assertTrue(lines[i].indexOf("\"GET /path/"+i+" HTTP/1.1\" 200 5")>0);
+            assertTrue(lines[i].endsWith("\"-\" \"test\""));
+        }
+        assertEquals(0,_log.getDropped());
+        assertEquals(0,_log.getQueued());
+    }
+
+    public void testAsyncNoFlushInterval() throws Exception
+    {
+        _log.setAsync(true);
+        _log.setExtended(false);
+        _log.setLogLatency(true);
+        _log.setFlushInterval(0);
+        
+        String[] lines=request(20);
+        assertEquals(20,lines.length);
+        for (int i=0;i<lines.length;i++)
+            assertTrue(lines[i].matches(".*\"GET /path/"+i+" HTTP/1.1\" 200 5 +[0-9]+"));
+    }
+
+    public void testOverflowPolicy() throws Exception
+    {
+        assertEquals(NCSARequestLog.OVERFLOW_BLOCK,_log.getOverflowPolicy());
+        _log.setOverflowPolicy(NCSARequestLog.OVERFLOW_COUNT);
+        assertEquals(NCSARequestLog.OVERFLOW_COUNT,_log.getOverflowPolicy());
+        try
+        {
+            _log.setOverflowPolicy("unknown");
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.mortbay.jetty;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 
 import javax.servlet.ServletException;
@@ -483,6 +484,128 @@ public class RequestTest extends TestCase
     }
     
     
+    public void testLazyParameters()
+        throws Exception
+    {
+        Handler handler = new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                Request baseRequest = (Request)request;
+                baseRequest.setHandled(true);
+                String[] values=request.getParameterValues("a");
+                String result="a="+request.getParameter("a")+
+                    " b="+URLEncoder.encode(String.valueOf(request.getParameter("b")),StringUtil.__UTF8)+
+                    " sp ace="+request.getParameter("sp ace")+
+                    " flag="+request.getParameter("flag")+
+                    " none="+request.getParameter("none")+
+                    " values="+(values==null?null:java.util.Arrays.asList(values))+
+                    " map="+request.getParameterMap().size()+
+                    " keys="+new java.util.TreeSet(request.getParameterMap().keySet())+"\n";
+                
+                byte[] b=result.getBytes(StringUtil.__UTF8);
+                response.setContentLength(b.length);
+                response.getOutputStream().write(b);
+                response.flushBuffer();
+            }
+        };
+        _server.stop();
+        _server.setHandler(handler);
+        _server.start();
+
+        String content="a=3&b=%E2%82%AC&sp+ace=x=y&&flag";
+        String request="POST /?a=1&a=2 HTTP/1.1\r\n"+
+        "Host: whatever\r\n"+
+        "Content-Type: application/x-www-form-urlencoded\r\n"+
+        "Content-Length: "+content.length()+"\r\n"+
+        "\r\n"+
+        content+
+        "GET /?a=4 HTTP/1.1\r\n"+
+        "Host: whatever\r\n"+
+        "Connection: close\r\n"+
+        "\r\n";
+
+        String responses = _connector.getResponses(request);
+        assertTrue(responses.indexOf("a=1 b=%E2%82%AC sp ace=x=y flag= none=null values=[1, 2, 3] map=4 keys=[a, b, flag, sp ace]")>0);
+        assertTrue(responses.indexOf("a=4 b=null sp ace=null flag=null none=null values=[4] map=1 keys=[a]")>0);
+    }
+    
+    public void testFormContentLength()
+        throws Exception
+    {
+        final String[] value=new String[1];
+        Handler handler = new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                ((Request)request).setHandled(true);
+                value[0]="a="+request.getParameter("a");
+            }
+        };
+        _server.stop();
+        _server.setHandler(handler);
+        _server.start();
+
+        // the buffer is not sized from the content length before the content arrives
+        _connector.getResponses("POST / HTTP/1.1\r\n"+
+            "Host: whatever\r\n"+
+            "Content-Type: application/x-www-form-urlencoded\r\n"+
+            "Content-Length: 2147483647\r\n"+
+            "Connection: close\r\n"+
+            "\r\n"+
+            "a=1");
+        assertEquals("a=1",value[0]);
+    }
+
+    public void testCookieValues()
+        throws Exception
+    {
+        final ArrayList results = new ArrayList();
+        _handler._checker = new RequestTester()
+        {
+            public boolean check(HttpServletRequest request,HttpServletResponse response)
+            {
+                Request base=(Request)request;
+                String[] names={"name0","name1","\"name2\"","name3","name4","name5","name6","name7","NAME0","$path","none"};
+                for (int i=0;i<names.length;i++)
+                {
+                    String[] values=base.getCookieValues(names[i],false);
+                    results.add(values==null?null:java.util.Arrays.asList(values).toString());
+                }
+                results.add(java.util.Arrays.asList(base.getCookieValues("NAME0",true)).toString());
+                
+                // same values once the cookies are parsed
+                request.getCookies();
+                for (int i=0;i<names.length;i++)
+                {
+                    String[] values=base.getCookieValues(names[i],false);
+                    results.add(values==null?null:java.util.Arrays.asList(values).toString());
+                }
+                return true;
+            }  
+        };
+
+        String request="POST / HTTP/1.1\r\n"+
+        "Host: whatever\r\n"+
+        "Cookie: name0=value0; name1 = value1 , \"\\\"name2\\\"\"  =  \"\\\"value2\\\"\"  \n" +
+        "Cookie: $Version=2; name3=value3=value3;$path=/path;$domain=acme.com;$port=8080, name4=; name5 =  ; name6\n" +
+        "Cookie: name7=value7; name0=\"other;value\"\n" +
+        "Connection: close\r\n"+
+        "\r\n";
+
+        _connector.reopen();
+        _connector.getResponses(request);
+
+        String[] expected={"[value0, other;value]","[value1]","[\"value2\"]","[value3=value3]","[]","[]","[]","[value7]",null,null,null};
+        assertEquals(2*expected.length+1,results.size());
+        for (int i=0;i<expected.length;i++)
+        {
+            assertEquals(expected[i],results.get(i));
+            assertEquals(expected[i],results.get(expected.length+1+i));
+        }
+        assertEquals("[value0, other;value]",results.get(expected.length));
+    }
+    
     
     
     interface RequestTester
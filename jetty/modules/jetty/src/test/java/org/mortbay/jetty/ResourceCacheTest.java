@@ -152,4 +152,116 @@ public class ResourceCacheTest extends TestCase
         
         
     }
+    /* ------------------------------------------------------------ */
+    public void testStats() throws Exception
+    {
+        cache.lookup(names[1],factory);
+        cache.lookup(names[1],factory);
+        cache.lookup(names[2],factory);
+        cache.lookup(names[3],factory);
+        cache.lookup(names[4],factory);
+        assertEquals(1,cache.getHits());
+        assertEquals(4,cache.getMisses());
+        assertEquals(1,cache.getEvictions());
+
+        cache.resetStats();
+        assertEquals(0,cache.getHits());
+        assertEquals(0,cache.getMisses());
+        assertEquals(0,cache.getEvictions());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testStripes() throws Exception
+    {
+        cache.stop();
+        cache.setStripes(3);
+        assertEquals(4,cache.getStripes());
+        cache.start();
+
+        for (int i=0;i<files.length;i++)
+            cache.lookup(names[i],factory);
+
+        assertTrue(cache.getCachedSize()<=95);
+        assertTrue(cache.getCachedFiles()<=4);
+
+        for (int i=1;i<files.length;i++)
+        {
+            Content content=cache.lookup(names[i],factory);
+            if (content!=null)
+                assertEquals(i*10,content.getContentLength());
+        }
+
+        long hits=cache.getHits();
+        assertTrue(cache.lookup(names[8],factory).isCached());
+        assertEquals(hits+1,cache.getHits());
+
+        cache.flushCache();
+        assertEquals(0,cache.getCachedSize());
+        assertEquals(0,cache.getCachedFiles());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testLFU() throws Exception
+    {
+        cache.stop();
+        cache.setEvictionPolicy(ResourceCache.LFU);
+        cache.start();
+
+        Content one=cache.lookup(names[1],factory);
+        for (int i=0;i<5;i++)
+            assertTrue(one==cache.lookup(names[1],factory));
+        cache.lookup(names[2],factory);
+        cache.lookup(names[3],factory);
+
+        // names[1] is the least recently used but the most frequently used
+        cache.lookup(names[4],factory);
+        assertTrue(one.isCached());
+        assertEquals(10+30+40,cache.getCachedSize());
+        assertEquals(3,cache.getCachedFiles());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testLFUFull() throws Exception
+    {
+        cache.stop();
+        cache.setEvictionPolicy(ResourceCache.LFU);
+        cache.start();
+        assertEquals(1,cache.getStripes());
+
+        for (int i=0;i<4;i++)
+            for (int j=0;j<5;j++)
+                cache.lookup(names[i],factory);
+        assertEquals(4,cache.getCachedFiles());
+
+        // the new content is the least frequently used, but is not its own victim
+        Content four=cache.lookup(names[4],factory);
+        assertTrue(four.isCached());
+        assertTrue(cache.getCachedSize()<=95);
+        assertTrue(cache.getCachedFiles()<=4);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testTinyLFU() throws Exception
+    {
+        cache.stop();
+        cache.setEvictionPolicy(ResourceCache.TINY_LFU);
+        cache.start();
+
+        Content one=cache.lookup(names[1],factory);
+        for (int i=0;i<5;i++)
+            cache.lookup(names[1],factory);
+        cache.lookup(names[5],factory);
+        assertEquals(60,cache.getCachedSize());
+
+        // a one hit wonder is not admitted in place of a popular file
+        assertTrue(cache.lookup(names[8],factory)==null);
+        assertTrue(one.isCached());
+        assertEquals(60,cache.getCachedSize());
+
+        // but is once it has been asked for often enough
+        for (int i=0;i<10;i++)
+            cache.lookup(names[8],factory);
+        assertTrue(cache.lookup(names[8],factory)!=null);
+        assertEquals(80,cache.getCachedSize());
+    }
 }
@@ -13,6 +13,9 @@
 //========================================================================
 
 package org.mortbay.jetty;
+import java.net.Socket;
+
+import org.mortbay.io.nio.SelectorManager;
 import org.mortbay.jetty.nio.SelectChannelConnector;
 
 /**
@@ -24,4 +27,55 @@ public class SelectChannelServerTest extends HttpServerTestBase
     {
         super(new SelectChannelConnector());
     }   
-}
\ No newline at end of file
+
+    public void testSelectSetBalance() throws Exception
+    {
+        Server server=new Server();
+        SelectChannelConnector connector=new SelectChannelConnector();
+        connector.setAcceptors(3);
+        server.addConnector(connector);
+        server.start();
+
+        Socket[] sockets=new Socket[30];
+        try
+        {
+            SelectorManager manager=connector.getSelectorManager();
+            assertEquals(3,manager.getSelectSets());
+            int[] keys=new int[3];
+
+            // wait for each connection to be registered, so that every
+            // connection is balanced against settled loads
+            for (int i=0;i<sockets.length;i++)
+            {
+                sockets[i]=new Socket("localhost",connector.getLocalPort());
+                long end=System.currentTimeMillis()+10000;
+                while (getKeys(manager,keys)<i+2 && System.currentTimeMillis()<end)
+                    Thread.sleep(10);
+            }
+
+            // the accept channel and the connections
+            assertEquals(sockets.length+1,getKeys(manager,keys));
+            for (int i=0;i<keys.length;i++)
+                assertTrue("keys "+keys[i],keys[i]>=10 && keys[i]<=11);
+        }
+        finally
+        {
+            for (int i=0;i<sockets.length;i++)
+                if (sockets[i]!=null)
+                    sockets[i].close();
+            server.stop();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private int getKeys(SelectorManager manager, int[] keys)
+    {
+        int total=0;
+        for (int i=0;i<keys.length;i++)
+        {
+            keys[i]=manager.getSelectSet(i).getKeys();
+            total+=keys[i];
+        }
+        return total;
+    }
+}
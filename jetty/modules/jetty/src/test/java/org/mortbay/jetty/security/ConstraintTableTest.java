@@ -0,0 +1,229 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.security;
+
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.servlet.PathMap;
+import org.mortbay.util.LazyList;
+
+/**
+ * Test the ConstraintTable against combining the mapped constraints
+ * for each request, as the SecurityHandler did before the table.
+ */
+public class ConstraintTableTest extends TestCase
+{
+    static final String[] __SPECS={"/","/*","/a/*","/a/b/*","/a/b/c","/a/b","*.jsp","*.do","/b/*","/a/b/c/*"};
+    static final String[] __METHODS={null,"GET","POST","PUT","DELETE","PROPFIND","get"};
+    static final String[] __PATHS={"/","/x","/a","/a/","/a/x","/a/b","/a/b/","/a/b/c","/a/b/c/","/a/b/c/d.jsp","/b","/b/","/b/x.do","/x.jsp","/a/x.do"};
+    static final String[] __REQUEST_METHODS={"GET","get","POST","HEAD","PUT","DELETE","PROPFIND","propfind","MKCOL"};
+    static final String[][] __ROLES={null,{},{"user"},{"admin","user"},{Constraint.ANY_ROLE}};
+
+    Random _random=new Random(1234);
+
+    public void testDecisions()
+    {
+        for (int t=0;t<200;t++)
+        {
+            ConstraintMapping[] mappings=newMappings(1+_random.nextInt(12));
+            ConstraintTable table=new ConstraintTable(mappings);
+            PathMap map=newMap(mappings);
+
+            for (int p=0;p<__PATHS.length;p++)
+            {
+                for (int m=0;m<__REQUEST_METHODS.length;m++)
+                {
+                    String expected=combine(map,__PATHS[p],__REQUEST_METHODS[m]);
+                    String decision=toString(table.getDecision(__PATHS[p],__REQUEST_METHODS[m]));
+                    assertEquals(__PATHS[p]+" "+__REQUEST_METHODS[m],expected,decision);
+                }
+            }
+        }
+    }
+
+    public void testEmpty()
+    {
+        assertNull(new ConstraintTable(null).getDecision("/a","GET"));
+        assertNull(new ConstraintTable(new ConstraintMapping[0]).getDecision("/a","GET"));
+    }
+
+    public void testMethods()
+    {
+        Constraint forbid=new Constraint();
+        forbid.setAuthenticate(true);
+        Constraint user=new Constraint();
+        user.setAuthenticate(true);
+        user.setRoles(new String[]{"user"});
+        user.setDataConstraint(Constraint.DC_CONFIDENTIAL);
+
+        ConstraintTable table=new ConstraintTable(new ConstraintMapping[]
+        {
+            newMapping("/a/*",null,user),
+            newMapping("/a/*","DELETE",forbid),
+            newMapping("/a/b/*","PROPFIND",forbid)
+        });
+
+        ConstraintTable.Decision get=table.getDecision("/a/b/c","GET");
+        assertFalse(get.isForbidden());
+        assertTrue(get.isAuthMandatory());
+        assertFalse(get.isAnyRole());
+        assertEquals("user",get.getRoles()[0]);
+        assertEquals(Constraint.DC_CONFIDENTIAL,get.getDataConstraint());
+        assertTrue(table.getDecision("/a/b/c","DELETE").isForbidden());
+        assertTrue(table.getDecision("/a/b/c","delete").isForbidden());
+        assertTrue(table.getDecision("/a/b/c","PROPFIND").isForbidden());
+        assertTrue(table.getDecision("/a/b/c","propfind").isForbidden());
+        assertFalse(table.getDecision("/a/c","PROPFIND").isForbidden());
+        assertNull(table.getDecision("/b","GET"));
+    }
+
+    ConstraintMapping[] newMappings(int size)
+    {
+        ConstraintMapping[] mappings=new ConstraintMapping[size];
+        for (int i=0;i<size;i++)
+        {
+            Constraint constraint=new Constraint();
+            constraint.setAuthenticate(_random.nextInt(4)>0);
+            String[] roles=__ROLES[_random.nextInt(__ROLES.length)];
+            if (roles!=null)
+                constraint.setRoles(roles);
+            int data_constraint=_random.nextInt(4);
+            if (data_constraint<=Constraint.DC_CONFIDENTIAL)
+                constraint.setDataConstraint(data_constraint);
+            mappings[i]=newMapping(__SPECS[_random.nextInt(__SPECS.length)],__METHODS[_random.nextInt(__METHODS.length)],constraint);
+        }
+        return mappings;
+    }
+
+    ConstraintMapping newMapping(String pathSpec, String method, Constraint constraint)
+    {
+        ConstraintMapping mapping=new ConstraintMapping();
+        mapping.setPathSpec(pathSpec);
+        mapping.setMethod(method);
+        mapping.setConstraint(constraint);
+        return mapping;
+    }
+
+    /* The mappings by path spec, as the SecurityHandler mapped them */
+    PathMap newMap(ConstraintMapping[] mappings)
+    {
+        PathMap map=new PathMap();
+        for (int i=0;i<mappings.length;i++)
+        {
+            Object list=map.get(mappings[i].getPathSpec());
+            map.put(mappings[i].getPathSpec(),LazyList.add(list,mappings[i]));
+        }
+        return map;
+    }
+
+    /* The constraints for a request, as the SecurityHandler found them */
+    Object combined(PathMap map, String pathInContext, String method)
+    {
+        Object mapping_entries= map.getLazyMatches(pathInContext);
+        String pattern=null;
+        Object constraints= null;
+
+        loop: for (int m=0;m<LazyList.size(mapping_entries); m++)
+        {
+            Map.Entry entry= (Map.Entry)LazyList.get(mapping_entries,m);
+            Object mappings= entry.getValue();
+            String path_spec=(String)entry.getKey();
+
+            for (int c=0;c<LazyList.size(mappings);c++)
+            {
+                ConstraintMapping mapping=(ConstraintMapping)LazyList.get(mappings,c);
+                if (mapping.getMethod()!=null && !mapping.getMethod().equalsIgnoreCase(method))
+                    continue;
+
+                if (pattern!=null && !pattern.equals(path_spec))
+                    break loop;
+
+                pattern=path_spec;
+                constraints= LazyList.add(constraints, mapping.getConstraint());
+            }
+        }
+        return constraints;
+    }
+
+    /* The combined constraints for a request, as the SecurityHandler combined them */
+    String combine(PathMap map, String pathInContext, String method)
+    {
+        Object constraints=combined(map,pathInContext,method);
+        if (constraints==null)
+            return "null";
+
+        int dataConstraint= Constraint.DC_NONE;
+        Object roles= null;
+        boolean unauthenticated= false;
+        boolean forbidden= false;
+
+        for (int c= 0; c < LazyList.size(constraints); c++)
+        {
+            Constraint sc= (Constraint)LazyList.get(constraints,c);
+
+            if (dataConstraint > Constraint.DC_UNSET && sc.hasDataConstraint())
+            {
+                if (sc.getDataConstraint() > dataConstraint)
+                    dataConstraint= sc.getDataConstraint();
+            }
+            else
+                dataConstraint= Constraint.DC_UNSET;
+
+            if (!unauthenticated && !forbidden)
+            {
+                if (sc.getAuthenticate())
+                {
+                    if (sc.isAnyRole())
+                    {
+                        roles= Constraint.ANY_ROLE;
+                    }
+                    else
+                    {
+                        String[] scr= sc.getRoles();
+                        if (scr == null || scr.length == 0)
+                        {
+                            forbidden= true;
+                            break;
+                        }
+                        else
+                        {
+                            if (roles != Constraint.ANY_ROLE)
+                            {
+                                for (int r=scr.length;r-->0;)
+                                    roles= LazyList.add(roles, scr[r]);
+                            }
+                        }
+                    }
+                }
+                else
+                    unauthenticated= true;
+            }
+        }
+
+        boolean mandatory=!unauthenticated && roles!=null;
+        return forbidden+" "+dataConstraint+" "+mandatory+" "+(roles==Constraint.ANY_ROLE?"*":LazyList.getList(roles).toString());
+    }
+
+    String toString(ConstraintTable.Decision decision)
+    {
+        if (decision==null)
+            return "null";
+        return decision.isForbidden()+" "+decision.getDataConstraint()+" "+decision.isAuthMandatory()+" "+
+            (decision.isAnyRole()?"*":LazyList.array2List(decision.getRoles()).toString());
+    }
+}
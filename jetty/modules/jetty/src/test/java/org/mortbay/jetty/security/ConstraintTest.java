@@ -16,6 +16,8 @@
 package org.mortbay.jetty.security;
 
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.Principal;
 
@@ -250,6 +252,116 @@ public class ConstraintTest extends TestCase
         
     }
     
+    public void testBasicCache()
+        throws Exception
+    {
+        final int[] checks=new int[2];
+        File config=File.createTempFile("realm",".properties");
+        FileOutputStream out=new FileOutputStream(config);
+        out.write("user: pass,user\r\nadmin: secret,user,admin\r\n".getBytes());
+        out.close();
+        HashUserRealm realm = new HashUserRealm("TestRealm",config.getCanonicalPath())
+        {
+            public Principal authenticate(String username, Object credentials, Request request)
+            {
+                checks[0]++;
+                return super.authenticate(username,credentials,request);
+            }
+            
+            public synchronized boolean isUserInRole(Principal user, String roleName)
+            {
+                checks[1]++;
+                return super.isUserInRole(user,roleName);
+            }
+        };
+        
+        Constraint constraint = new Constraint();
+        constraint.setAuthenticate(true);
+        constraint.setName("admin");
+        constraint.setRoles(new String[]{"admin"});
+        ConstraintMapping mapping = new ConstraintMapping();
+        mapping.setPathSpec("/admin/*");
+        mapping.setConstraint(constraint);
+        ConstraintMapping[] mappings = _security.getConstraintMappings();
+        _security.setConstraintMappings(new ConstraintMapping[]{mappings[0],mappings[1],mapping});
+        _security.setUserRealm(realm);
+        _security.setAuthenticator(new BasicAuthenticator());
+        String response;
+        
+        try
+        {
+            for (int i=0;i<3;i++)
+            {
+                _connector.reopen();
+                response=_connector.getResponses("GET /ctx/admin/info HTTP/1.0\r\n"+
+                    "Authorization: "+B64Code.encode("admin:secret")+"\r\n"+
+                    "\r\n");
+                assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+                
+                _connector.reopen();
+                response=_connector.getResponses("GET /ctx/admin/info HTTP/1.0\r\n"+
+                    "Authorization: "+B64Code.encode("user:pass")+"\r\n"+
+                    "\r\n");
+                assertTrue(response.startsWith("HTTP/1.1 403 "));
+                
+                _connector.reopen();
+                response=_connector.getResponses("GET /ctx/admin/info HTTP/1.0\r\n"+
+                    "Authorization: "+B64Code.encode("user:wrong")+"\r\n"+
+                    "\r\n");
+                assertTrue(response.startsWith("HTTP/1.1 401 Unauthorized"));
+            }
+            
+            // failed authentications are not cached
+            assertEquals(2+3,checks[0]);
+            assertEquals(2,checks[1]);
+            assertEquals(4,_security.getAuthCacheHits());
+            
+            // reloading the config discards the cache
+            out=new FileOutputStream(config);
+            out.write("user: pass,user\r\nadmin: changed,user,admin\r\n".getBytes());
+            out.close();
+            realm.setConfig(config.getCanonicalPath());
+            
+            _connector.reopen();
+            response=_connector.getResponses("GET /ctx/admin/info HTTP/1.0\r\n"+
+                "Authorization: "+B64Code.encode("admin:secret")+"\r\n"+
+                "\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 401 Unauthorized"));
+            
+            _connector.reopen();
+            response=_connector.getResponses("GET /ctx/admin/info HTTP/1.0\r\n"+
+                "Authorization: "+B64Code.encode("admin:changed")+"\r\n"+
+                "\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+
+            // changing a user in code discards the cache
+            realm.put("admin","again");
+            _connector.reopen();
+            response=_connector.getResponses("GET /ctx/admin/info HTTP/1.0\r\n"+
+                "Authorization: "+B64Code.encode("admin:changed")+"\r\n"+
+                "\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 401 Unauthorized"));
+            realm.put("admin","changed");
+
+            // disabled cache
+            _security.setAuthCacheTime(0);
+            checks[0]=0;
+            for (int i=0;i<2;i++)
+            {
+                _connector.reopen();
+                response=_connector.getResponses("GET /ctx/admin/info HTTP/1.0\r\n"+
+                    "Authorization: "+B64Code.encode("admin:changed")+"\r\n"+
+                    "\r\n");
+                assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            }
+            assertEquals(2,checks[0]);
+        }
+        finally
+        {
+            config.delete();
+        }
+    }
+    
     
     class RequestHandler extends AbstractHandler
     {
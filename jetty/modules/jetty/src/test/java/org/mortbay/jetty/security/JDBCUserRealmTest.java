@@ -0,0 +1,223 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.security;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.Principal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.mortbay.util.IO;
+
+/**
+ * Test the JDBCUserRealm against an embedded derby database.
+ */
+public class JDBCUserRealmTest extends TestCase
+{
+    static final String DRIVER="org.apache.derby.jdbc.EmbeddedDriver";
+
+    File _database;
+    String _url;
+    File _config;
+    JDBCUserRealm _realm;
+
+    protected void setUp() throws Exception
+    {
+        _database=File.createTempFile("jdbcRealm","");
+        _database.delete();
+        _url="jdbc:derby:"+_database.getCanonicalPath();
+
+        Class.forName(DRIVER);
+        Connection connection=DriverManager.getConnection(_url+";create=true");
+        try
+        {
+            update(connection,"create table users (id integer primary key, username varchar(32), pwd varchar(32))",null);
+            update(connection,"create table roles (id integer primary key, role varchar(32))",null);
+            update(connection,"create table user_roles (user_id integer, role_id integer)",null);
+            update(connection,"insert into roles (id, role) values (?, ?)",new Object[]{new Integer(1),"user"});
+            update(connection,"insert into roles (id, role) values (?, ?)",new Object[]{new Integer(2),"admin"});
+            addUser(connection,1,"fred","secret",new int[]{1,2});
+            addUser(connection,2,"jane","password",new int[]{1});
+        }
+        finally
+        {
+            connection.close();
+        }
+        
+        Properties properties=new Properties();
+        properties.setProperty("jdbcdriver",DRIVER);
+        properties.setProperty("url",_url);
+        properties.setProperty("username","jetty");
+        properties.setProperty("password","jetty");
+        properties.setProperty("usertable","users");
+        properties.setProperty("usertablekey","id");
+        properties.setProperty("usertableuserfield","username");
+        properties.setProperty("usertablepasswordfield","pwd");
+        properties.setProperty("roletable","roles");
+        properties.setProperty("roletablekey","id");
+        properties.setProperty("roletablerolefield","role");
+        properties.setProperty("userroletable","user_roles");
+        properties.setProperty("userroletableuserkey","user_id");
+        properties.setProperty("userroletablerolekey","role_id");
+        properties.setProperty("cachetime","1");
+        properties.setProperty("maxconnections","2");
+        _config=File.createTempFile("jdbcRealm",".properties");
+        FileOutputStream out=new FileOutputStream(_config);
+        properties.store(out,null);
+        out.close();
+
+        _realm=new JDBCUserRealm("test",_config.getCanonicalPath());
+        _realm.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _realm.stop();
+        _config.delete();
+        try
+        {
+            DriverManager.getConnection(_url+";shutdown=true");
+        }
+        catch(SQLException e)
+        {
+            // derby always reports a shutdown as an exception
+        }
+        IO.delete(_database);
+    }
+
+    void update(String sql, Object[] args) throws SQLException
+    {
+        Connection connection=DriverManager.getConnection(_url);
+        try
+        {
+            update(connection,sql,args);
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    void update(Connection connection, String sql, Object[] args) throws SQLException
+    {
+        PreparedStatement statement=connection.prepareStatement(sql);
+        try
+        {
+            for (int i=0;args!=null && i<args.length;i++)
+                statement.setObject(i+1,args[i]);
+            statement.executeUpdate();
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    void addUser(Connection connection, int id, String name, String password, int[] roles) throws SQLException
+    {
+        update(connection,"insert into users (id, username, pwd) values (?, ?, ?)",new Object[]{new Integer(id),name,password});
+        for (int i=0;i<roles.length;i++)
+            update(connection,"insert into user_roles (user_id, role_id) values (?, ?)",new Object[]{new Integer(id),new Integer(roles[i])});
+    }
+
+    public void testAuthenticate() throws Exception
+    {
+        Principal fred=_realm.authenticate("fred","secret",null);
+        assertNotNull(fred);
+        assertEquals("fred",fred.getName());
+        assertNull(_realm.authenticate("fred","wrong",null));
+        assertTrue(_realm.isUserInRole(fred,"admin"));
+        assertTrue(_realm.isUserInRole(fred,"user"));
+        assertFalse(_realm.isUserInRole(fred,"other"));
+
+        Principal jane=_realm.authenticate("jane","password",null);
+        assertNotNull(jane);
+        assertTrue(_realm.isUserInRole(jane,"user"));
+        assertFalse(_realm.isUserInRole(jane,"admin"));
+
+        // the cached user is used until it is due to expire
+        update("update users set pwd='changed' where username='fred'",null);
+        assertSame(fred,_realm.authenticate("fred","secret",null));
+        assertNull(_realm.authenticate("fred","changed",null));
+    }
+
+    public void testNegativeCache() throws Exception
+    {
+        assertNull(_realm.authenticate("unknown","secret",null));
+
+        // the unknown user is looked up again only after it expires
+        update("insert into users (id, username, pwd) values (3, 'unknown', 'secret')",null);
+        assertNull(_realm.authenticate("unknown","secret",null));
+        Thread.sleep(1100);
+        assertNotNull(_realm.authenticate("unknown","secret",null));
+    }
+
+    public void testExpiry() throws Exception
+    {
+        assertNotNull(_realm.authenticate("fred","secret",null));
+        update("update users set pwd='changed' where username='fred'",null);
+        update("delete from user_roles where user_id=1 and role_id=2",null);
+
+        // refreshed in the background when due to expire
+        Thread.sleep(800);
+        assertNotNull(_realm.authenticate("fred","secret",null));
+        Thread.sleep(200);
+        assertNull(_realm.authenticate("fred","secret",null));
+        Principal fred=_realm.authenticate("fred","changed",null);
+        assertNotNull(fred);
+        assertTrue(_realm.isUserInRole(fred,"user"));
+        assertFalse(_realm.isUserInRole(fred,"admin"));
+
+        // reloaded when expired
+        update("update users set pwd='again' where username='fred'",null);
+        Thread.sleep(1100);
+        assertNotNull(_realm.authenticate("fred","again",null));
+    }
+
+    public void testConcurrentLoad() throws Exception
+    {
+        final Principal[] users=new Principal[6];
+        Thread[] threads=new Thread[users.length];
+        for (int i=0;i<threads.length;i++)
+        {
+            final int t=i;
+            threads[i]=new Thread()
+            {
+                public void run()
+                {
+                    String name=(t%2==0)?"fred":"jane";
+                    users[t]=_realm.authenticate(name,(t%2==0)?"secret":"password",null);
+                }
+            };
+            threads[i].start();
+        }
+        for (int i=0;i<threads.length;i++)
+            threads[i].join();
+
+        // each user is loaded once and shared by all the threads
+        for (int i=0;i<users.length;i++)
+        {
+            assertNotNull(users[i]);
+            assertSame(users[i%2],users[i]);
+        }
+        assertNotSame(users[0],users[1]);
+    }
+}
@@ -4,12 +4,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
 
 import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 
 import org.mortbay.jetty.LocalConnector;
 import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.servlet.NoJspServlet;
 import org.mortbay.util.IO;
 import org.mortbay.util.StringUtil;
@@ -495,6 +499,144 @@ public class DefaultServletTest extends TestCase
         assertTrue(body.endsWith(boundary+"--\r\n"));
     }
 
+    public void testGzipCache() throws Exception
+    {
+        File testDir = new File("target/tests/" + getName());
+        prepareEmptyTestDir(testDir);
+        File resBase = new File(testDir, "docroot");
+        resBase.mkdirs();
+        File data = new File(resBase, "data.txt");
+        StringBuffer text = new StringBuffer();
+        for (int i=0;i<100;i++)
+            text.append("0123456789012345678901234567890123456789\n");
+        createFile(data,text.toString());
+
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("resourceBase",resBase.getAbsolutePath());
+        defholder.setInitParameter("gzip","true");
+        defholder.setInitParameter("gzipCacheSize","65536");
+
+        String request = 
+            "GET /context/data.txt HTTP/1.1\r\n"+
+            "Host: localhost\r\n"+
+            "Accept-Encoding: gzip\r\n"+
+            "\r\n";
+
+        String response = connector.getResponses(request);
+        assertResponseContains("200 OK",response);
+        assertResponseContains("Content-Encoding: gzip",response);
+        assertResponseContains("Vary: Accept-Encoding",response);
+        assertResponseNotContains("Content-Length: 4100",response);
+        String length = response.substring(response.indexOf("Content-Length: "));
+        length = length.substring(0,length.indexOf("\r\n"));
+
+        // served from the cache
+        connector.reopen();
+        response = connector.getResponses(request);
+        assertResponseContains("Content-Encoding: gzip",response);
+        assertResponseContains(length,response);
+
+        // not compressed if not accepted
+        connector.reopen();
+        response = connector.getResponses(
+            "GET /context/data.txt HTTP/1.1\r\n"+
+            "Host: localhost\r\n"+
+            "\r\n");
+        assertResponseNotContains("Content-Encoding",response);
+        assertResponseContains("Vary: Accept-Encoding",response);
+        assertResponseContains("Content-Length: 4100",response);
+
+        // invalidated when the resource changes
+        createFile(data,"changed "+text.toString()+text.toString());
+        data.setLastModified(data.lastModified()+2000);
+        connector.reopen();
+        response = connector.getResponses(request);
+        assertResponseContains("Content-Encoding: gzip",response);
+        assertResponseNotContains(length,response);
+    }
+
+    public void testFileTransfer() throws Exception
+    {
+        File testDir = new File("target/tests/" + getName());
+        prepareEmptyTestDir(testDir);
+        File resBase = new File(testDir, "docroot");
+        resBase.mkdirs();
+        File data = new File(resBase, "data.bin");
+        byte[] content = new byte[200*1024];
+        for (int i=0;i<content.length;i++)
+            content[i]=(byte)('0'+(i%10));
+        FileOutputStream fout = new FileOutputStream(data);
+        fout.write(content);
+        fout.close();
+
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("resourceBase",resBase.getAbsolutePath());
+        defholder.setInitParameter("maxCacheSize","0");
+        defholder.setInitParameter("useFileTransfer","true");
+
+        SelectChannelConnector nio = new SelectChannelConnector();
+        nio.setPort(0);
+        server.addConnector(nio);
+        nio.start();
+        try
+        {
+            Socket socket = new Socket("localhost",nio.getLocalPort());
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write((
+                "GET /context/data.bin HTTP/1.1\r\n"+
+                "Host: localhost\r\n"+
+                "\r\n"+
+                "GET /context/data.bin HTTP/1.1\r\n"+
+                "Host: localhost\r\n"+
+                "Range: bytes=1000-150999\r\n"+
+                "Connection: close\r\n"+
+                "\r\n").getBytes(StringUtil.__ISO_8859_1));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            
+            // both responses must be sent on the persistent connection
+            String response = readHeader(in);
+            assertResponseContains("200 OK",response);
+            assertResponseContains("Content-Length: "+content.length,response);
+            assertContent(content,0,content.length,in);
+
+            response = readHeader(in);
+            assertResponseContains("206 Partial",response);
+            assertResponseContains("Content-Length: 150000",response);
+            assertResponseContains("Content-Range: bytes 1000-150999/"+content.length,response);
+            assertContent(content,1000,150000,in);
+            assertEquals(-1,in.read());
+            socket.close();
+        }
+        finally
+        {
+            nio.stop();
+        }
+    }
+
+    private String readHeader(InputStream in) throws IOException
+    {
+        StringBuffer header = new StringBuffer();
+        while (!header.toString().endsWith("\r\n\r\n"))
+        {
+            int b=in.read();
+            if (b<0)
+                throw new AssertionFailedError("EOF in header: "+header);
+            header.append((char)b);
+        }
+        return header.toString();
+    }
+
+    private void assertContent(byte[] expected, int offset, int length, InputStream in) throws IOException
+    {
+        for (int i=0;i<length;i++)
+        {
+            int b=in.read();
+            if (b!=expected[offset+i])
+                throw new AssertionFailedError("byte "+i+" expected "+expected[offset+i]+" was "+b);
+        }
+    }
 
     private void createFile(File file, String str) throws IOException
     {
@@ -0,0 +1,115 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.ContextHandler;
+
+public class OffHeapSessionManagerTest extends TestCase
+{
+    OffHeapSessionManager sessionManager = new OffHeapSessionManager();
+    SessionHandler handler = new SessionHandler(sessionManager);
+    Server server = new Server();
+
+    protected void setUp() throws Exception
+    {
+        ContextHandler context=new ContextHandler();
+        sessionManager.setIdManager(new HashSessionIdManager()
+        {
+            int _id;
+            public String newSessionId(HttpServletRequest request, long created)
+            {
+                return "id"+(_id++);
+            }
+        });
+        sessionManager.setSessionHandler(handler);
+        sessionManager.setSlabSize(4096);
+        server.setHandler(context);
+        context.setHandler(handler);
+        server.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        server.stop();
+    }
+
+    public void testWriteBack() throws Exception
+    {
+        HttpSession session = sessionManager.newHttpSession(null);
+        List list = new ArrayList();
+        list.add("one");
+        session.setAttribute("list", list);
+        session.setAttribute("string", "value");
+        assertEquals(0,sessionManager.getOffHeapValues());
+
+        // values move off heap when the request completes
+        sessionManager.complete(session);
+        assertEquals(2,sessionManager.getOffHeapValues());
+        assertEquals(4096,sessionManager.getMemory());
+        assertTrue(sessionManager.getMemoryUsed()>0);
+
+        // values are deserialized once per request
+        sessionManager.access(session,false);
+        List got = (List)session.getAttribute("list");
+        assertNotSame(list,got);
+        assertEquals(list,got);
+        assertSame(got,session.getAttribute("list"));
+        assertEquals("value",session.getAttribute("string"));
+
+        // changes to got values are written back
+        got.add("two");
+        sessionManager.complete(session);
+        sessionManager.access(session,false);
+        assertEquals(2,((List)session.getAttribute("list")).size());
+        sessionManager.complete(session);
+        assertEquals(2,sessionManager.getOffHeapValues());
+
+        // values are freed when removed and when the session is invalidated
+        session.removeAttribute("string");
+        assertEquals(1,sessionManager.getOffHeapValues());
+        session.invalidate();
+        assertEquals(0,sessionManager.getOffHeapValues());
+        assertEquals(0,sessionManager.getMemoryUsed());
+    }
+
+    public void testOnHeapValues() throws Exception
+    {
+        HttpSession session = sessionManager.newHttpSession(null);
+        Object unserializable = new Object();
+        session.setAttribute("object", unserializable);
+        char[] big = new char[8192];
+        session.setAttribute("big", new String(big));
+        sessionManager.complete(session);
+
+        // unserializable values stay on heap, large values have their own buffer
+        assertSame(unserializable,session.getAttribute("object"));
+        assertEquals(1,sessionManager.getOffHeapValues());
+        assertTrue(sessionManager.getMemory()>8192);
+        assertEquals(8192,((String)session.getAttribute("big")).length());
+
+        session.invalidate();
+        assertEquals(0,sessionManager.getOffHeapValues());
+        assertEquals(0,sessionManager.getMemory());
+    }
+}
@@ -0,0 +1,106 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.LocalConnector;
+import org.mortbay.jetty.Server;
+
+public class ServletHandlerTest extends TestCase
+{
+    private Server _server;
+    private LocalConnector _connector;
+    private Context _context;
+
+    protected void setUp() throws Exception
+    {
+        _server = new Server();
+        _connector = new LocalConnector();
+        _context = new Context();
+        _context.setContextPath("/context");
+        _context.addServlet(HelloServlet.class, "/*");
+        _context.addFilter(CountFilter.class, "/*", Handler.REQUEST);
+        _server.addHandler(_context);
+        _server.addConnector(_connector);
+        _server.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _server.stop();
+    }
+
+    public void testFilterChainCache() throws Exception
+    {
+        ServletHandler handler=_context.getServletHandler();
+        handler.setMaxFilterChainsCacheSize(2);
+        CountFilter.__count=0;
+
+        String[] paths={"/a","/b","/a","/b","/c","/a"};
+        for (int i=0;i<paths.length;i++)
+        {
+            String response=_connector.getResponses("GET /context"+paths[i]+" HTTP/1.0\r\n\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            assertTrue(response.endsWith("Hello"));
+        }
+
+        assertEquals(paths.length,CountFilter.__count);
+        // /a and /b are cached, /c evicts /a, so /a misses again and evicts /b
+        assertEquals(2,handler.getFilterChainsCacheHits());
+        assertEquals(4,handler.getFilterChainsCacheMisses());
+        assertEquals(2,handler.getFilterChainsCacheEvictions());
+    }
+
+    public static class CountFilter implements Filter
+    {
+        static volatile int __count;
+
+        public void init(FilterConfig config)
+        {
+        }
+
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+        {
+            __count++;
+            chain.doFilter(request,response);
+        }
+
+        public void destroy()
+        {
+        }
+    }
+
+    public static class HelloServlet extends HttpServlet
+    {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            response.getWriter().print("Hello");
+        }
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.mortbay.jetty.servlet;
 
+import java.io.File;
+
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
@@ -136,6 +138,119 @@ public class SessionManagerTest extends TestCase
         }
     }
     
+    public void testScavengeExpiryIndex() throws Exception
+    {
+        HttpSession session = sessionManager.newHttpSession(null);
+        assertEquals(0,sessionManager.getExpiryBuckets());
+
+        // an accessed session is moved to its new bucket, so is not due
+        session.setMaxInactiveInterval(10);
+        assertEquals(1,sessionManager.getExpiryBuckets());
+        ((Session)session).access(System.currentTimeMillis());
+        sessionManager.scavenge();
+        assertEquals(0,sessionManager.getScavengeExpired());
+        assertEquals(1,sessionManager.getSessions());
+        assertEquals(1,sessionManager.getExpiryBuckets());
+
+        // a session last accessed long ago is due
+        // complete the requests so that timeout invalidates immediately
+        ((Session)session).access(System.currentTimeMillis()-20000);
+        ((Session)session).complete();
+        ((Session)session).complete();
+        sessionManager.scavenge();
+        assertEquals(1,sessionManager.getScavengeExpired());
+        assertEquals(1,sessionManager.getSessionsExpired());
+        assertEquals(0,sessionManager.getSessions());
+        assertEquals(0,sessionManager.getExpiryBuckets());
+        assertNull(sessionManager.getHttpSession(session.getId()));
+
+        // a session that never expires is not indexed
+        session = sessionManager.newHttpSession(null);
+        session.setMaxInactiveInterval(-1);
+        assertEquals(0,sessionManager.getExpiryBuckets());
+        ((Session)session).access(System.currentTimeMillis()-20000);
+        sessionManager.scavenge();
+        assertEquals(0,sessionManager.getScavengeExpired());
+        assertEquals(1,sessionManager.getSessions());
+
+        // invalidated sessions are removed from the index
+        session.setMaxInactiveInterval(10);
+        assertEquals(1,sessionManager.getExpiryBuckets());
+        session.invalidate();
+        assertEquals(0,sessionManager.getExpiryBuckets());
+    }
+    
+    public void testIncrementalSave() throws Exception
+    {
+        File dir = File.createTempFile("sessions",null);
+        dir.delete();
+        dir.mkdir();
+        try
+        {
+            server.stop();
+            sessionManager.setStoreDirectory(dir);
+            sessionManager.setIncrementalSave(true);
+            sessionManager.setLogSegmentSize(4096);
+            server.start();
+            
+            HttpSession session = sessionManager.newHttpSession(null);
+            session.setAttribute("a", "value a");
+            session.setAttribute("b", new Integer(42));
+            session.setMaxInactiveInterval(1000);
+            sessionManager.saveSessions();
+            assertEquals(1,sessionManager.getLoggedSessions());
+            
+            // only the changed attribute is appended
+            File[] files = dir.listFiles();
+            assertEquals(1,files.length);
+            long size = files[0].length();
+            session.setAttribute("a", "value A");
+            session.removeAttribute("b");
+            sessionManager.saveSessions();
+            long delta = files[0].length()-size;
+            assertTrue(delta>0);
+            assertTrue(delta<size);
+            
+            // sessions are restored from the log when first requested
+            server.stop();
+            server.start();
+            assertEquals(1,sessionManager.getLoggedSessions());
+            assertEquals(0,sessionManager.getSessions());
+            session = sessionManager.getHttpSession("xyzzy");
+            assertNotNull(session);
+            assertEquals(1,sessionManager.getSessions());
+            assertEquals("value A",session.getAttribute("a"));
+            assertNull(session.getAttribute("b"));
+            assertEquals(1000,session.getMaxInactiveInterval());
+            
+            // the log is compacted as it grows
+            for (int i=0;i<1000;i++)
+            {
+                session.setAttribute("a", "value "+i);
+                sessionManager.saveSessions();
+            }
+            long total=0;
+            files = dir.listFiles();
+            for (int i=0;i<files.length;i++)
+                total+=files[i].length();
+            assertTrue(total<3*4096);
+            
+            // invalidated sessions are deleted from the log
+            session.invalidate();
+            assertEquals(0,sessionManager.getLoggedSessions());
+            server.stop();
+            server.start();
+            assertNull(sessionManager.getHttpSession("xyzzy"));
+        }
+        finally
+        {
+            server.stop();
+            File[] files = dir.listFiles();
+            for (int i=0;files!=null && i<files.length;i++)
+                files[i].delete();
+            dir.delete();
+        }
+    }
     
     class TestSessionIdManager extends HashSessionIdManager
     {
@@ -0,0 +1,158 @@
+// ========================================================================
+// Copyright 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.webapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.mortbay.util.IO;
+
+public class WebAppClassLoaderTest extends TestCase
+{
+    public void testSystemAndServerPaths() throws Exception
+    {
+        WebAppContext context = new WebAppContext();
+        WebAppClassLoader loader = new WebAppClassLoader(context);
+
+        assertTrue(loader.isSystemPath("java.lang.String"));
+        assertTrue(loader.isSystemPath("/javax/servlet/Servlet.class"));
+        assertTrue(loader.isSystemPath("org.mortbay.jetty.Server"));
+        assertFalse(loader.isSystemPath("org.mortbayx.Foo"));
+        assertFalse(loader.isSystemPath("com.acme.Foo"));
+
+        assertTrue(loader.isServerPath("org.mortbay.jetty.Server"));
+        assertTrue(loader.isServerPath("org/mortbay/jetty/Server.class"));
+        assertTrue(loader.isServerPath("org.slf4j.Logger"));
+        assertFalse(loader.isServerPath("org.mortbay.jetty.servlet.DefaultServlet"));
+        assertTrue(loader.isServerPath("org.mortbay.jetty.servlet.DefaultServletX"));
+        assertFalse(loader.isServerPath("org.mortbay.jetty.plus.naming.NamingEntry"));
+        assertFalse(loader.isServerPath("org.mortbay.util.IO"));
+
+        // the first matching entry wins and changes are seen
+        context.setServerClasses(new String[]{"-com.acme.Public","com.acme.","com.acme.Public","org.foo.Bar"});
+        assertFalse(loader.isServerPath("com.acme.Public"));
+        assertTrue(loader.isServerPath("com.acme.Private"));
+        assertTrue(loader.isServerPath("com.acme.sub.Private"));
+        assertTrue(loader.isServerPath("org.foo.Bar"));
+        assertFalse(loader.isServerPath("org.foo.BarX"));
+        assertFalse(loader.isServerPath("org.foo.Ba"));
+        assertFalse(loader.isServerPath("org.mortbay.jetty.Server"));
+    }
+
+    public void testNegativeCache() throws Exception
+    {
+        WebAppContext context = new WebAppContext();
+        CountingLoader parent = new CountingLoader();
+        WebAppClassLoader loader = new WebAppClassLoader(parent,context);
+
+        File dir = new File("target/tests/"+getName());
+        IO.delete(dir);
+        dir.mkdirs();
+        loader.addClassPath(dir.getAbsolutePath()+"/");
+
+        // a class that is not found is only looked for once
+        for (int i=0;i<2;i++)
+            assertNotFound(loader,"com.acme.NotFound");
+        assertEquals(1,parent._loads);
+
+        // the cache is cleared when the classpath changes
+        loader.addClassPath(dir.getAbsolutePath()+"/lib/");
+        assertNotFound(loader,"com.acme.NotFound");
+        assertEquals(2,parent._loads);
+
+        loader.setNegativeCacheSize(0);
+        assertEquals(0,loader.getNegativeCacheSize());
+        assertNotFound(loader,"com.acme.NotFound");
+        assertNotFound(loader,"com.acme.NotFound");
+        assertEquals(4,parent._loads);
+
+        // resources are not cached, so are found once they are created
+        assertNull(loader.getResource("acme.txt"));
+        FileOutputStream out = new FileOutputStream(new File(dir,"acme.txt"));
+        out.write("acme".getBytes());
+        out.close();
+        assertNotNull(loader.getResource("acme.txt"));
+    }
+
+    public void testDefinedAfterMiss() throws Exception
+    {
+        WebAppContext context = new WebAppContext();
+        DefiningLoader loader = new DefiningLoader(new CountingLoader(),context);
+        String name = Later.class.getName();
+        assertNotFound(loader,name);
+
+        // a class defined after a miss is not hidden by the negative cache
+        byte[] bytes = IO.readBytes(getClass().getResourceAsStream("WebAppClassLoaderTest$Later.class"));
+        Class later = loader.define(name,bytes);
+        assertSame(later,loader.loadClass(name));
+        assertSame(loader,later.getClassLoader());
+    }
+
+    private void assertNotFound(ClassLoader loader, String name)
+    {
+        try
+        {
+            loader.loadClass(name);
+            fail();
+        }
+        catch(ClassNotFoundException e)
+        {
+            assertEquals(name,e.getMessage());
+        }
+    }
+
+    /* Defined by the test, as a bytecode generator would */
+    private static class Later
+    {
+    }
+
+    /* Loader that classes can be defined into */
+    private static class DefiningLoader extends WebAppClassLoader
+    {
+        DefiningLoader(ClassLoader parent, WebAppContext context) throws IOException
+        {
+            super(parent,context);
+        }
+
+        Class define(String name, byte[] bytes)
+        {
+            return defineClass(name,bytes,0,bytes.length);
+        }
+    }
+
+    /* Parent loader that counts the lookups of com.acme classes
+     * and does not find the Later class */
+    private static class CountingLoader extends ClassLoader
+    {
+        int _loads;
+
+        CountingLoader()
+        {
+            super(WebAppClassLoaderTest.class.getClassLoader());
+        }
+
+        protected synchronized Class loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            if (name.startsWith("com.acme."))
+                _loads++;
+            if (name.equals(Later.class.getName()))
+                throw new ClassNotFoundException(name);
+            return super.loadClass(name,resolve);
+        }
+    }
+}
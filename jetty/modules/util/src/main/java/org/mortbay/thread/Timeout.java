@@ -32,9 +32,9 @@ import org.mortbay.log.Log;
  */
 public class Timeout
 {
-    private Object _lock;
-    private long _duration;
-    private volatile long _now=System.currentTimeMillis();
+    Object _lock;
+    long _duration;
+    volatile long _now=System.currentTimeMillis();
     private Task _head=new Task();
 
     /* ------------------------------------------------------------ */
@@ -190,6 +190,16 @@ public class Timeout
     }
 
 
+    /* ------------------------------------------------------------ */
+    void cancel(Task task)
+    {
+        synchronized (_lock)
+        {
+            task.unlink();
+            task._timestamp=0;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public void cancelAll()
     {
@@ -284,7 +294,7 @@ public class Timeout
         }
 
         /* ------------------------------------------------------------ */
-        private void unlink()
+        void unlink()
         {
             _next._prev=_prev;
             _prev._next=_next;
@@ -293,7 +303,7 @@ public class Timeout
         }
 
         /* ------------------------------------------------------------ */
-        private void link(Task task)
+        void link(Task task)
         {
             Task next_next = _next;
             _next._prev=task;
@@ -342,13 +352,7 @@ public class Timeout
         {
             Timeout timeout = _timeout;
             if (timeout!=null)
-            {
-                synchronized (timeout._lock)
-                {
-                    unlink();
-                    _timestamp=0;
-                }
-            }
+                timeout.cancel(this);
         }
         
         /* ------------------------------------------------------------ */
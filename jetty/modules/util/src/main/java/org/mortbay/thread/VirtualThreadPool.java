@@ -0,0 +1,414 @@
+// ========================================================================
+// Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.thread;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.component.LifeCycle;
+import org.mortbay.log.Log;
+
+/* ------------------------------------------------------------ */
+/** A thread per job pool of virtual threads.
+ * <p>
+ * On a runtime that supports virtual threads, each dispatched job is
+ * run on a new virtual thread, so that blocking connectors such as the
+ * SocketConnector can handle very many concurrent connections without
+ * tying up a platform thread for each.
+ * Virtual threads are detected by reflection, so this class may be used
+ * on any JVM.  If they are not available, jobs are dispatched to a
+ * fallback {@link ThreadPool}, by default a {@link QueuedThreadPool}.
+ * <p>
+ * The maxThreads limits the number of concurrent jobs, and the pool is
+ * low on threads when fewer than lowThreads more jobs may be dispatched.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool
+{
+    private final static Object __factory;
+    private final static Method __newThread;
+    static
+    {
+        Object factory=null;
+        Method newThread=null;
+        try
+        {
+            // Thread.ofVirtual().factory()
+            Object builder=Thread.class.getMethod("ofVirtual",new Class[0]).invoke(null,new Object[0]);
+            Class builderClass=Class.forName("java.lang.Thread$Builder");
+            factory=builderClass.getMethod("factory",new Class[0]).invoke(builder,new Object[0]);
+            newThread=Class.forName("java.util.concurrent.ThreadFactory").getMethod("newThread",new Class[]{Runnable.class});
+        }
+        catch(Throwable e)
+        {
+            Log.ignore(e);
+            factory=null;
+            newThread=null;
+        }
+        __factory=factory;
+        __newThread=newThread;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the runtime supports virtual threads.
+     */
+    public static boolean isSupported()
+    {
+        return __factory!=null;
+    }
+
+    private String _name;
+    private final Set _threads=new HashSet();
+    private int _maxThreads=Integer.MAX_VALUE;
+    private int _lowThreads=0;
+    private int _maxStopTimeMs;
+    private int _id;
+    private boolean _useVirtualThreads=true;
+    private ThreadPool _fallback;
+    private ThreadPool _delegate;
+
+    private final Object _joinLock = new Object();
+
+    /* ------------------------------------------------------------------- */
+    public VirtualThreadPool()
+    {
+        _name="vtp-"+hashCode();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if jobs are run on virtual threads, false if they are
+     * dispatched to the fallback pool.
+     */
+    public boolean isVirtual()
+    {
+        return _useVirtualThreads && isSupported();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if virtual threads are used when supported.
+     */
+    public boolean getUseVirtualThreads()
+    {
+        return _useVirtualThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param useVirtualThreads If false, always use the fallback pool.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _useVirtualThreads=useVirtualThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The pool used if virtual threads are not supported.
+     */
+    public ThreadPool getFallback()
+    {
+        return _fallback;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param fallback The pool to use if virtual threads are not supported,
+     * or null for a {@link QueuedThreadPool}.
+     */
+    public void setFallback(ThreadPool fallback)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _fallback=fallback;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The name of the pool.
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name Name of the pool to use when naming Threads.
+     */
+    public void setName(String name)
+    {
+        _name=name;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of concurrent jobs.
+     */
+    public int getMaxThreads()
+    {
+        return _maxThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxThreads The maximum number of concurrent jobs.
+     * Defaults to unlimited for virtual threads.
+     */
+    public void setMaxThreads(int maxThreads)
+    {
+        _maxThreads=maxThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return low resource threads threshhold
+     */
+    public int getLowThreads()
+    {
+        return _lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param lowThreads low resource threads threshhold
+     */
+    public void setLowThreads(int lowThreads)
+    {
+        _lowThreads=lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return maximum total time that stop() will wait for threads to die.
+     */
+    public int getMaxStopTimeMs()
+    {
+        return _maxStopTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param stopTimeMs maximum total time that stop() will wait for threads to die.
+     */
+    public void setMaxStopTimeMs(int stopTimeMs)
+    {
+        _maxStopTimeMs=stopTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean dispatch(final Runnable job)
+    {
+        if (!isRunning() || job==null)
+            return false;
+
+        if (_delegate!=null)
+            return _delegate.dispatch(job);
+
+        Runnable runner=new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    job.run();
+                }
+                finally
+                {
+                    synchronized (_threads)
+                    {
+                        _threads.remove(Thread.currentThread());
+                    }
+                }
+            }
+        };
+
+        Thread thread;
+        synchronized (_threads)
+        {
+            if (_threads.size()>=_maxThreads)
+                return false;
+            thread=newThread(runner);
+            if (thread==null)
+                return false;
+            _threads.add(thread);
+            thread.setName(_name+"-"+_id++);
+        }
+
+        try
+        {
+            thread.start();
+        }
+        catch(Throwable th)
+        {
+            Log.warn(th);
+            synchronized (_threads)
+            {
+                _threads.remove(thread);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    private Thread newThread(Runnable runner)
+    {
+        try
+        {
+            return (Thread)__newThread.invoke(__factory,new Object[]{runner});
+        }
+        catch(Exception e)
+        {
+            Log.warn(e);
+            return null;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of running jobs.
+     */
+    public int getThreads()
+    {
+        if (_delegate!=null)
+            return _delegate.getThreads();
+        synchronized (_threads)
+        {
+            return _threads.size();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of idle threads, which is always 0 for virtual
+     * threads as they are not pooled.
+     */
+    public int getIdleThreads()
+    {
+        if (_delegate!=null)
+            return _delegate.getIdleThreads();
+        return 0;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isLowOnThreads()
+    {
+        if (_delegate!=null)
+            return _delegate.isLowOnThreads();
+        return _maxThreads-getThreads()<_lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void join() throws InterruptedException
+    {
+        synchronized (_joinLock)
+        {
+            while (isRunning())
+                _joinLock.wait();
+        }
+
+        while (isStopping())
+            Thread.sleep(100);
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void doStart() throws Exception
+    {
+        if (isVirtual())
+        {
+            Log.debug("{} using virtual threads",_name);
+            _delegate=null;
+        }
+        else
+        {
+            if (_useVirtualThreads)
+                Log.info("Virtual threads not supported, using {}",_fallback==null?"QueuedThreadPool":_fallback.toString());
+            if (_fallback==null)
+            {
+                QueuedThreadPool fallback=new QueuedThreadPool();
+                fallback.setName(_name);
+                if (_maxThreads!=Integer.MAX_VALUE)
+                    fallback.setMaxThreads(_maxThreads);
+                fallback.setLowThreads(_lowThreads);
+                fallback.setMaxStopTimeMs(_maxStopTimeMs);
+                _delegate=fallback;
+            }
+            else
+                _delegate=_fallback;
+            if (_delegate instanceof LifeCycle)
+                ((LifeCycle)_delegate).start();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Stop the pool.
+     * Running threads are interrupted and the method waits up to
+     * getMaxStopTimeMs() for them to stop.
+     */
+    protected void doStop() throws Exception
+    {
+        if (_delegate!=null)
+        {
+            if (_delegate instanceof LifeCycle)
+                ((LifeCycle)_delegate).stop();
+            _delegate=null;
+        }
+        else
+        {
+            long start=System.currentTimeMillis();
+            for (int i=0;i<100;i++)
+            {
+                synchronized (_threads)
+                {
+                    Iterator iter=_threads.iterator();
+                    while (iter.hasNext())
+                        ((Thread)iter.next()).interrupt();
+                }
+
+                Thread.yield();
+                if (getThreads()==0 || (_maxStopTimeMs>0 && _maxStopTimeMs < (System.currentTimeMillis()-start)))
+                   break;
+
+                try
+                {
+                    Thread.sleep(i*100);
+                }
+                catch(InterruptedException e){}
+            }
+
+            int threads=getThreads();
+            if (threads>0)
+                Log.warn(threads+" threads could not be stopped");
+        }
+
+        synchronized (_joinLock)
+        {
+            _joinLock.notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return _name+(isVirtual()?"{virtual}":"{fallback}");
+    }
+}
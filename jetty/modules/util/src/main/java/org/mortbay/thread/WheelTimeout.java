@@ -0,0 +1,316 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.thread;
+
+import org.mortbay.log.Log;
+
+
+/* ------------------------------------------------------------ */
+/** Hashed timing wheel Timeout queue.
+ * <p>
+ * A {@link Timeout} that hashes tasks into a ring of slots by their
+ * timestamp, rather than keeping them in a single sorted list, so that
+ * {@link #schedule(Task, long)}, {@link Task#cancel()} and
+ * {@link Task#reschedule()} are O(1) regardless of the number of
+ * scheduled tasks. This suits queues with very many tasks that are
+ * frequently rescheduled, such as connection idle timeouts.
+ * <p>
+ * As with {@link Timeout}, the duration is shared by all tasks and may be
+ * changed at any time.  A slot may hold tasks from several revolutions of
+ * the wheel, so each task is expired only once its own timestamp has passed
+ * and the tick duration only affects how tasks are grouped, not the
+ * accuracy of their expiry.
+ *
+ * @see Timeout
+ */
+public class WheelTimeout extends Timeout
+{
+    public final static long __DEFAULT_TICK=100;
+    public final static int __DEFAULT_SLOTS=2048;
+
+    private final long _tick;
+    private final Task[] _wheel;
+    private final int _mask;
+    private long _cursor;
+    private int _size;
+
+    /* ------------------------------------------------------------ */
+    public WheelTimeout()
+    {
+        this(new Object(),__DEFAULT_TICK,__DEFAULT_SLOTS);
+    }
+
+    /* ------------------------------------------------------------ */
+    public WheelTimeout(Object lock)
+    {
+        this(lock,__DEFAULT_TICK,__DEFAULT_SLOTS);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param lock The lock to synchronize on, or null for a private lock.
+     * @param tick The period in ms covered by each slot.
+     * @param slots The number of slots, rounded up to a power of 2.
+     */
+    public WheelTimeout(Object lock, long tick, int slots)
+    {
+        super(lock==null?new Object():lock);
+        if (tick<=0)
+            throw new IllegalArgumentException("tick="+tick);
+        _tick=tick;
+
+        int size=1;
+        while (size<slots)
+            size<<=1;
+        _wheel=new Task[size];
+        _mask=size-1;
+        for (int i=0;i<size;i++)
+        {
+            _wheel[i]=new Task();
+            _wheel[i]._timeout=this;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The period in ms covered by each slot.
+     */
+    public long getTick()
+    {
+        return _tick;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of slots in the wheel.
+     */
+    public int getSlots()
+    {
+        return _wheel.length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of scheduled tasks.
+     */
+    public int getSize()
+    {
+        synchronized (_lock)
+        {
+            return _size;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the next expired task.
+     * Called with the lock held. Advances the cursor past any slots
+     * that hold no tasks due before the expiry time.
+     */
+    private Task nextExpired(long expiry)
+    {
+        long expiry_tick=expiry/_tick;
+        if (_size==0)
+        {
+            _cursor=expiry_tick;
+            return null;
+        }
+
+        int scanned=0;
+        while (true)
+        {
+            Task head=_wheel[(int)(_cursor&_mask)];
+            for (Task task=head._next;task!=head;task=task._next)
+            {
+                if (task._timestamp<=expiry)
+                {
+                    task.unlink();
+                    _size--;
+                    task._expired=true;
+                    return task;
+                }
+            }
+
+            if (_cursor>=expiry_tick)
+                return null;
+
+            // Every slot has been looked at, so nothing else is due.
+            if (++scanned>=_wheel.length)
+            {
+                _cursor=expiry_tick;
+                return null;
+            }
+            _cursor++;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public Task expired()
+    {
+        long now=_now;
+        synchronized (_lock)
+        {
+            return nextExpired(now-_duration);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void tick()
+    {
+        final long expiry = _now-_duration;
+
+        Task task=null;
+        while (true)
+        {
+            try
+            {
+                synchronized (_lock)
+                {
+                    task=nextExpired(expiry);
+                    if (task==null)
+                        break;
+                    task.expire();
+                }
+
+                task.expired();
+            }
+            catch(Throwable th)
+            {
+                Log.warn(Log.EXCEPTION,th);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param task
+     * @param delay A delay in addition to the default duration of the timeout
+     */
+    public void schedule(Task task,long delay)
+    {
+        synchronized (_lock)
+        {
+            if (task._next!=task)
+                task._timeout.cancel(task);
+            task._timeout=this;
+            task._expired=false;
+            task._delay=delay;
+            task._timestamp = _now+delay;
+
+            // Keep the cursor at or before the slot of every task.
+            long tick=task._timestamp/_tick;
+            if (_size==0 || tick<_cursor)
+                _cursor=tick;
+
+            _wheel[(int)(tick&_mask)]._prev.link(task);
+            _size++;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    void cancel(Task task)
+    {
+        synchronized (_lock)
+        {
+            if (task._next!=task)
+            {
+                task.unlink();
+                _size--;
+            }
+            task._timestamp=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void cancelAll()
+    {
+        synchronized (_lock)
+        {
+            // unlink every task, so that the size is kept if they are rescheduled.
+            for (int i=0;i<_wheel.length;i++)
+            {
+                Task head=_wheel[i];
+                while (head._next!=head)
+                    head._next.unlink();
+            }
+            _size=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isEmpty()
+    {
+        synchronized (_lock)
+        {
+            return _size==0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public long getTimeToNext()
+    {
+        synchronized (_lock)
+        {
+            if (_size==0)
+                return -1;
+
+            // The first slot from the cursor holding a task from the
+            // current revolution holds the earliest task.
+            long next=Long.MAX_VALUE;
+            for (int i=0;i<_wheel.length && next==Long.MAX_VALUE;i++)
+            {
+                long revolution_end=(_cursor+i+1)*_tick;
+                Task head=_wheel[(int)((_cursor+i)&_mask)];
+                for (Task task=head._next;task!=head;task=task._next)
+                    if (task._timestamp<revolution_end && task._timestamp<next)
+                        next=task._timestamp;
+            }
+
+            // Only tasks from later revolutions, so look at them all.
+            for (int i=0;i<_wheel.length && next==Long.MAX_VALUE;i++)
+            {
+                Task head=_wheel[i];
+                for (Task task=head._next;task!=head;task=task._next)
+                    if (task._timestamp<next)
+                        next=task._timestamp;
+            }
+
+            long to_next = _duration+next-_now;
+            return to_next<0?0:to_next;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append(getClass().getName());
+        buf.append('@');
+        buf.append(Integer.toHexString(hashCode()));
+
+        for (int i=0;i<_wheel.length;i++)
+        {
+            Task head=_wheel[i];
+            Task task = head._next;
+            while (task!=head)
+            {
+                buf.append("-->");
+                buf.append(task);
+                task=task._next;
+            }
+        }
+
+        return buf.toString();
+    }
+}
@@ -19,6 +19,9 @@ package org.mortbay.util;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -38,6 +41,13 @@ import org.mortbay.log.Log;
  * 
  * Utility for scanning a directory for added, removed and changed
  * files and reporting these events via registered Listeners.
+ * <p>
+ * By default the directories are scanned every scan interval. If 
+ * {@link #setWatch(boolean)} is set and the runtime provides a 
+ * java.nio.file.WatchService (Java 7 or later), the directories are 
+ * instead watched for changes and only the changed files are scanned,
+ * when the changes are watched. If the directories cannot be watched,
+ * the scanner falls back to scanning every scan interval.
  *
  * TODO AbstractLifeCycle
  */
@@ -54,6 +64,10 @@ public class Scanner
     private Timer _timer;
     private TimerTask _task;
     private boolean _recursive=true;
+    private boolean _watch=false;
+    private int _watchDelay=500;
+    private Watcher _watcher;
+    private final Object _scanLock = new Object();
 
 
     /**
@@ -146,6 +160,47 @@ public class Scanner
     {
         return _recursive;
     }
+
+    /**
+     * Watch the scanned directories for changes rather than scan them
+     * every scan interval. The setting takes effect when the scanner is
+     * started or the scan interval is set.
+     * @param watch True if the directories are watched when possible.
+     */
+    public void setWatch (boolean watch)
+    {
+        _watch=watch;
+    }
+    
+    public boolean getWatch ()
+    {
+        return _watch;
+    }
+    
+    /**
+     * @return True if the directories are being watched, false if they are scanned every interval.
+     */
+    public boolean isWatching ()
+    {
+        return _watcher!=null;
+    }
+
+    /**
+     * Set the delay after a watched change, during which further changes
+     * are collected and reported together with the change. The delay is 
+     * restarted by each change, up to a total of the scan interval.
+     * @param ms delay in ms
+     */
+    public void setWatchDelay (int ms)
+    {
+        _watchDelay=ms;
+    }
+    
+    public int getWatchDelay ()
+    {
+        return _watchDelay;
+    }
+    
     /**
      * Apply a filter to files found in the scan directory.
      * Only files matching the filter will be reported as added/changed/removed.
@@ -219,8 +274,11 @@ public class Scanner
         else
         {
             //just register the list of existing files and only report changes
-            scanFiles();
-            _prevScan.putAll(_currentScan);
+            synchronized (_scanLock)
+            {
+                scanFiles();
+                _prevScan.putAll(_currentScan);
+            }
         }
         schedule();
     }
@@ -246,7 +304,10 @@ public class Scanner
                 _timer.cancel();
             if (_task!=null)
                 _task.cancel();
-            if (getScanInterval() > 0)
+            _task=null;
+            _timer=null;
+            stopWatcher();
+            if (getScanInterval() > 0 && !(_watch && startWatcher()))
             {
                 _timer = newTimer();
                 _task = newTimerTask();
@@ -254,6 +315,36 @@ public class Scanner
             }
         }
     }
+
+    private boolean startWatcher ()
+    {
+        if (_scanDirs==null || __fileSystem==null)
+            return false;
+        try
+        {
+            _watcher=new Watcher();
+            // report changes made while the directories were registered
+            scan();
+            _watcher.start();
+            return true;
+        }
+        catch (Exception e)
+        {
+            Log.warn("Cannot watch "+_scanDirs+", scanning every "+getScanInterval()+"s: "+e);
+            Log.debug(e);
+            _watcher=null;
+            return false;
+        }
+    }
+
+    private void stopWatcher ()
+    {
+        Watcher watcher=_watcher;
+        _watcher=null;
+        if (watcher!=null)
+            watcher.close();
+    }
+
     /**
      * Stop the scanning.
      */
@@ -268,18 +359,24 @@ public class Scanner
                 _task.cancel();
             _task=null;
             _timer=null;
+            stopWatcher();
         }
     }
 
     /**
-     * Perform a pass of the scanner and report changes
+     * Perform a pass of the scanner and report changes.
+     * Passes are serialized, as a timer task or a watcher that is being
+     * replaced may still be scanning.
      */
     public void scan ()
     {
-        scanFiles();
-        reportDifferences(_currentScan, _prevScan);
-        _prevScan.clear();
-        _prevScan.putAll(_currentScan);
+        synchronized (_scanLock)
+        {
+            scanFiles();
+            reportDifferences(_currentScan, _prevScan);
+            _prevScan.clear();
+            _prevScan.putAll(_currentScan);
+        }
     }
 
     /**
@@ -291,18 +388,74 @@ public class Scanner
         if (_scanDirs==null)
             return;
         
-        _currentScan.clear();
-        Iterator itor = _scanDirs.iterator();
-        while (itor.hasNext())
+        synchronized (_scanLock)
         {
-            File dir = (File)itor.next();
+            _currentScan.clear();
+            Iterator itor = _scanDirs.iterator();
+            while (itor.hasNext())
+            {
+                File dir = (File)itor.next();
             
-            if ((dir != null) && (dir.exists()))
-                scanFile(dir, _currentScan);
+                if ((dir != null) && (dir.exists()))
+                    scanFile(dir, _currentScan);
+            }
         }
     }
 
 
+    /**
+     * Scan only the changed files and report changes.
+     * @param roots the scan dirs, each with its canonical path
+     * @param changed the canonical paths of the changed files and directories
+     * @param watcher the watcher to register new directories with
+     */
+    private void scanChanged (Object[][] roots, Set changed, Watcher watcher)
+    {
+        synchronized (_scanLock)
+        {
+            _currentScan.clear();
+            _currentScan.putAll(_prevScan);
+
+            Iterator itor = changed.iterator();
+            while (itor.hasNext())
+            {
+                String path = (String)itor.next();
+                for (int r=0;r<roots.length;r++)
+                {
+                    File root = (File)roots[r][0];
+                    String root_path = (String)roots[r][1];
+                    if (!path.equals(root_path) && !path.startsWith(root_path+File.separator))
+                        continue;
+
+                    // forget the file or directory and then scan it again
+                    Iterator keys = _currentScan.keySet().iterator();
+                    while (keys.hasNext())
+                    {
+                        String name = (String)keys.next();
+                        if (name.equals(path) || name.startsWith(path+File.separator))
+                            keys.remove();
+                    }
+
+                    if (path.equals(root_path))
+                        scanFile(root, _currentScan);
+                    else
+                    {
+                        File file = new File(path);
+                        if (!_recursive && !root_path.equals(file.getParent()))
+                            continue;
+                        scanFile(file, _currentScan);
+                        if (_recursive && file.isDirectory())
+                            watcher.register(file,true);
+                    }
+                }
+            }
+
+            reportDifferences(_currentScan, _prevScan);
+            _prevScan.clear();
+            _prevScan.putAll(_currentScan);
+        }
+    }
+
     /**
      * Report the adds/changes/removes to the registered listeners
      * 
@@ -496,4 +649,233 @@ public class Scanner
         }
     }
 
+
+    /**
+     * Watcher
+     * 
+     * Thread that watches the scanned directories with a java.nio.file.WatchService
+     * and scans the changed files. The WatchService is accessed by reflection, 
+     * so that the scanner runs on runtimes without it.
+     */
+    private class Watcher extends Thread
+    {
+        private final Object _service;
+        private final Map _keys = new HashMap();
+        private final Object[][] _roots;
+
+        Watcher () throws Exception
+        {
+            super("Scanner-Watcher");
+            setDaemon(true);
+            _service = invoke(__newWatchService,__fileSystem,__noArgs);
+            try
+            {
+                _roots = new Object[_scanDirs.size()][];
+                for (int i=0;i<_roots.length;i++)
+                {
+                    File root = (File)_scanDirs.get(i);
+                    _roots[i] = new Object[]{root,root.getCanonicalPath()};
+                    if (root.isDirectory())
+                        register(root,_recursive);
+                    else
+                        register(root.getCanonicalFile().getParentFile(),false);
+                }
+            }
+            catch (Exception e)
+            {
+                close();
+                throw e;
+            }
+        }
+
+        void register (File dir, boolean recursive)
+        {
+            try
+            {
+                Object path = invoke(__toPath,dir,__noArgs);
+                Object key = invoke(__register,path,new Object[]{_service,__kinds});
+                _keys.put(key,dir.getCanonicalFile());
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException("Cannot watch "+dir+": "+e);
+            }
+
+            if (recursive)
+            {
+                File[] files = dir.listFiles();
+                for (int i=0;files!=null && i<files.length;i++)
+                    if (files[i].isDirectory())
+                        register(files[i],true);
+            }
+        }
+
+        void close ()
+        {
+            try
+            {
+                invoke(__close,_service,__noArgs);
+            }
+            catch (Exception e)
+            {
+                Log.ignore(e);
+            }
+        }
+
+        public void run ()
+        {
+            try
+            {
+                while (_watcher==this)
+                {
+                    Object key = invoke(__take,_service,__noArgs);
+                    
+                    // collect further changes until there are none for the delay 
+                    Set changed = new HashSet();
+                    boolean overflow = false;
+                    long end = System.currentTimeMillis()+Math.max(_watchDelay,1000L*getScanInterval());
+                    while (key!=null)
+                    {
+                        overflow |= pollEvents(key,changed);
+                        long delay = Math.min(_watchDelay,end-System.currentTimeMillis());
+                        key = delay>0?invoke(__poll,_service,new Object[]{new Long(delay),__milliseconds}):null;
+                    }
+
+                    if (_watcher!=this)
+                        break;
+                    if (overflow)
+                    {
+                        for (int i=0;i<_roots.length;i++)
+                            if (((File)_roots[i][0]).isDirectory())
+                                register((File)_roots[i][0],_recursive);
+                        scan();
+                    }
+                    else if (!changed.isEmpty())
+                        scanChanged(_roots,changed,this);
+                }
+            }
+            catch (Exception e)
+            {
+                synchronized (Scanner.this)
+                {
+                    if (_watcher==this)
+                    {
+                        Log.warn("Cannot watch "+_scanDirs+", scanning every "+getScanInterval()+"s: "+e);
+                        Log.debug(e);
+                        _watcher=null;
+                        close();
+                        _timer = newTimer();
+                        _task = newTimerTask();
+                        _timer.schedule(_task, 0, 1000L*getScanInterval());
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Get the changed files of a watch key.
+         * @return true if changes may have been lost
+         */
+        private boolean pollEvents (Object key, Set changed) throws Exception
+        {
+            File dir = (File)_keys.get(key);
+            List events = (List)invoke(__pollEvents,key,__noArgs);
+            boolean valid = ((Boolean)invoke(__reset,key,__noArgs)).booleanValue();
+            if (!valid)
+                _keys.remove(key);
+            if (dir==null)
+                return true;
+
+            for (int i=0;i<events.size();i++)
+            {
+                Object event = events.get(i);
+                Object kind = invoke(__kind,event,__noArgs);
+                if (kind==__overflow)
+                    return true;
+                File file = new File(dir,String.valueOf(invoke(__context,event,__noArgs)));
+                // a modified directory has its own key for its content
+                if (kind!=__modify || !file.isDirectory())
+                    changed.add(file.getCanonicalPath());
+            }
+
+            // a removed root directory cannot be watched any more
+            if (!valid)
+                for (int i=0;i<_roots.length;i++)
+                    if (dir.getPath().equals(_roots[i][1]))
+                        throw new IllegalStateException("Removed "+dir);
+            return false;
+        }
+    }
+
+    private static final Object[] __noArgs = new Object[0];
+    private static Object __fileSystem; // null if there is no WatchService
+    private static Method __newWatchService;
+    private static Method __toPath;
+    private static Method __register;
+    private static Object __kinds;
+    private static Object __modify;
+    private static Object __overflow;
+    private static Method __take;
+    private static Method __poll;
+    private static Object __milliseconds;
+    private static Method __close;
+    private static Method __pollEvents;
+    private static Method __reset;
+    private static Method __kind;
+    private static Method __context;
+    
+    static
+    {
+        try
+        {
+            Class[] none = new Class[0];
+            Class path = Class.forName("java.nio.file.Path");
+            Class service = Class.forName("java.nio.file.WatchService");
+            Class key = Class.forName("java.nio.file.WatchKey");
+            Class event = Class.forName("java.nio.file.WatchEvent");
+            Class kind = Class.forName("java.nio.file.WatchEvent$Kind");
+            Class kinds = Class.forName("java.nio.file.StandardWatchEventKinds");
+            Class unit = Class.forName("java.util.concurrent.TimeUnit");
+
+            Object[] watched = (Object[])Array.newInstance(kind,3);
+            watched[0] = kinds.getField("ENTRY_CREATE").get(null);
+            watched[1] = kinds.getField("ENTRY_DELETE").get(null);
+            watched[2] = __modify = kinds.getField("ENTRY_MODIFY").get(null);
+            __kinds = watched;
+            __overflow = kinds.getField("OVERFLOW").get(null);
+
+            __toPath = File.class.getMethod("toPath",none);
+            __newWatchService = Class.forName("java.nio.file.FileSystem").getMethod("newWatchService",none);
+            __register = path.getMethod("register",new Class[]{service,watched.getClass()});
+            __take = service.getMethod("take",none);
+            __poll = service.getMethod("poll",new Class[]{Long.TYPE,unit});
+            __milliseconds = unit.getField("MILLISECONDS").get(null);
+            __close = service.getMethod("close",none);
+            __pollEvents = key.getMethod("pollEvents",none);
+            __reset = key.getMethod("reset",none);
+            __kind = event.getMethod("kind",none);
+            __context = event.getMethod("context",none);
+            __fileSystem = Class.forName("java.nio.file.FileSystems").getMethod("getDefault",none).invoke(null,new Object[0]);
+        }
+        catch (Throwable th)
+        {
+            Log.ignore(th);
+            __fileSystem = null;
+        }
+    }
+
+    private static Object invoke (Method method, Object target, Object[] args) throws Exception
+    {
+        try
+        {
+            return method.invoke(target,args);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable th = e.getTargetException();
+            if (th instanceof Exception)
+                throw (Exception)th;
+            throw e;
+        }
+    }
 }
@@ -0,0 +1,231 @@
+//========================================================================
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.util;
+
+/* ------------------------------------------------------------ */
+/** Index of URL encoded parameters.
+ * <p>
+ * Records the offsets of the names and values of the parameters in a URL
+ * encoded byte array, so that the values of a few parameters can be looked
+ * up and decoded on demand, without decoding every parameter into a
+ * {@link MultiMap} as {@link UrlEncoded#decodeUtf8To(byte[], int, int, MultiMap)} does.
+ * Parameters are matched and decoded with the same rules, so the values
+ * returned are the same as would be added to the map.
+ * <p>
+ * An index may be reused for successive byte arrays and is not thread safe.
+ * Only the UTF-8 and ISO-8859-1 charsets are supported.
+ */
+public class UrlEncodedIndex
+{
+    private byte[] _raw;
+    private int[] _offsets=new int[4*8];
+    private int _size;
+    private boolean _utf8=true;
+    private final Utf8StringBuffer _utf8b=new Utf8StringBuffer(64);
+    private final StringBuffer _buffer=new StringBuffer(64);
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param charset A charset name or null for UTF-8
+     * @return True if the charset is supported by the index.
+     */
+    public static boolean isSupported(String charset)
+    {
+        return charset==null || StringUtil.isUTF8(charset) || StringUtil.__ISO_8859_1.equalsIgnoreCase(charset);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Index URL encoded parameters.
+     * @param raw The byte array, which is not copied and must not be changed while the index is used.
+     * @param offset The offset of the parameters
+     * @param length The length of the parameters
+     * @param charset The charset of the parameters, either UTF-8, ISO-8859-1 or null for UTF-8.
+     */
+    public void index(byte[] raw, int offset, int length, String charset)
+    {
+        if (!isSupported(charset))
+            throw new IllegalArgumentException(charset);
+        _utf8=charset==null||StringUtil.isUTF8(charset);
+        _raw=raw;
+        _size=0;
+
+        int end=offset+length;
+        int start=offset;
+        int eq=-1;
+        for (int i=offset;i<=end;i++)
+        {
+            byte b=i<end?raw[i]:(byte)'&';
+            if (b=='=' && eq<0)
+                eq=i;
+            else if (b=='&')
+            {
+                if (i>start)
+                {
+                    if (_offsets.length<(_size+1)*4)
+                    {
+                        int[] offsets=new int[_offsets.length*2];
+                        System.arraycopy(_offsets,0,offsets,0,_size*4);
+                        _offsets=offsets;
+                    }
+                    int o=_size++*4;
+                    _offsets[o]=start;
+                    _offsets[o+1]=eq<0?i:eq;
+                    _offsets[o+2]=eq<0?i:eq+1;
+                    _offsets[o+3]=i;
+                }
+                start=i+1;
+                eq=-1;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Clear the index and release the byte array.
+     */
+    public void clear()
+    {
+        _raw=null;
+        _size=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of indexed parameters, including repeated names.
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param i The index of the parameter
+     * @return The decoded name of the parameter
+     */
+    public String getName(int i)
+    {
+        return decode(_offsets[i*4],_offsets[i*4+1]);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param i The index of the parameter
+     * @return The decoded value of the parameter
+     */
+    public String getValue(int i)
+    {
+        return decode(_offsets[i*4+2],_offsets[i*4+3]);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name The decoded name of a parameter
+     * @return The decoded value of the first parameter with the name, or null.
+     */
+    public String getValue(String name)
+    {
+        for (int i=0;i<_size;i++)
+            if (matches(i,name))
+                return getValue(i);
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name The decoded name of a parameter
+     * @param values A {@link LazyList} to add the values to
+     * @return The {@link LazyList} of the decoded values of all parameters with the name added
+     */
+    public Object addValues(String name, Object values)
+    {
+        for (int i=0;i<_size;i++)
+            if (matches(i,name))
+                values=LazyList.add(values,getValue(i));
+        return values;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param i The index of the parameter
+     * @param name A decoded name
+     * @return True if the decoded name of the parameter is equal to the name.
+     */
+    public boolean matches(int i, String name)
+    {
+        int start=_offsets[i*4];
+        int end=_offsets[i*4+1];
+
+        // compare plain ASCII without decoding
+        int n=0;
+        for (int j=start;j<end;j++)
+        {
+            byte b=_raw[j];
+            if (b=='%' || b<0)
+                return name.equals(decode(start,end));
+            if (n==name.length() || (b=='+'?' ':(char)b)!=name.charAt(n))
+                return false;
+            n++;
+        }
+        return n==name.length();
+    }
+
+    /* ------------------------------------------------------------ */
+    private String decode(int start, int end)
+    {
+        if (start==end)
+            return "";
+
+        if (_utf8)
+        {
+            _utf8b.reset();
+            for (int i=start;i<end;i++)
+            {
+                byte b=_raw[i];
+                switch(b)
+                {
+                    case '+':
+                        _utf8b.append((byte)' ');
+                        break;
+                    case '%':
+                        if (i+2<end)
+                            _utf8b.append((byte)((TypeUtil.convertHexDigit(_raw[++i])<<4) + TypeUtil.convertHexDigit(_raw[++i])));
+                        break;
+                    default:
+                        _utf8b.append(b);
+                }
+            }
+            return _utf8b.toString();
+        }
+
+        _buffer.setLength(0);
+        for (int i=start;i<end;i++)
+        {
+            byte b=_raw[i];
+            switch(b)
+            {
+                case '+':
+                    _buffer.append(' ');
+                    break;
+                case '%':
+                    if (i+2<end)
+                        _buffer.append((char)((TypeUtil.convertHexDigit(_raw[++i])<<4) + TypeUtil.convertHexDigit(_raw[++i])));
+                    break;
+                default:
+                    _buffer.append((char)(0xff&b));
+            }
+        }
+        return _buffer.toString();
+    }
+}
@@ -0,0 +1,115 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.thread;
+
+import junit.framework.TestCase;
+
+public class VirtualThreadPoolTest extends TestCase
+{
+    int _jobs;
+    volatile long _sleep=100;
+
+    Runnable _job = new Runnable()
+    {
+        public void run()
+        {
+            try 
+            {
+                Thread.sleep(_sleep);
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
+            }
+
+            synchronized(VirtualThreadPoolTest.class)
+            {
+                _jobs++;
+            }
+        }
+    };
+
+    private void runJobs(VirtualThreadPool tp, int jobs) throws Exception
+    {
+        _jobs=0;
+        for (int i=0;i<jobs;i++)
+            assertTrue(tp.dispatch(_job));
+
+        long end=System.currentTimeMillis()+10000;
+        while (System.currentTimeMillis()<end)
+        {
+            synchronized(VirtualThreadPoolTest.class)
+            {
+                if (_jobs==jobs)
+                    break;
+            }
+            Thread.sleep(10);
+        }
+        synchronized(VirtualThreadPoolTest.class)
+        {
+            assertEquals(jobs,_jobs);
+        }
+    }
+
+    public void testVirtualThreadPool() throws Exception
+    {
+        VirtualThreadPool tp= new VirtualThreadPool();
+        tp.start();
+        assertEquals(VirtualThreadPool.isSupported(),tp.isVirtual());
+        runJobs(tp,VirtualThreadPool.isSupported()?1000:100);
+        tp.stop();
+        assertFalse(tp.dispatch(_job));
+    }
+
+    public void testFallback() throws Exception
+    {
+        QueuedThreadPool fallback = new QueuedThreadPool();
+        fallback.setMaxThreads(10);
+
+        VirtualThreadPool tp= new VirtualThreadPool();
+        tp.setUseVirtualThreads(false);
+        tp.setFallback(fallback);
+        tp.start();
+        assertFalse(tp.isVirtual());
+        assertTrue(fallback.isStarted());
+
+        runJobs(tp,50);
+        assertTrue(tp.getThreads()<=10);
+        tp.stop();
+        assertTrue(fallback.isStopped());
+    }
+
+    public void testMaxThreads() throws Exception
+    {
+        if (!VirtualThreadPool.isSupported())
+            return;
+
+        VirtualThreadPool tp= new VirtualThreadPool();
+        tp.setMaxThreads(4);
+        tp.setLowThreads(2);
+        tp.start();
+
+        _sleep=500;
+        assertTrue(tp.dispatch(_job));
+        assertTrue(tp.dispatch(_job));
+        assertFalse(tp.isLowOnThreads());
+        assertTrue(tp.dispatch(_job));
+        assertTrue(tp.isLowOnThreads());
+        assertTrue(tp.dispatch(_job));
+        assertFalse(tp.dispatch(_job));
+        assertEquals(4,tp.getThreads());
+        tp.stop();
+    }
+}
@@ -0,0 +1,96 @@
+//========================================================================
+//Copyright 2004-2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.thread;
+
+public class WheelTimeoutTest extends TimeoutTest
+{
+    /* ------------------------------------------------------------ */
+    /* A small wheel, so that the tasks wrap around it several times.
+     */
+    protected Timeout newTimeout(Object lock)
+    {
+        return new WheelTimeout(lock,10,16);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testSize()
+    {
+        WheelTimeout wheel=(WheelTimeout)timeout;
+        assertEquals(10,wheel.getSize());
+
+        tasks[3].cancel();
+        tasks[3].cancel();
+        assertEquals(9,wheel.getSize());
+
+        tasks[4].reschedule();
+        assertEquals(9,wheel.getSize());
+
+        wheel.cancelAll();
+        assertEquals(0,wheel.getSize());
+        assertTrue(wheel.isEmpty());
+        assertEquals(-1,wheel.getTimeToNext());
+
+        tasks[5].reschedule();
+        assertEquals(1,wheel.getSize());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testTimeToNext()
+    {
+        timeout.setDuration(200);
+        timeout.setNow(1150);
+        assertEquals(50,timeout.getTimeToNext());
+
+        timeout.tick();
+        assertEquals(50,timeout.getTimeToNext());
+
+        timeout.setNow(1500);
+        timeout.tick();
+        assertEquals(100,timeout.getTimeToNext());
+
+        // only tasks a number of revolutions later
+        for (int i=4;i<tasks.length;i++)
+            tasks[i].cancel();
+        Timeout.Task task = new Timeout.Task();
+        timeout.schedule(task,5000);
+        assertEquals(5200,timeout.getTimeToNext());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testRevolutions()
+    {
+        timeout.setDuration(0);
+        timeout.setNow(10000);
+        timeout.tick();
+        for (int i=0;i<tasks.length;i++)
+            assertTrue(tasks[i].isExpired());
+
+        Timeout.Task[] later = new Timeout.Task[50];
+        for (int i=0;i<later.length;i++)
+        {
+            later[i]=new Timeout.Task();
+            timeout.schedule(later[i],i*37);
+        }
+
+        for (long now=10000;now<=10000+50*37;now+=13)
+        {
+            timeout.setNow(now);
+            timeout.tick();
+            for (int i=0;i<later.length;i++)
+                assertEquals("expired "+i+"@"+now,10000+i*37<=now,later[i].isExpired());
+        }
+        assertTrue(timeout.isEmpty());
+    }
+}
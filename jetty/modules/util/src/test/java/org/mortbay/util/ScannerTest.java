@@ -0,0 +1,182 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ScannerTest extends TestCase
+{
+    File _dir;
+    Scanner _scanner;
+    List _events=new ArrayList();
+
+    protected void setUp() throws Exception
+    {
+        _dir=File.createTempFile("scanner",".dir");
+        _dir.delete();
+        _dir.mkdir();
+        _dir=_dir.getCanonicalFile();
+
+        _scanner=new Scanner();
+        _scanner.setScanDirs(Collections.singletonList(_dir));
+        _scanner.setScanInterval(1);
+        _scanner.setWatchDelay(100);
+        _scanner.setReportExistingFilesOnStartup(false);
+        _scanner.addListener(new Scanner.DiscreteListener()
+        {
+            public void fileAdded(String filename)
+            {
+                event("added",filename);
+            }
+            public void fileChanged(String filename)
+            {
+                event("changed",filename);
+            }
+            public void fileRemoved(String filename)
+            {
+                event("removed",filename);
+            }
+        });
+        _scanner.addListener(new Scanner.BulkListener()
+        {
+            public void filesChanged(List filenames)
+            {
+                event("bulk",String.valueOf(filenames.size()));
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _scanner.stop();
+        IO.delete(_dir);
+    }
+
+    void event(String type, String filename)
+    {
+        synchronized (_events)
+        {
+            _events.add(type+" "+filename);
+            _events.notifyAll();
+        }
+    }
+
+    String next(long timeout) throws Exception
+    {
+        long end=System.currentTimeMillis()+timeout;
+        synchronized (_events)
+        {
+            while (_events.isEmpty() && System.currentTimeMillis()<end)
+                _events.wait(end-System.currentTimeMillis());
+            return _events.isEmpty()?null:(String)_events.remove(0);
+        }
+    }
+
+    void touch(File file, long lastModified) throws Exception
+    {
+        FileOutputStream out=new FileOutputStream(file);
+        out.write(file.getName().getBytes());
+        out.close();
+        file.setLastModified(lastModified);
+    }
+
+    public void testWatch() throws Exception
+    {
+        _scanner.setWatch(true);
+        _scanner.start();
+        assertEquals(canWatch(),_scanner.isWatching());
+        scanner(2000);
+    }
+
+    public void testPoll() throws Exception
+    {
+        _scanner.start();
+        assertFalse(_scanner.isWatching());
+        scanner(3000);
+    }
+
+    public void testWatchFile() throws Exception
+    {
+        File file=new File(_dir,"realm.properties");
+        File other=new File(_dir,"other.properties");
+        touch(file,100000);
+        _scanner.setScanDirs(Collections.singletonList(file));
+        _scanner.setWatch(true);
+        _scanner.start();
+        assertEquals(canWatch(),_scanner.isWatching());
+
+        // only the scanned file is reported
+        touch(other,100000);
+        touch(file,200000);
+        assertEquals("changed "+file.getPath(),next(2000));
+        assertEquals("bulk 1",next(2000));
+        assertNull(next(500));
+    }
+
+    /* Runtimes without a WatchService fall back to polling */
+    static boolean canWatch()
+    {
+        try
+        {
+            Class.forName("java.nio.file.WatchService");
+            return true;
+        }
+        catch (ClassNotFoundException e)
+        {
+            return false;
+        }
+    }
+
+    void scanner(long timeout) throws Exception
+    {
+        File a=new File(_dir,"a.xml");
+        touch(a,100000);
+        assertEquals("added "+a.getPath(),next(timeout));
+        assertEquals("bulk 1",next(timeout));
+
+        touch(a,200000);
+        assertEquals("changed "+a.getPath(),next(timeout));
+        assertEquals("bulk 1",next(timeout));
+
+        // changes to sub directories are found
+        File sub=new File(_dir,"sub");
+        sub.mkdir();
+        File b=new File(sub,"b.xml");
+        touch(b,100000);
+        assertEquals("added "+b.getPath(),next(timeout));
+        assertEquals("bulk 1",next(timeout));
+
+        touch(b,200000);
+        assertEquals("changed "+b.getPath(),next(timeout));
+        assertEquals("bulk 1",next(timeout));
+
+        IO.delete(sub);
+        a.delete();
+        List removed=new ArrayList();
+        String event;
+        while ((event=next(timeout))!=null && !event.startsWith("bulk"))
+            removed.add(event);
+        assertTrue(removed.contains("removed "+a.getPath()));
+        assertTrue(removed.contains("removed "+b.getPath()));
+        assertEquals("bulk 2",event);
+        assertNull(next(500));
+    }
+}
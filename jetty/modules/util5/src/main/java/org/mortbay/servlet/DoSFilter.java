@@ -38,6 +38,7 @@ import javax.servlet.http.HttpSessionBindingListener;
 
 import org.mortbay.log.Log;
 import org.mortbay.thread.Timeout;
+import org.mortbay.thread.WheelTimeout;
 import org.mortbay.util.ArrayQueue;
 import org.mortbay.util.ajax.Continuation;
 import org.mortbay.util.ajax.ContinuationSupport;
@@ -91,6 +92,9 @@ import org.mortbay.util.ajax.ContinuationSupport;
  * remotePort           if true and session tracking is not used, then rate is tracked by IP+port (effectively connection). Defaults to false.
  * 
  * ipWhitelist          a comma-separated list of IP addresses that will not be rate limited
+ * 
+ * timeoutWheel         if true, request and tracker timeouts are kept in a {@link WheelTimeout}, 
+ *                      which is O(1) to schedule and cancel. Defaults to false.
  */
 
 public class DoSFilter implements Filter
@@ -117,6 +121,7 @@ public class DoSFilter implements Filter
     final static String TRACK_SESSIONS_INIT_PARAM="trackSessions";
     final static String REMOTE_PORT_INIT_PARAM="remotePort";
     final static String IP_WHITELIST_INIT_PARAM="ipWhitelist";
+    final static String TIMEOUT_WHEEL_INIT_PARAM="timeoutWheel";
 
     final static int USER_AUTH = 2;
     final static int USER_SESSION = 2;
@@ -140,8 +145,8 @@ public class DoSFilter implements Filter
     protected final ConcurrentHashMap<String, RateTracker> _rateTrackers=new ConcurrentHashMap<String, RateTracker>();
     private HashSet<String> _whitelist; 
     
-    private final Timeout _requestTimeoutQ = new Timeout();
-    private final Timeout _trackerTimeoutQ = new Timeout();
+    private Timeout _requestTimeoutQ;
+    private Timeout _trackerTimeoutQ;
 
     private Thread _timerThread;
     private volatile boolean _running;
@@ -215,6 +220,11 @@ public class DoSFilter implements Filter
         tmp = filterConfig.getInitParameter(REMOTE_PORT_INIT_PARAM);
         _remotePort = tmp!=null&& Boolean.parseBoolean(tmp);
 
+        tmp = filterConfig.getInitParameter(TIMEOUT_WHEEL_INIT_PARAM);
+        boolean wheel = tmp!=null && Boolean.parseBoolean(tmp);
+        _requestTimeoutQ = wheel?new WheelTimeout():new Timeout();
+        _trackerTimeoutQ = wheel?new WheelTimeout():new Timeout();
+
         _requestTimeoutQ.setNow();
         _requestTimeoutQ.setDuration(_maxRequestMs);
         